@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point of the benchmarks jar.
+ *
+ * Accepts the usual JMH command line options. Unless overridden, every benchmark is run with 1, 4
+ * and 16 threads, in throughput and sample time (latency percentiles) modes, with the GC profiler
+ * reporting allocation rates.
+ *
+ * @author Nemanja Zbiljic
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] DEFAULT_THREADS = {1, 4, 16};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()) {
+            Main.main(args);
+            return;
+        }
+
+        int[] threads = options.getThreads().hasValue() ? new int[]{options.getThreads().get()} : DEFAULT_THREADS;
+        for (int count : threads) {
+            ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).threads(count);
+            if (options.getBenchModes().isEmpty()) {
+                builder.mode(Mode.Throughput)
+                        .mode(Mode.SampleTime)
+                        .timeUnit(TimeUnit.MICROSECONDS);
+            }
+            if (options.getProfilers().isEmpty()) {
+                builder.addProfiler(GCProfiler.class);
+            }
+            new Runner(builder.build()).run();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import com.github.zbiljic.shiro.cache.infinispan.ShiroExternalizers;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-JVM Infinispan cluster shared by all benchmark threads.
+ *
+ * Every node is an {@link InfinispanCacheManager} wrapping its own {@link DefaultCacheManager}.
+ * Clustered modes use the {@code jgroups-shared-loopback.xml} stack, so the whole cluster runs in
+ * the benchmark JVM without touching the network. The session and authorization caches are
+ * populated before the trial starts.
+ *
+ * @author Nemanja Zbiljic
+ */
+@State(Scope.Benchmark)
+public class CacheCluster {
+
+    public static final String SESSION_CACHE = "shiro-activeSessionCache";
+
+    public static final String AUTHORIZATION_CACHE = "benchmarkRealm.authorizationCache";
+
+    private static final AtomicInteger CLUSTER_IDS = new AtomicInteger();
+
+    /**
+     * Cache mode: {@code local}, {@code replicated} or {@code distributed}.
+     */
+    @Param({"local", "replicated", "distributed"})
+    public String mode;
+
+    /**
+     * Number of cluster members. Ignored in {@code local} mode.
+     */
+    @Param({"3"})
+    public int nodes;
+
+    /**
+     * Number of sessions in the session cache.
+     */
+    @Param({"10000"})
+    public int sessions;
+
+    /**
+     * Number of principals in the authorization cache.
+     */
+    @Param({"1000"})
+    public int principals;
+
+    private EmbeddedCacheManager[] embeddedManagers;
+
+    private InfinispanCacheManager[] cacheManagers;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        int size = "local".equals(mode) ? 1 : nodes;
+        String clusterName = "shiro-benchmark-" + CLUSTER_IDS.incrementAndGet();
+        embeddedManagers = new EmbeddedCacheManager[size];
+        cacheManagers = new InfinispanCacheManager[size];
+        for (int i = 0; i < size; i++) {
+            embeddedManagers[i] = createEmbeddedManager(clusterName, i);
+            cacheManagers[i] = createCacheManager(embeddedManagers[i]);
+            cacheManagers[i].getCache(SESSION_CACHE);
+            cacheManagers[i].getCache(AUTHORIZATION_CACHE);
+        }
+        awaitMembers(size);
+
+        Cache<Serializable, Session> sessionCache = sessionCache(0);
+        for (int i = 0; i < sessions; i++) {
+            Session session = Fixtures.session(i);
+            sessionCache.put(session.getId(), session);
+        }
+        Cache<PrincipalCollection, AuthorizationInfo> authorizationCache = authorizationCache(0);
+        for (int i = 0; i < principals; i++) {
+            authorizationCache.put(Fixtures.principals(i), Fixtures.authorizationInfo(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        for (int i = cacheManagers.length - 1; i >= 0; i--) {
+            cacheManagers[i].destroy();
+            embeddedManagers[i].stop();
+        }
+    }
+
+    /**
+     * Creates the {@link InfinispanCacheManager} of a node. Benchmarks comparing adapter features
+     * configure them here.
+     *
+     * @param embeddedManager the node's Infinispan cache manager.
+     * @return the Shiro cache manager of the node.
+     */
+    protected InfinispanCacheManager createCacheManager(EmbeddedCacheManager embeddedManager) {
+        InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+        cacheManager.setCacheManager(embeddedManager);
+        cacheManager.init();
+        return cacheManager;
+    }
+
+    /**
+     * Defines the configurations of the caches of a node before they are started. Benchmarks
+     * comparing cache configurations define them here; by default every cache uses the default
+     * configuration of the cluster mode.
+     *
+     * @param embeddedManager the node's Infinispan cache manager.
+     * @param defaults        the default cache configuration.
+     */
+    protected void defineCaches(EmbeddedCacheManager embeddedManager, ConfigurationBuilder defaults) {
+    }
+
+    public int size() {
+        return cacheManagers.length;
+    }
+
+    public InfinispanCacheManager node(int index) {
+        return cacheManagers[index % cacheManagers.length];
+    }
+
+    public Cache<Serializable, Session> sessionCache(int node) {
+        return node(node).getCache(SESSION_CACHE);
+    }
+
+    public Cache<PrincipalCollection, AuthorizationInfo> authorizationCache(int node) {
+        return node(node).getCache(AUTHORIZATION_CACHE);
+    }
+
+    private EmbeddedCacheManager createEmbeddedManager(String clusterName, int index) {
+        boolean clustered = !"local".equals(mode);
+        GlobalConfigurationBuilder global = clustered ?
+                GlobalConfigurationBuilder.defaultClusteredBuilder() : new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        if (clustered) {
+            global.transport()
+                    .clusterName(clusterName)
+                    .nodeName(clusterName + "-node-" + index)
+                    .addProperty("configurationFile", "jgroups-shared-loopback.xml");
+        }
+        for (AdvancedExternalizer<?> externalizer : ShiroExternalizers.all()) {
+            global.serialization().addAdvancedExternalizer(externalizer);
+        }
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        if ("replicated".equals(mode)) {
+            configuration.clustering().cacheMode(CacheMode.REPL_SYNC);
+        } else if ("distributed".equals(mode)) {
+            configuration.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(2).numSegments(60);
+        } else if (!"local".equals(mode)) {
+            throw new IllegalArgumentException("Unknown cache mode [" + mode + "]");
+        }
+        EmbeddedCacheManager manager = new DefaultCacheManager(global.build(), configuration.build());
+        defineCaches(manager, configuration);
+        return manager;
+    }
+
+    private void awaitMembers(int size) throws InterruptedException {
+        if (size < 2) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + 60000;
+        for (EmbeddedCacheManager manager : embeddedManagers) {
+            while (manager.getMembers().size() < size) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Cluster of " + size + " nodes did not form in time.");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
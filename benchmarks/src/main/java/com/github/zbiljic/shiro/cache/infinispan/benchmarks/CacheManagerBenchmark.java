@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import org.apache.shiro.cache.Cache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contention on {@code InfinispanCacheManager.getCache}, which Shiro's realms and
+ * {@code CachingSessionDAO} call frequently. The cluster mode does not matter much here, so this
+ * is usually run with {@code -p mode=local}.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CacheManagerBenchmark {
+
+    @State(Scope.Thread)
+    public static class CacheName {
+
+        @Param({CacheCluster.SESSION_CACHE, CacheCluster.AUTHORIZATION_CACHE})
+        public String name;
+    }
+
+    @Benchmark
+    public Cache<Object, Object> getCache(CacheCluster cluster, CacheName cacheName) {
+        InfinispanCacheManager cacheManager = cluster.node(0);
+        return cacheManager.getCache(cacheName.name);
+    }
+}
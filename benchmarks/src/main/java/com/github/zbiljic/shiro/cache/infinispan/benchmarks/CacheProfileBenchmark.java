@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.CacheProfile;
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The operations each {@link CacheProfile} is tuned for, with the caches configured by the
+ * cluster mode alone and with the profile of their role applied on top of it, as {@link
+ * InfinispanCacheManager} does for the cache manager it creates.
+ *
+ * Profiles only change clustered caches, so run it in a clustered mode, e.g. with {@code -p
+ * mode=distributed}.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CacheProfileBenchmark {
+
+    public static final String AUTHENTICATION_CACHE = Fixtures.REALM + ".authenticationCache";
+
+    @State(Scope.Benchmark)
+    public static class Cluster extends CacheCluster {
+
+        /**
+         * Whether the caches are given the profile of their role.
+         */
+        @Param({"false", "true"})
+        public boolean profiles;
+
+        @Override
+        protected void defineCaches(EmbeddedCacheManager embeddedManager, ConfigurationBuilder defaults) {
+            for (String name : new String[]{SESSION_CACHE, AUTHORIZATION_CACHE, AUTHENTICATION_CACHE}) {
+                ConfigurationBuilder builder = new ConfigurationBuilder().read(defaults.build());
+                if (profiles && embeddedManager.getCacheManagerConfiguration().transport().transport() != null) {
+                    CacheProfile.forCacheName(name).apply(builder);
+                }
+                embeddedManager.defineConfiguration(name, builder.build());
+            }
+        }
+
+        @Override
+        protected InfinispanCacheManager createCacheManager(EmbeddedCacheManager embeddedManager) {
+            InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+            cacheManager.setCacheManager(embeddedManager);
+            if (profiles && CacheProfile.forCacheName(SESSION_CACHE).isWriteBehind()) {
+                cacheManager.setWriteBehindCacheNames(Collections.singleton(SESSION_CACHE));
+            }
+            cacheManager.init();
+            return cacheManager;
+        }
+
+        @Override
+        public void start() throws Exception {
+            super.start();
+            // a realm caches the authentication info on the node handling the login
+            for (int node = 0; node < size(); node++) {
+                Cache<Object, AuthenticationInfo> cache = authenticationCache(node);
+                for (int i = node; i < principals; i += size()) {
+                    cache.put(Fixtures.username(i), new SimpleAuthenticationInfo(Fixtures.principals(i), "secret"));
+                }
+            }
+        }
+
+        public Cache<Object, AuthenticationInfo> authenticationCache(int node) {
+            return node(node).getCache(AUTHENTICATION_CACHE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        Cache<Serializable, Session> sessions;
+
+        Cache<PrincipalCollection, AuthorizationInfo> authorization;
+
+        Cache<Object, AuthenticationInfo> authentication;
+
+        int node;
+
+        int nodes;
+
+        int sessionCount;
+
+        int principalCount;
+
+        @Setup
+        public void setUp(Cluster cluster) {
+            node = THREADS.getAndIncrement() % cluster.size();
+            nodes = cluster.size();
+            sessions = cluster.sessionCache(node);
+            authorization = cluster.authorizationCache(node);
+            authentication = cluster.authenticationCache(node);
+            sessionCount = cluster.sessions;
+            principalCount = cluster.principals;
+        }
+    }
+
+    /**
+     * A permission check: reads the {@code AuthorizationInfo} of a random principal.
+     */
+    @Benchmark
+    public AuthorizationInfo authorizationRead(Client client) {
+        return client.authorization.get(Fixtures.principals(ThreadLocalRandom.current().nextInt(client.principalCount)));
+    }
+
+    /**
+     * A login handled by the node of the client: reads the {@code AuthenticationInfo} of a user
+     * whose previous login was handled by the same node, and caches it again if it is missing.
+     */
+    @Benchmark
+    public AuthenticationInfo authenticationRead(Client client) {
+        int count = (client.principalCount - client.node + client.nodes - 1) / client.nodes;
+        int index = client.node + ThreadLocalRandom.current().nextInt(count) * client.nodes;
+        String username = Fixtures.username(index);
+        AuthenticationInfo info = client.authentication.get(username);
+        if (info == null) {
+            info = new SimpleAuthenticationInfo(Fixtures.principals(index), "secret");
+            client.authentication.put(username, info);
+        }
+        return info;
+    }
+
+    /**
+     * A request touching its session: reads the session, updates its {@code lastAccessTime} and
+     * writes it back.
+     */
+    @Benchmark
+    public Session sessionTouch(Client client) {
+        String id = Fixtures.sessionId(ThreadLocalRandom.current().nextInt(client.sessionCount));
+        Session session = client.sessions.get(id);
+        if (session instanceof SimpleSession) {
+            ((SimpleSession) session).touch();
+            client.sessions.put(id, session);
+        }
+        return session;
+    }
+}
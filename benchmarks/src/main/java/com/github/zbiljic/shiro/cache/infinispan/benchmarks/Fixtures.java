@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Realistic Shiro cache values used by the benchmarks.
+ *
+ * @author Nemanja Zbiljic
+ */
+public final class Fixtures {
+
+    public static final String REALM = "benchmarkRealm";
+
+    private Fixtures() {
+    }
+
+    public static String sessionId(int index) {
+        return "session-" + index;
+    }
+
+    public static String username(int index) {
+        return "user-" + index;
+    }
+
+    public static SimplePrincipalCollection principals(int index) {
+        return new SimplePrincipalCollection(username(index), REALM);
+    }
+
+    public static SimpleSession session(int index) {
+        SimpleSession session = new SimpleSession("10.0.0." + (index % 250));
+        session.setId(sessionId(index));
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, principals(index % 1000));
+        session.setAttribute(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        session.setAttribute("locale", "en_US");
+        session.setAttribute("csrfToken", "token-" + index + "-0123456789abcdef0123456789abcdef");
+        return session;
+    }
+
+    public static SimpleAuthorizationInfo authorizationInfo(int index) {
+        SimpleAuthorizationInfo info = new SimpleAuthorizationInfo(
+                new HashSet<String>(Arrays.asList("user", "role-" + (index % 10))));
+        info.addStringPermission("document:read");
+        info.addStringPermission("document:write:" + index);
+        info.addStringPermission("printer:print:floor-" + (index % 5));
+        return info;
+    }
+}
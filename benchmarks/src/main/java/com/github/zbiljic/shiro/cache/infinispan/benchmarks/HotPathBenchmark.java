@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import org.apache.shiro.cache.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares get, put and remove through {@code InfinispanCache} with the same operations on the
+ * wrapped Infinispan cache, on a local cache with none of the optional adapter features enabled.
+ *
+ * Keys and values are created before the trial, so with the GC profiler (enabled by default) the
+ * {@code gc.alloc.rate.norm} of the {@code shiro} runs shows what the adapter allocates on top of
+ * Infinispan itself; it should match the {@code infinispan} runs.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HotPathBenchmark {
+
+    private static final String CACHE_NAME = "hot-path";
+
+    @State(Scope.Benchmark)
+    public static class Caches {
+
+        /**
+         * API used: {@code shiro} ({@code InfinispanCache}) or {@code infinispan} (the wrapped
+         * cache).
+         */
+        @Param({"shiro", "infinispan"})
+        public String api;
+
+        /**
+         * Number of keys.
+         */
+        @Param({"1024"})
+        public int keys;
+
+        private EmbeddedCacheManager embeddedManager;
+
+        private InfinispanCacheManager cacheManager;
+
+        Cache<String, String> shiro;
+
+        org.infinispan.Cache<String, String> infinispan;
+
+        String[] keyArray;
+
+        String[] valueArray;
+
+        @Setup(Level.Trial)
+        public void start() {
+            GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+            global.globalJmxStatistics().allowDuplicateDomains(true);
+            embeddedManager = new DefaultCacheManager(global.build(), new ConfigurationBuilder().build());
+            cacheManager = new InfinispanCacheManager();
+            cacheManager.setCacheManager(embeddedManager);
+            cacheManager.init();
+            shiro = cacheManager.getCache(CACHE_NAME);
+            infinispan = embeddedManager.getCache(CACHE_NAME);
+
+            keyArray = new String[keys];
+            valueArray = new String[keys];
+            for (int i = 0; i < keys; i++) {
+                keyArray[i] = "key-" + i;
+                valueArray[i] = "value-" + i;
+                infinispan.put(keyArray[i], valueArray[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            cacheManager.destroy();
+            embeddedManager.stop();
+        }
+
+        boolean useShiro() {
+            return "shiro".equals(api);
+        }
+
+        int index() {
+            return ThreadLocalRandom.current().nextInt(keys);
+        }
+    }
+
+    @Benchmark
+    public String get(Caches caches) {
+        String key = caches.keyArray[caches.index()];
+        return caches.useShiro() ? caches.shiro.get(key) : caches.infinispan.get(key);
+    }
+
+    @Benchmark
+    public String put(Caches caches) {
+        int index = caches.index();
+        String key = caches.keyArray[index];
+        String value = caches.valueArray[index];
+        return caches.useShiro() ? caches.shiro.put(key, value) : caches.infinispan.put(key, value);
+    }
+
+    @Benchmark
+    public String removeThenPut(Caches caches) {
+        int index = caches.index();
+        String key = caches.keyArray[index];
+        String value = caches.valueArray[index];
+        if (caches.useShiro()) {
+            caches.shiro.remove(key);
+            return caches.shiro.put(key, value);
+        }
+        caches.infinispan.remove(key);
+        return caches.infinispan.put(key, value);
+    }
+}
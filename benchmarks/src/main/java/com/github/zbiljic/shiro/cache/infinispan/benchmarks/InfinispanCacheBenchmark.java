@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-operation benchmarks of {@code InfinispanCache}.
+ *
+ * Each thread uses the cache of one cluster node (threads are spread over the nodes round-robin),
+ * so that in clustered modes most keys are owned by other nodes.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InfinispanCacheBenchmark {
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        Cache<Serializable, Session> sessions;
+
+        int sessionCount;
+
+        int thread;
+
+        int sequence;
+
+        @Setup
+        public void setUp(CacheCluster cluster) {
+            thread = THREADS.getAndIncrement();
+            sessions = cluster.sessionCache(thread);
+            sessionCount = cluster.sessions;
+        }
+
+        String existingKey() {
+            return Fixtures.sessionId(ThreadLocalRandom.current().nextInt(sessionCount));
+        }
+
+        String newKey() {
+            return "new-session-" + thread + "-" + (sequence++);
+        }
+    }
+
+    @Benchmark
+    public Session get(Client client) {
+        return client.sessions.get(client.existingKey());
+    }
+
+    @Benchmark
+    public Session put(Client client) {
+        String key = client.existingKey();
+        return client.sessions.put(key, Fixtures.session(key.hashCode() & 0xffff));
+    }
+
+    @Benchmark
+    public Session putThenRemove(Client client) {
+        String key = client.newKey();
+        client.sessions.put(key, Fixtures.session(client.sequence));
+        return client.sessions.remove(key);
+    }
+
+    @Benchmark
+    public void values(Client client, Blackhole blackhole) {
+        for (Session session : client.sessions.values()) {
+            blackhole.consume(session);
+        }
+    }
+
+    @Benchmark
+    public void keys(Client client, Blackhole blackhole) {
+        for (Serializable key : client.sessions.keys()) {
+            blackhole.consume(key);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import com.github.zbiljic.shiro.cache.infinispan.LoadingInfinispanCache;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Permission checks on a few principals whose {@code AuthorizationInfo} expires quickly, loading
+ * it from a slow realm on a miss. The {@code loads} counter reports how often the realm is asked
+ * for an {@code AuthorizationInfo}; ideally once per principal per lifespan.
+ *
+ * The {@code getPut} strategy is how Shiro's {@code AuthorizingRealm} caches: every thread that
+ * misses loads and puts the value. {@code singleFlight} loads with {@link
+ * LoadingInfinispanCache#get(Object, Callable)}, taking load locks in clustered modes, and {@code
+ * earlyRefresh} additionally refreshes values before they expire.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoadingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster extends CacheCluster {
+
+        /**
+         * How missing values are loaded: {@code getPut}, {@code singleFlight} or {@code
+         * earlyRefresh}.
+         */
+        @Param({"getPut", "singleFlight", "earlyRefresh"})
+        public String strategy;
+
+        /**
+         * Lifespan of the cached authorization info, in milliseconds.
+         */
+        @Param({"1000"})
+        public long lifespan;
+
+        /**
+         * Number of principals checked.
+         */
+        @Param({"10"})
+        public int hotPrincipals;
+
+        /**
+         * Time it takes the realm to load an {@code AuthorizationInfo}, in milliseconds.
+         */
+        @Param({"5"})
+        public int loadTime;
+
+        @Override
+        protected void defineCaches(EmbeddedCacheManager embeddedManager, ConfigurationBuilder defaults) {
+            ConfigurationBuilder builder = new ConfigurationBuilder().read(defaults.build());
+            builder.expiration().lifespan(lifespan).wakeUpInterval(100);
+            embeddedManager.defineConfiguration(AUTHORIZATION_CACHE, builder.build());
+        }
+
+        @Override
+        protected InfinispanCacheManager createCacheManager(EmbeddedCacheManager embeddedManager) {
+            InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+            cacheManager.setCacheManager(embeddedManager);
+            if (!"getPut".equals(strategy)) {
+                cacheManager.setLoadLockCacheNames(Collections.singleton(AUTHORIZATION_CACHE));
+            }
+            cacheManager.setEarlyRefreshBeta("earlyRefresh".equals(strategy) ? 1.0 : 0.0);
+            cacheManager.init();
+            return cacheManager;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        /**
+         * Number of {@code AuthorizationInfo}s loaded from the realm by this thread.
+         */
+        public long loads;
+
+        Cache<PrincipalCollection, AuthorizationInfo> authorization;
+
+        boolean getPut;
+
+        int hotPrincipals;
+
+        int loadTime;
+
+        @Setup
+        public void setUp(Cluster cluster) {
+            authorization = cluster.authorizationCache(THREADS.getAndIncrement());
+            getPut = "getPut".equals(cluster.strategy);
+            hotPrincipals = cluster.hotPrincipals;
+            loadTime = cluster.loadTime;
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            loads = 0;
+        }
+
+        AuthorizationInfo load(int index) throws InterruptedException {
+            loads++;
+            Thread.sleep(loadTime);
+            return Fixtures.authorizationInfo(index);
+        }
+    }
+
+    @Benchmark
+    public AuthorizationInfo permissionCheck(final Client client) throws Exception {
+        final int index = ThreadLocalRandom.current().nextInt(client.hotPrincipals);
+        PrincipalCollection principals = Fixtures.principals(index);
+        if (client.getPut) {
+            AuthorizationInfo info = client.authorization.get(principals);
+            if (info == null) {
+                info = client.load(index);
+                client.authorization.put(principals, info);
+            }
+            return info;
+        }
+        return ((LoadingInfinispanCache<PrincipalCollection, AuthorizationInfo>) client.authorization).get(principals,
+                new Callable<AuthorizationInfo>() {
+                    @Override
+                    public AuthorizationInfo call() throws Exception {
+                        return client.load(index);
+                    }
+                });
+    }
+}
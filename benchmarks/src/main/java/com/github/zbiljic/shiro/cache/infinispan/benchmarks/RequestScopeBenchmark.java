@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.CacheRequestScope;
+import com.github.zbiljic.shiro.cache.infinispan.InfinispanCacheManager;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A permission-heavy request: the session is read and touched by several filters, and the
+ * {@code AuthorizationInfo} of the subject is read for every permission check, with and without a
+ * {@link CacheRequestScope} bound for the duration of the request.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestScopeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster extends CacheCluster {
+
+        /**
+         * Whether the session and authorization caches are request-scoped.
+         */
+        @Param({"false", "true"})
+        public boolean requestScoped;
+
+        @Override
+        protected InfinispanCacheManager createCacheManager(EmbeddedCacheManager embeddedManager) {
+            InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+            cacheManager.setCacheManager(embeddedManager);
+            if (requestScoped) {
+                cacheManager.setRequestScopedCacheNames(new HashSet<String>(
+                        Arrays.asList(SESSION_CACHE, AUTHORIZATION_CACHE)));
+            }
+            cacheManager.init();
+            return cacheManager;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        /**
+         * Number of times the session is read and touched during one request.
+         */
+        @Param({"3"})
+        public int sessionReads;
+
+        /**
+         * Number of permission checks during one request.
+         */
+        @Param({"20"})
+        public int permissionChecks;
+
+        Cache<Serializable, Session> sessions;
+
+        Cache<PrincipalCollection, AuthorizationInfo> authorization;
+
+        int sessionCount;
+
+        int principalCount;
+
+        @Setup
+        public void setUp(Cluster cluster) {
+            int thread = THREADS.getAndIncrement();
+            sessions = cluster.sessionCache(thread);
+            authorization = cluster.authorizationCache(thread);
+            sessionCount = cluster.sessions;
+            principalCount = cluster.principals;
+        }
+    }
+
+    @Benchmark
+    public int request(Client client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = Fixtures.sessionId(random.nextInt(client.sessionCount));
+        PrincipalCollection principals = Fixtures.principals(random.nextInt(client.principalCount));
+        CacheRequestScope scope = new CacheRequestScope();
+        scope.bind();
+        try {
+            int found = 0;
+            for (int i = 0; i < client.sessionReads; i++) {
+                Session session = client.sessions.get(id);
+                if (session instanceof SimpleSession) {
+                    ((SimpleSession) session).touch();
+                    client.sessions.put(id, session);
+                    found++;
+                }
+            }
+            for (int i = 0; i < client.permissionChecks; i++) {
+                if (client.authorization.get(principals) != null) {
+                    found++;
+                }
+            }
+            return found;
+        } finally {
+            scope.restore();
+        }
+    }
+}
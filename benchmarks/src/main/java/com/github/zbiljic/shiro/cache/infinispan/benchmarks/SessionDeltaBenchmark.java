@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.DeltaSession;
+import com.github.zbiljic.shiro.cache.infinispan.DeltaSessionFactory;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests touching sessions with a large attribute, e.g. a cached shopping cart, and updating a
+ * small one. With {@code deltas} the sessions are {@link DeltaSession}s, as created by {@link
+ * DeltaSessionFactory}, so only the changed fields are written to the owners; otherwise the
+ * whole {@link SimpleSession} is.
+ *
+ * Run it in a clustered mode, e.g. with {@code -p mode=distributed}.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionDeltaBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster extends CacheCluster {
+
+        /**
+         * Whether the sessions are written as their changes.
+         */
+        @Param({"false", "true"})
+        public boolean deltas;
+
+        /**
+         * Size in bytes of the large attribute of each session.
+         */
+        @Param({"1024", "65536"})
+        public int payloadSize;
+
+        /**
+         * Number of sessions each benchmark thread works with.
+         */
+        @Param({"50"})
+        public int sessionsPerThread;
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        Cache<Serializable, Session> sessions;
+
+        SimpleSession[] owned;
+
+        int requests;
+
+        @Setup
+        public void setUp(Cluster cluster) {
+            int thread = THREADS.getAndIncrement();
+            sessions = cluster.sessionCache(thread);
+            owned = new SimpleSession[cluster.sessionsPerThread];
+            for (int i = 0; i < owned.length; i++) {
+                SimpleSession session = cluster.deltas ? new DeltaSession("10.0.0.1") : new SimpleSession("10.0.0.1");
+                session.setId("large-session-" + thread + "-" + i);
+                session.setAttribute("payload", new byte[cluster.payloadSize]);
+                sessions.put(session.getId(), session);
+                owned[i] = session;
+            }
+        }
+    }
+
+    /**
+     * A request touching one of the sessions of the client, updating a small attribute and
+     * writing the session back.
+     */
+    @Benchmark
+    public Session touchAndUpdate(Client client) {
+        SimpleSession session = client.owned[ThreadLocalRandom.current().nextInt(client.owned.length)];
+        session.touch();
+        session.setAttribute("requests", ++client.requests);
+        client.sessions.put(session.getId(), session);
+        return session;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Realistic Shiro request mixes.
+ *
+ * A session touch reads the session, updates its {@code lastAccessTime} and writes it back, as
+ * {@code DefaultSessionManager} does on every request. An authorization lookup reads the cached
+ * {@code AuthorizationInfo} of a principal, as {@code AuthorizingRealm} does for every permission
+ * check. The {@code request} group runs both concurrently in a 1:4 ratio.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionWorkloadBenchmark {
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        Cache<Serializable, Session> sessions;
+
+        Cache<PrincipalCollection, AuthorizationInfo> authorization;
+
+        int sessionCount;
+
+        int principalCount;
+
+        @Setup
+        public void setUp(CacheCluster cluster) {
+            int thread = THREADS.getAndIncrement();
+            sessions = cluster.sessionCache(thread);
+            authorization = cluster.authorizationCache(thread);
+            sessionCount = cluster.sessions;
+            principalCount = cluster.principals;
+        }
+    }
+
+    @Benchmark
+    public Session sessionTouch(Client client) {
+        return touch(client);
+    }
+
+    @Benchmark
+    public AuthorizationInfo authorizationLookup(Client client) {
+        return lookup(client);
+    }
+
+    @Benchmark
+    @Group("request")
+    @GroupThreads(1)
+    public Session requestSessionTouch(Client client) {
+        return touch(client);
+    }
+
+    @Benchmark
+    @Group("request")
+    @GroupThreads(4)
+    public AuthorizationInfo requestAuthorizationLookup(Client client) {
+        return lookup(client);
+    }
+
+    private static Session touch(Client client) {
+        String id = Fixtures.sessionId(ThreadLocalRandom.current().nextInt(client.sessionCount));
+        Session session = client.sessions.get(id);
+        if (session instanceof SimpleSession) {
+            ((SimpleSession) session).touch();
+            client.sessions.put(id, session);
+        }
+        return session;
+    }
+
+    private static AuthorizationInfo lookup(Client client) {
+        int index = ThreadLocalRandom.current().nextInt(client.principalCount);
+        return client.authorization.get(Fixtures.principals(index));
+    }
+}
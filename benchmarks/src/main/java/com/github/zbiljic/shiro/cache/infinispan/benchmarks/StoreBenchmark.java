@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.benchmarks;
+
+import com.github.zbiljic.shiro.cache.infinispan.ShiroExternalizers;
+import com.github.zbiljic.shiro.cache.infinispan.persistence.LogStoreConfigurationBuilder;
+import org.apache.shiro.session.Session;
+import org.infinispan.Cache;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the persistent stores available for the active session cache: Infinispan's
+ * {@code singleFile} store and the bundled log store.
+ *
+ * The cache keeps at most {@code inMemory} sessions in memory, so most reads are loaded from the
+ * store. Writes overwrite existing sessions, as session touches do. A restart stops and starts the
+ * cache, which rebuilds the index of the store.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StoreBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SessionStore {
+
+        /**
+         * Store: {@code singleFile} or {@code log}.
+         */
+        @Param({"singleFile", "log"})
+        public String store;
+
+        /**
+         * Number of sessions in the store.
+         */
+        @Param({"50000"})
+        public int sessions;
+
+        /**
+         * Number of sessions kept in memory.
+         */
+        @Param({"1000"})
+        public int inMemory;
+
+        private File directory;
+
+        private EmbeddedCacheManager cacheManager;
+
+        Cache<Serializable, Session> cache;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            directory = File.createTempFile("shiro-infinispan-store-benchmark", "");
+            if (!directory.delete() || !directory.mkdirs()) {
+                throw new IOException("Could not create directory [" + directory + "].");
+            }
+
+            GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+            global.globalJmxStatistics().allowDuplicateDomains(true);
+            for (AdvancedExternalizer<?> externalizer : ShiroExternalizers.all()) {
+                global.serialization().addAdvancedExternalizer(externalizer);
+            }
+
+            ConfigurationBuilder configuration = new ConfigurationBuilder();
+            configuration.eviction().strategy(EvictionStrategy.LIRS).maxEntries(inMemory);
+            if ("singleFile".equals(store)) {
+                configuration.persistence().addSingleFileStore().location(directory.getPath());
+            } else if ("log".equals(store)) {
+                configuration.persistence().addStore(LogStoreConfigurationBuilder.class).location(directory.getPath());
+            } else {
+                throw new IllegalArgumentException("Unknown store [" + store + "]");
+            }
+
+            cacheManager = new DefaultCacheManager(global.build(), configuration.build());
+            cache = cacheManager.getCache(CacheCluster.SESSION_CACHE);
+            for (int i = 0; i < sessions; i++) {
+                Session session = Fixtures.session(i);
+                cache.put(session.getId(), session);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            cacheManager.stop();
+            delete(directory);
+        }
+
+        private static void delete(File file) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    delete(child);
+                }
+            }
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public Session read(SessionStore store) {
+        return store.cache.get(Fixtures.sessionId(ThreadLocalRandom.current().nextInt(store.sessions)));
+    }
+
+    @Benchmark
+    public Session write(SessionStore store) {
+        Session session = Fixtures.session(ThreadLocalRandom.current().nextInt(store.sessions));
+        store.cache.put(session.getId(), session);
+        return session;
+    }
+
+    @Benchmark
+    public int restart(SessionStore store) {
+        synchronized (store) {
+            store.cache.stop();
+            store.cache.start();
+            return store.cache.getAdvancedCache().getDataContainer().size();
+        }
+    }
+}
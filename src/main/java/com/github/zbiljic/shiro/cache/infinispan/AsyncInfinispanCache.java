@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+/**
+ * Extension of Shiro's {@link org.apache.shiro.cache.Cache} with non-blocking operations backed by
+ * Infinispan's asynchronous cache API.
+ *
+ * The returned futures can be used to wait for, or be notified of, the completion of the
+ * operation. Errors raised while submitting an operation are thrown as {@link
+ * org.apache.shiro.cache.CacheException}s, errors raised while executing it are reported through
+ * the returned future.
+ *
+ * @author Nemanja Zbiljic
+ */
+public interface AsyncInfinispanCache<K, V> extends Cache<K, V> {
+
+    /**
+     * Asynchronously gets a value of an element which matches the given key.
+     *
+     * @param key the key of the element to return.
+     * @return a future holding the value, or {@code null} if not found or expired.
+     * @throws CacheException if the operation could not be submitted.
+     */
+    NotifyingFuture<V> getAsync(K key) throws CacheException;
+
+    /**
+     * Asynchronously puts an object into the cache. For embedded caches, the listeners of the
+     * returned future are notified once its result is set.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return a future holding the previous value, if the cache returns previous values.
+     * @throws CacheException if the operation could not be submitted.
+     */
+    NotifyingFuture<V> putAsync(K key, V value) throws CacheException;
+
+    /**
+     * Asynchronously puts an object into the cache only if there is no value for the key yet.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return a future holding the existing value, or {@code null} if the value was put.
+     * @throws CacheException if the operation could not be submitted.
+     */
+    NotifyingFuture<V> putIfAbsentAsync(K key, V value) throws CacheException;
+
+    /**
+     * Asynchronously removes the value which matches the key.
+     *
+     * @param key the key of the element to remove.
+     * @return a future holding the removed value, if the cache returns previous values.
+     * @throws CacheException if the operation could not be submitted.
+     */
+    NotifyingFuture<V> removeAsync(K key) throws CacheException;
+}
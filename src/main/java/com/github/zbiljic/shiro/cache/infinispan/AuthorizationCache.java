@@ -0,0 +1,64 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+
+/**
+ * Extension of Shiro's {@link org.apache.shiro.cache.Cache} removing cached {@link
+ * org.apache.shiro.authz.AuthorizationInfo}s by their content, e.g. after a role has been changed,
+ * instead of clearing the whole authorization cache.
+ *
+ * The matching entries are found on the nodes holding them, using the index kept for caches
+ * configured with {@link InfinispanCacheManager#setIndexedAuthorizationCacheNames(java.util.Set)
+ * indexedAuthorizationCacheNames} and by scanning their values otherwise. They are then removed
+ * cluster-wide with one {@link BulkInfinispanCache#removeAll(java.util.Set) removeAll}. Entries
+ * whose values are not {@code AuthorizationInfo}s never match.
+ *
+ * @author Nemanja Zbiljic
+ */
+public interface AuthorizationCache<K, V> extends Cache<K, V> {
+
+    /**
+     * Removes the cached authorization info of every principal that has the given role.
+     *
+     * @param role the name of the role.
+     * @return the number of removed entries.
+     * @throws CacheException if the entries could not be found or removed.
+     */
+    int invalidateByRole(String role) throws CacheException;
+
+    /**
+     * Removes the cached authorization info of every principal that has a permission starting
+     * with the given prefix, e.g. {@code "printer:"}. String permissions are matched as written,
+     * object permissions by their string form if they are {@link
+     * org.apache.shiro.authz.permission.WildcardPermission}s.
+     *
+     * @param permissionPrefix the prefix of the permissions.
+     * @return the number of removed entries.
+     * @throws CacheException if the entries could not be found or removed.
+     */
+    int invalidateByPermissionPrefix(String permissionPrefix) throws CacheException;
+}
@@ -0,0 +1,299 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.util.concurrent.WithinThreadExecutor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Node-local secondary index of an embedded Infinispan authorization cache, from role and from
+ * permission to the keys of the cached {@link org.apache.shiro.authz.AuthorizationInfo}s.
+ *
+ * The index is kept up to date by a listener registered on the cache, so every node indexes the
+ * entries it holds, including backup copies. Permissions are kept sorted, so a permission prefix
+ * is looked up as a range. Entries evicted from a cache without stores are dropped from the index;
+ * keys of entries that expired stay indexed until they are written again, and removing them later
+ * is a no-op.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class AuthorizationIndex {
+
+    private final AdvancedCache<?, ?> cache;
+
+    /**
+     * Indexed roles and permissions, per key. Guarded by {@code this}.
+     */
+    private final Map<Object, Indexed> entries = new HashMap<Object, Indexed>();
+
+    /**
+     * Keys, per role. Guarded by {@code this}.
+     */
+    private final Map<String, Set<Object>> byRole = new HashMap<String, Set<Object>>();
+
+    /**
+     * Keys, per permission. Guarded by {@code this}.
+     */
+    private final NavigableMap<String, Set<Object>> byPermission = new TreeMap<String, Set<Object>>();
+
+    /**
+     * The listener that updates the index when entries change.
+     */
+    private final Indexer indexer = new Indexer();
+
+    AuthorizationIndex(AdvancedCache<?, ?> cache) {
+        this.cache = cache;
+        this.cache.addListener(indexer);
+        for (InternalCacheEntry entry : cache.getDataContainer()) {
+            update(entry.getKey(), EmbeddedCaches.unwrap(entry.getValue()));
+        }
+    }
+
+    /**
+     * Unregisters the listener and drops the index.
+     */
+    synchronized void stop() {
+        cache.removeListener(indexer);
+        entries.clear();
+        byRole.clear();
+        byPermission.clear();
+    }
+
+    /**
+     * Returns the keys of the indexed entries satisfying the given condition.
+     *
+     * @param match the condition.
+     * @return the keys of the matching entries.
+     */
+    synchronized Set<Object> find(AuthorizationMatch match) {
+        if (match.getRole() != null) {
+            Set<Object> keys = byRole.get(match.getRole());
+            return keys != null ? new HashSet<Object>(keys) : Collections.emptySet();
+        }
+        Set<Object> keys = new HashSet<Object>();
+        String prefix = match.getPermissionPrefix();
+        for (Map.Entry<String, Set<Object>> entry : byPermission.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            keys.addAll(entry.getValue());
+        }
+        return keys;
+    }
+
+    private synchronized void update(Object key, Object value) {
+        remove(key);
+        if (!(value instanceof AuthorizationInfo)) {
+            return;
+        }
+        AuthorizationInfo info = (AuthorizationInfo) value;
+        Collection<String> roles = info.getRoles() != null
+                ? new ArrayList<String>(info.getRoles()) : Collections.<String>emptyList();
+        Collection<String> permissions = AuthorizationMatch.permissions(info);
+        entries.put(key, new Indexed(roles, permissions));
+        for (String role : roles) {
+            add(byRole, role, key);
+        }
+        for (String permission : permissions) {
+            add(byPermission, permission, key);
+        }
+    }
+
+    private synchronized void remove(Object key) {
+        Indexed indexed = entries.remove(key);
+        if (indexed == null) {
+            return;
+        }
+        for (String role : indexed.roles) {
+            remove(byRole, role, key);
+        }
+        for (String permission : indexed.permissions) {
+            remove(byPermission, permission, key);
+        }
+    }
+
+    private static void add(Map<String, Set<Object>> index, String name, Object key) {
+        Set<Object> keys = index.get(name);
+        if (keys == null) {
+            keys = new HashSet<Object>();
+            index.put(name, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void remove(Map<String, Set<Object>> index, String name, Object key) {
+        Set<Object> keys = index.get(name);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(name);
+        }
+    }
+
+    /**
+     * Returns the keys of the entries of the given cache satisfying the given condition. For
+     * distributed caches every node reports the matching entries it holds.
+     *
+     * @param cache embedded Infinispan authorization cache.
+     * @param match the condition.
+     * @return the keys of the matching entries.
+     * @throws Exception if the entries of any node could not be searched.
+     */
+    static Set<Object> findKeys(AdvancedCache<Object, Object> cache, AuthorizationMatch match) throws Exception {
+        if (cache.getDistributionManager() == null) {
+            FindKeys task = new FindKeys(match);
+            task.setEnvironment(cache, null);
+            return new HashSet<Object>(task.call());
+        }
+        DefaultExecutorService executor = new DefaultExecutorService(cache, new WithinThreadExecutor(), true);
+        try {
+            Set<Object> keys = new HashSet<Object>();
+            for (Future<ArrayList<Object>> future : executor.submitEverywhere(new FindKeys(match))) {
+                try {
+                    keys.addAll(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            return keys;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Roles and permissions an entry was indexed by.
+     */
+    private static final class Indexed {
+
+        final Collection<String> roles;
+
+        final Collection<String> permissions;
+
+        Indexed(Collection<String> roles, Collection<String> permissions) {
+            this.roles = roles;
+            this.permissions = permissions;
+        }
+    }
+
+    /**
+     * Returns the keys of the matching entries held by the node it is executed on, from the index
+     * of that node if there is one and by scanning its entries otherwise.
+     */
+    static final class FindKeys implements DistributedCallable<Object, Object, ArrayList<Object>>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AuthorizationMatch match;
+
+        private transient AdvancedCache<Object, Object> cache;
+
+        FindKeys(AuthorizationMatch match) {
+            this.match = match;
+        }
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache.getAdvancedCache();
+        }
+
+        @Override
+        public ArrayList<Object> call() {
+            for (Object listener : cache.getListeners()) {
+                if (listener instanceof Indexer) {
+                    return new ArrayList<Object>(((Indexer) listener).index().find(match));
+                }
+            }
+            long now = System.currentTimeMillis();
+            ArrayList<Object> keys = new ArrayList<Object>();
+            for (InternalCacheEntry entry : cache.getDataContainer()) {
+                if (!entry.isExpired(now) && match.matches(EmbeddedCaches.unwrap(entry.getValue()))) {
+                    keys.add(entry.getKey());
+                }
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Updates the index after entries have been changed in the Infinispan cache.
+     */
+    @Listener
+    public final class Indexer {
+
+        AuthorizationIndex index() {
+            return AuthorizationIndex.this;
+        }
+
+        @CacheEntryModified
+        public void onModified(CacheEntryModifiedEvent event) {
+            if (!event.isPre()) {
+                update(event.getKey(), EmbeddedCaches.unwrap(event.getValue()));
+            }
+        }
+
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onRemoved(CacheEntryEvent event) {
+            if (!event.isPre()) {
+                remove(event.getKey());
+            }
+        }
+
+        @CacheEntriesEvicted
+        public void onEvicted(CacheEntriesEvictedEvent event) {
+            if (cache.getCacheConfiguration().persistence().usingStores()) {
+                return;
+            }
+            for (Object key : event.getEntries().keySet()) {
+                remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Condition selecting cached {@link org.apache.shiro.authz.AuthorizationInfo}s by a role or by a
+ * permission prefix. Serializable, so that it can be sent to the nodes holding the entries.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class AuthorizationMatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String role;
+
+    private final String permissionPrefix;
+
+    private AuthorizationMatch(String role, String permissionPrefix) {
+        this.role = role;
+        this.permissionPrefix = permissionPrefix;
+    }
+
+    static AuthorizationMatch byRole(String role) {
+        if (role == null) {
+            throw new IllegalArgumentException("Role argument cannot be null.");
+        }
+        return new AuthorizationMatch(role, null);
+    }
+
+    static AuthorizationMatch byPermissionPrefix(String permissionPrefix) {
+        if (permissionPrefix == null) {
+            throw new IllegalArgumentException("Permission prefix argument cannot be null.");
+        }
+        return new AuthorizationMatch(null, permissionPrefix);
+    }
+
+    /**
+     * Returns the role matched, or {@code null} if permissions are matched.
+     *
+     * @return the role matched.
+     */
+    String getRole() {
+        return role;
+    }
+
+    /**
+     * Returns the permission prefix matched, or {@code null} if a role is matched.
+     *
+     * @return the permission prefix matched.
+     */
+    String getPermissionPrefix() {
+        return permissionPrefix;
+    }
+
+    /**
+     * Returns {@code true} if the given cached value is an authorization info satisfying this
+     * condition.
+     *
+     * @param value cached value.
+     * @return {@code true} if the value matches.
+     */
+    boolean matches(Object value) {
+        if (!(value instanceof AuthorizationInfo)) {
+            return false;
+        }
+        AuthorizationInfo info = (AuthorizationInfo) value;
+        if (role != null) {
+            Collection<String> roles = info.getRoles();
+            return roles != null && roles.contains(role);
+        }
+        for (String permission : permissions(info)) {
+            if (permission.startsWith(permissionPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the string and wildcard permissions of the given authorization info as strings.
+     *
+     * @param info authorization info.
+     * @return the permissions as strings.
+     */
+    static Set<String> permissions(AuthorizationInfo info) {
+        Set<String> permissions = new LinkedHashSet<String>();
+        if (info.getStringPermissions() != null) {
+            permissions.addAll(info.getStringPermissions());
+        }
+        if (info.getObjectPermissions() != null) {
+            for (Permission permission : info.getObjectPermissions()) {
+                if (permission instanceof WildcardPermission) {
+                    permissions.add(permission.toString());
+                }
+            }
+        }
+        return permissions;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extension of Shiro's {@link org.apache.shiro.cache.Cache} with operations on many entries at
+ * once.
+ *
+ * Shiro components can probe for this interface with {@code instanceof} and fall back to
+ * single-key operations otherwise. For distributed Infinispan caches, the keys of a bulk
+ * operation are grouped by their primary owner and each owner receives one batched command, so
+ * an operation costs one round-trip per owner instead of one per key.
+ *
+ * @author Nemanja Zbiljic
+ */
+public interface BulkInfinispanCache<K, V> extends Cache<K, V> {
+
+    /**
+     * Gets the values of the elements which match the given keys.
+     *
+     * @param keys the keys of the elements to return.
+     * @return the found values, per key. Keys without a value are not included.
+     * @throws CacheException if the values could not be read.
+     */
+    Map<K, V> getAll(Set<? extends K> keys) throws CacheException;
+
+    /**
+     * Puts all given objects into the cache.
+     *
+     * @param entries the values to put, per key.
+     * @throws CacheException if the values could not be written.
+     */
+    void putAll(Map<? extends K, ? extends V> entries) throws CacheException;
+
+    /**
+     * Removes the values which match the given keys. Keys that do not match any value are
+     * ignored.
+     *
+     * @param keys the keys of the elements to remove.
+     * @throws CacheException if the values could not be removed.
+     */
+    void removeAll(Set<? extends K> keys) throws CacheException;
+}
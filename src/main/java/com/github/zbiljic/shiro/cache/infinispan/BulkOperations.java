@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.util.concurrent.WithinThreadExecutor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Executes bulk reads and removals on the primary owners of the keys of a distributed embedded
+ * Infinispan cache.
+ *
+ * The keys are split by primary owner using Infinispan's {@link
+ * org.infinispan.distexec.DistributedExecutorService}, which sends each owner one task holding
+ * all of its keys. The owner then reads or removes them from its local data. Keys owned by this
+ * node are processed in the calling thread.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class BulkOperations {
+
+    private final DistributedExecutorService executor;
+
+    BulkOperations(AdvancedCache cache) {
+        this.executor = new DefaultExecutorService(cache, new WithinThreadExecutor(), true);
+    }
+
+    /**
+     * Shuts down the distributed executor. No bulk operations can be executed afterwards.
+     */
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    private void ensureRunning() {
+        // the executor does not reject distributed tasks once it is shut down
+        if (executor.isShutdown()) {
+            throw new IllegalStateException("Bulk operations are stopped.");
+        }
+    }
+
+    /**
+     * Returns {@code true} if bulk operations on the given cache benefit from being executed on
+     * the key owners, that is if the cache is distributed.
+     *
+     * @param cache embedded Infinispan cache.
+     * @return {@code true} if the cache is distributed.
+     */
+    static boolean isDistributed(AdvancedCache cache) {
+        return cache.getDistributionManager() != null;
+    }
+
+    /**
+     * Reads the values of the given keys on their primary owners.
+     *
+     * @param keys the keys.
+     * @return the found values, per key.
+     * @throws Exception if any owner could not read its values.
+     */
+    Map<Object, Object> getAll(Set<?> keys) throws Exception {
+        ensureRunning();
+        List<Future<HashMap<Object, Object>>> futures = executor.submitEverywhere(new GetAll(), nonNull(keys));
+        Map<Object, Object> result = new HashMap<Object, Object>(keys.size());
+        for (Future<HashMap<Object, Object>> future : futures) {
+            result.putAll(await(future));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the given keys on their primary owners.
+     *
+     * @param keys the keys.
+     * @throws Exception if any owner could not remove its keys.
+     */
+    void removeAll(Set<?> keys) throws Exception {
+        ensureRunning();
+        List<Future<Void>> futures = executor.submitEverywhere(new RemoveAll(), nonNull(keys));
+        for (Future<Void> future : futures) {
+            await(future);
+        }
+    }
+
+    private static Object[] nonNull(Set<?> keys) {
+        List<Object> result = new ArrayList<Object>(keys.size());
+        for (Object key : keys) {
+            if (key != null) {
+                result.add(key);
+            }
+        }
+        return result.toArray();
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Reads the input keys on the node it is executed on.
+     */
+    static final class GetAll implements DistributedCallable<Object, Object, HashMap<Object, Object>>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient Cache<Object, Object> cache;
+
+        private transient Set<Object> keys;
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache;
+            this.keys = inputKeys;
+        }
+
+        @Override
+        public HashMap<Object, Object> call() {
+            HashMap<Object, Object> values = new HashMap<Object, Object>(keys.size());
+            for (Object key : keys) {
+                Object value = cache.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Removes the input keys on the node it is executed on.
+     */
+    static final class RemoveAll implements DistributedCallable<Object, Object, Void>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient Cache<Object, Object> cache;
+
+        private transient Set<Object> keys;
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES);
+            this.keys = inputKeys;
+        }
+
+        @Override
+        public Void call() {
+            for (Object key : keys) {
+                cache.remove(key);
+            }
+            return null;
+        }
+    }
+}
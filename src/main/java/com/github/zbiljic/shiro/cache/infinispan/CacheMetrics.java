@@ -0,0 +1,84 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+/**
+ * Receives measurements of the operations performed by one {@link InfinispanCache}.
+ *
+ * Implementations are called on the hot path of every cache operation, from many threads at
+ * once. They must be thread-safe, must not block and should not allocate, so that enabling
+ * metrics does not change the behaviour being measured. All durations are in nanoseconds.
+ *
+ * @author Nemanja Zbiljic
+ * @see CacheMetricsRegistry
+ */
+public interface CacheMetrics {
+
+    /**
+     * Records a {@code get} that found a value.
+     *
+     * @param remote       {@code true} if the value was not held by this node and had to be
+     *                     fetched from another node or a remote server.
+     * @param latencyNanos duration of the operation.
+     */
+    void recordHit(boolean remote, long latencyNanos);
+
+    /**
+     * Records a {@code get} that did not find a value.
+     *
+     * @param latencyNanos duration of the operation.
+     */
+    void recordMiss(long latencyNanos);
+
+    /**
+     * Records a {@code put}.
+     *
+     * @param latencyNanos duration of the operation.
+     */
+    void recordPut(long latencyNanos);
+
+    /**
+     * Records a {@code remove}.
+     *
+     * @param latencyNanos duration of the operation.
+     */
+    void recordRemove(long latencyNanos);
+
+    /**
+     * Records the serialized size of a value put into the cache. Sizes are sampled, so this is
+     * not called for every {@code put}.
+     *
+     * @param bytes the serialized size of the value.
+     */
+    void recordValueSize(int bytes);
+
+    /**
+     * Records a complete iteration over the {@link InfinispanCache#keys() keys} or {@link
+     * InfinispanCache#values() values} of the cache.
+     *
+     * @param entries      number of entries visited.
+     * @param latencyNanos duration of the iteration.
+     */
+    void recordScan(int entries, long latencyNanos);
+}
@@ -0,0 +1,45 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+/**
+ * Service provider interface connecting {@link InfinispanCacheManager} to a metrics library.
+ *
+ * The registry is asked once for the {@link CacheMetrics} of every cache created by the manager;
+ * the returned instance then receives the measurements of that cache. {@link
+ * SimpleCacheMetricsRegistry} keeps the measurements in memory, other implementations can
+ * forward them to a monitoring system.
+ *
+ * @author Nemanja Zbiljic
+ */
+public interface CacheMetricsRegistry {
+
+    /**
+     * Returns the metrics that should receive the measurements of the named cache.
+     *
+     * @param cacheName the name of the cache.
+     * @return the metrics of the cache, or {@code null} if the cache should not be measured.
+     */
+    CacheMetrics metricsFor(String cacheName);
+}
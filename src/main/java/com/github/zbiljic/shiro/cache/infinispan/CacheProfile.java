@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+
+import java.util.Locale;
+
+/**
+ * Built-in configuration profiles for the roles Shiro's caches play.
+ *
+ * A profile only changes how a clustered cache is spread over the cluster; everything else
+ * (eviction, expiration, stores) is kept from the cache's own configuration. {@link
+ * InfinispanCacheManager} recognises the role of a cache by its name with {@link
+ * #forCacheName(String)}, and applies the profile to the caches of the cache manager it creates
+ * implicitly.
+ *
+ * @author Nemanja Zbiljic
+ * @see InfinispanCacheManager#setCacheProfiles(java.util.Map)
+ */
+public enum CacheProfile {
+
+    /**
+     * Realm authorization caches. They are read on every permission check and written rarely, so
+     * they are replicated synchronously and every node reads them locally. L1 is only used by
+     * distributed caches, so it is not needed here.
+     */
+    AUTHORIZATION {
+        @Override
+        public void apply(ConfigurationBuilder builder) {
+            builder.clustering().cacheMode(CacheMode.REPL_SYNC);
+        }
+    },
+
+    /**
+     * Realm authentication caches. Their entries are only needed while a user logs in, on the node
+     * handling the login, and can always be loaded from the realm again, so they are kept local.
+     */
+    AUTHENTICATION {
+        @Override
+        public void apply(ConfigurationBuilder builder) {
+            builder.clustering().cacheMode(CacheMode.LOCAL);
+        }
+    },
+
+    /**
+     * The active session cache. It is written on every request that touches a session, so it is
+     * distributed asynchronously and its puts are written behind, coalescing repeated updates of
+     * the same session.
+     */
+    SESSION {
+        @Override
+        public void apply(ConfigurationBuilder builder) {
+            builder.clustering().cacheMode(CacheMode.DIST_ASYNC);
+        }
+
+        @Override
+        public boolean isWriteBehind() {
+            return true;
+        }
+    },
+
+    /**
+     * No profile; the cache is used as configured.
+     */
+    NONE {
+        @Override
+        public void apply(ConfigurationBuilder builder) {
+        }
+    };
+
+    /**
+     * Suffix of the default authorization cache names of Shiro's realms.
+     */
+    static final String AUTHORIZATION_CACHE_SUFFIX = "authorizationCache";
+
+    /**
+     * Suffix of the default authentication cache names of Shiro's realms.
+     */
+    static final String AUTHENTICATION_CACHE_SUFFIX = "authenticationCache";
+
+    /**
+     * Default name of Shiro's active session cache.
+     */
+    static final String SESSION_CACHE_NAME = "shiro-activeSessionCache";
+
+    /**
+     * Applies this profile to the configuration of a clustered cache.
+     *
+     * @param builder the cache configuration.
+     */
+    public abstract void apply(ConfigurationBuilder builder);
+
+    /**
+     * Returns {@code true} if puts to caches with this profile should be written behind.
+     *
+     * @return {@code true} if puts are written behind.
+     */
+    public boolean isWriteBehind() {
+        return false;
+    }
+
+    /**
+     * Returns the profile of a cache, recognised by the default names Shiro gives its caches:
+     * {@code <realm>.authorizationCache}, {@code <realm>.authenticationCache} and {@code
+     * shiro-activeSessionCache}. Names are matched by suffix, so {@code -authorizationCache} and
+     * {@code -authenticationCache} are recognised as well.
+     *
+     * @param name the name of the cache.
+     * @return the profile of the cache, or {@link #NONE} if its role is not recognised.
+     */
+    public static CacheProfile forCacheName(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        if (name.endsWith(AUTHORIZATION_CACHE_SUFFIX)) {
+            return AUTHORIZATION;
+        }
+        if (name.endsWith(AUTHENTICATION_CACHE_SUFFIX)) {
+            return AUTHENTICATION;
+        }
+        if (name.equals(SESSION_CACHE_NAME)) {
+            return SESSION;
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the profile with the given name, ignoring case.
+     *
+     * @param name the name of the profile, e.g. {@code session} or {@code none}.
+     * @return the profile.
+     * @throws IllegalArgumentException if there is no profile with that name.
+     */
+    public static CacheProfile forName(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Cache profile name must not be null.");
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.CacheException;
+import org.apache.shiro.util.ThreadState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Memoizes the reads and defers the writes of {@link InfinispanCacheManager#setRequestScopedCacheNames(Set)
+ * request-scoped caches} made by one thread, typically while it serves one request.
+ *
+ * While a scope is bound to the current thread, a value read from a request-scoped {@link
+ * InfinispanCache} is kept in the scope, and repeated reads of the same key, e.g. of the session
+ * or the {@code AuthorizationInfo} for every permission check, are served from it. Puts and
+ * removals are applied to the scope and written to Infinispan when the scope is {@link #restore()
+ * restored}, with one {@code putAll} and one {@code removeAll} per cache, so that the many touches
+ * of a session during one request become a single write. {@code putAll} writes only the changes
+ * of a {@link DeltaSession}, as a put of it would. Until then, other threads and nodes do not see
+ * these writes.
+ *
+ * Like Shiro's {@code SubjectThreadState}, a scope is bound before the request is processed and
+ * restored in a {@code finally} block afterwards, e.g. in a servlet filter:
+ *
+ * <pre>
+ * ThreadState scope = new CacheRequestScope();
+ * scope.bind();
+ * try {
+ *     chain.doFilter(request, response);
+ * } finally {
+ *     scope.restore();
+ * }
+ * </pre>
+ *
+ * Binding a scope while another one is bound to the thread has no effect, so scopes may be
+ * nested. Scopes are not thread-safe and must be used by the thread that bound them only.
+ *
+ * @author Nemanja Zbiljic
+ */
+public final class CacheRequestScope implements ThreadState {
+
+    private static final ThreadLocal<CacheRequestScope> CURRENT = new ThreadLocal<CacheRequestScope>();
+
+    /**
+     * Memoized value of a key that has no value.
+     */
+    private static final Object ABSENT = new Object();
+
+    /**
+     * Deferred write of a removal.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Memoized values and deferred writes, per cache.
+     */
+    private final Map<InfinispanCache<?, ?>, Entries> caches = new IdentityHashMap<InfinispanCache<?, ?>, Entries>(4);
+
+    /**
+     * Indicates if this scope is the one bound to the thread.
+     */
+    private boolean bound;
+
+    /**
+     * Returns the scope bound to the current thread.
+     *
+     * @return the bound scope, or {@code null} if none is bound.
+     */
+    static CacheRequestScope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns {@code true} if a scope is bound to the current thread.
+     *
+     * @return {@code true} if a scope is bound to the current thread.
+     */
+    public static boolean isBound() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Binds this scope to the current thread, unless another scope is bound already.
+     */
+    @Override
+    public void bind() {
+        if (CURRENT.get() == null) {
+            CURRENT.set(this);
+            bound = true;
+        }
+    }
+
+    /**
+     * Unbinds this scope from the current thread and writes the deferred puts and removals to
+     * Infinispan. Does nothing if this scope was not bound by {@link #bind()}.
+     *
+     * @throws CacheException if the writes to any cache failed. The writes to the other caches
+     *                        are still performed.
+     */
+    @Override
+    public void restore() {
+        if (!bound) {
+            return;
+        }
+        List<Map.Entry<InfinispanCache<?, ?>, Entries>> pending =
+                new ArrayList<Map.Entry<InfinispanCache<?, ?>, Entries>>(caches.entrySet());
+        clear();
+        CacheException failure = null;
+        for (Map.Entry<InfinispanCache<?, ?>, Entries> entry : pending) {
+            try {
+                entry.getValue().writeTo(entry.getKey());
+            } catch (CacheException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Unbinds this scope from the current thread, discarding the deferred writes. Does nothing if
+     * this scope was not bound by {@link #bind()}.
+     */
+    @Override
+    public void clear() {
+        if (!bound) {
+            return;
+        }
+        CURRENT.remove();
+        bound = false;
+        caches.clear();
+    }
+
+    /**
+     * Returns {@code true} if the value of the key in the cache is known to this scope.
+     *
+     * @param cache the cache.
+     * @param key   the key.
+     * @return {@code true} if the value is known.
+     */
+    boolean contains(InfinispanCache<?, ?> cache, Object key) {
+        Entries entries = caches.get(cache);
+        return entries != null && entries.values.containsKey(key);
+    }
+
+    /**
+     * Returns the value of the key in the cache known to this scope.
+     *
+     * @param cache the cache.
+     * @param key   the key.
+     * @return the value, or {@code null} if the key has no value or its value is not known.
+     */
+    Object get(InfinispanCache<?, ?> cache, Object key) {
+        Entries entries = caches.get(cache);
+        return entries != null ? unwrap(entries.values.get(key)) : null;
+    }
+
+    /**
+     * Remembers the value read for the key in the cache.
+     *
+     * @param cache the cache.
+     * @param key   the key.
+     * @param value the value read, or {@code null} if there is none.
+     */
+    void remember(InfinispanCache<?, ?> cache, Object key, Object value) {
+        entries(cache).values.put(key, value != null ? value : ABSENT);
+    }
+
+    /**
+     * Defers writing the value of the key in the cache until this scope is restored.
+     *
+     * @param cache the cache.
+     * @param key   the key.
+     * @param value the value, or {@code null} to remove the entry.
+     * @return the previous value known to this scope, or {@code null}.
+     */
+    Object write(InfinispanCache<?, ?> cache, Object key, Object value) {
+        Entries entries = entries(cache);
+        Object previous = entries.values.put(key, value != null ? value : ABSENT);
+        entries.writes.put(key, value != null ? value : REMOVED);
+        return unwrap(previous);
+    }
+
+    /**
+     * Forgets the values and deferred writes of the keys in the cache, because they are read or
+     * written by an operation bypassing this scope.
+     *
+     * @param cache the cache.
+     * @param keys  the keys.
+     */
+    void forget(InfinispanCache<?, ?> cache, Collection<?> keys) {
+        Entries entries = caches.get(cache);
+        if (entries != null) {
+            for (Object key : keys) {
+                entries.values.remove(key);
+                entries.writes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets all values and deferred writes of the cache.
+     *
+     * @param cache the cache.
+     */
+    void forget(InfinispanCache<?, ?> cache) {
+        caches.remove(cache);
+    }
+
+    private Entries entries(InfinispanCache<?, ?> cache) {
+        Entries entries = caches.get(cache);
+        if (entries == null) {
+            entries = new Entries();
+            caches.put(cache, entries);
+        }
+        return entries;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == ABSENT ? null : value;
+    }
+
+    /**
+     * Memoized values and deferred writes of one cache.
+     */
+    private static final class Entries {
+
+        /**
+         * Known values, per key; {@link #ABSENT} for keys without a value.
+         */
+        final Map<Object, Object> values = new HashMap<Object, Object>();
+
+        /**
+         * Deferred writes, per key; {@link #REMOVED} for removals.
+         */
+        final Map<Object, Object> writes = new LinkedHashMap<Object, Object>();
+
+        @SuppressWarnings("unchecked")
+        void writeTo(InfinispanCache cache) {
+            if (writes.isEmpty()) {
+                return;
+            }
+            Map<Object, Object> puts = new LinkedHashMap<Object, Object>(writes.size());
+            Set<Object> removals = new HashSet<Object>();
+            for (Map.Entry<Object, Object> write : writes.entrySet()) {
+                if (write.getValue() == REMOVED) {
+                    removals.add(write.getKey());
+                } else {
+                    puts.put(write.getKey(), write.getValue());
+                }
+            }
+            if (!puts.isEmpty()) {
+                cache.putAll(puts);
+            }
+            if (!removals.isEmpty()) {
+                cache.removeAll(removals);
+            }
+        }
+    }
+}
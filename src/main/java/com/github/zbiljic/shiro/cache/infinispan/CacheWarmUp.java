@@ -0,0 +1,305 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.marshall.core.MarshalledEntry;
+import org.infinispan.metadata.InternalMetadata;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.persistence.manager.PersistenceManager;
+import org.infinispan.persistence.spi.AdvancedCacheLoader;
+import org.infinispan.util.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the persisted entries of an embedded Infinispan cache into memory while the cache is
+ * already serving requests.
+ *
+ * The keys and metadata of the entries are read from every store of the cache in parallel,
+ * skipping expired entries and, for distributed caches, entries this node does not own. They are
+ * then ordered most recently used first: by the access or creation time in their metadata when the
+ * cache tracks one, and otherwise in the order the store reports them ({@code LogStore} reports
+ * the most recently written first). If the cache limits the number of its entries, only that many
+ * of the most recent are kept. A fork-join task splits the ordered entries in halves, so the
+ * thread that starts the insertion works through the most recent entries while idle threads take
+ * older ones. Values are only read from the store when their entry is inserted, so no more of
+ * them are held in memory than the cache keeps.
+ *
+ * Entries are inserted with {@code putIfAbsent} on this node only, without touching the stores
+ * and without waiting for locks, so a value written by a request in the meantime always wins.
+ * Keys that are written, removed or invalidated while the warm-up runs are remembered and never
+ * inserted from the store snapshot, so that, for example, a session deleted at logout does not
+ * come back. An entry inserted just before such a change is noticed is removed again.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class CacheWarmUp implements Runnable {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(CacheWarmUp.class);
+
+    /**
+     * Number of entries inserted by one fork-join task without splitting further.
+     */
+    static final int BATCH_SIZE = 256;
+
+    private static final Comparator<Candidate> MOST_RECENT_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            if (a.recency != b.recency) {
+                return a.recency > b.recency ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final AdvancedCache<Object, Object> cache;
+
+    private final ForkJoinPool pool;
+
+    private final CountDownLatch done;
+
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    /**
+     * Keys changed by others since the warm-up started, whose persisted values are stale.
+     */
+    private final Set<Object> changed = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Set while the current thread writes to the cache on behalf of the warm-up.
+     */
+    private final ThreadLocal<Boolean> inserting = new ThreadLocal<Boolean>();
+
+    private final ChangeTracker tracker = new ChangeTracker();
+
+    CacheWarmUp(AdvancedCache<Object, Object> cache, ForkJoinPool pool, CountDownLatch done) {
+        this.cache = cache;
+        this.pool = pool;
+        this.done = done;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+        cache.addListener(tracker);
+        try {
+            warmUp();
+            if (log.isInfoEnabled()) {
+                log.info("Loaded {} persisted entries into InfinispanCache named [{}] in {} ms.", loaded.get(),
+                        cache.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            }
+        } catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to load persisted entries into InfinispanCache named [" + cache.getName() +
+                        "].  Entries will be loaded on first access.", e);
+            }
+        } finally {
+            cache.removeListener(tracker);
+            done.countDown();
+        }
+    }
+
+    private void warmUp() {
+        PersistenceManager persistenceManager = cache.getComponentRegistry().getComponent(PersistenceManager.class);
+        if (persistenceManager == null) {
+            return;
+        }
+        final DistributionManager distributionManager = cache.getDistributionManager();
+        final long now = cache.getComponentRegistry().getComponent(TimeService.class).wallClockTime();
+        final Queue<Candidate> candidates = new ConcurrentLinkedQueue<Candidate>();
+        final AtomicLong sequence = new AtomicLong();
+
+        AdvancedCacheLoader.KeyFilter<Object> filter = null;
+        if (distributionManager != null) {
+            filter = new AdvancedCacheLoader.KeyFilter<Object>() {
+                @Override
+                public boolean shouldLoadKey(Object key) {
+                    return distributionManager.getLocality(key).isLocal();
+                }
+            };
+        }
+        @SuppressWarnings("unchecked")
+        Set<AdvancedCacheLoader<Object, Object>> stores =
+                (Set<AdvancedCacheLoader<Object, Object>>) (Set<?>) persistenceManager.getStores(AdvancedCacheLoader.class);
+        for (final AdvancedCacheLoader<Object, Object> store : stores) {
+            store.process(filter, new AdvancedCacheLoader.CacheLoaderTask<Object, Object>() {
+                @Override
+                public void processEntry(MarshalledEntry<Object, Object> entry, AdvancedCacheLoader.TaskContext context) {
+                    InternalMetadata metadata = entry.getMetadata();
+                    if (metadata == null || !metadata.isExpired(now)) {
+                        candidates.add(new Candidate(store, entry.getKey(), recency(metadata), sequence.getAndIncrement()));
+                    }
+                }
+            }, pool, false, true);
+        }
+
+        Candidate[] ordered = candidates.toArray(new Candidate[candidates.size()]);
+        Arrays.sort(ordered, MOST_RECENT_FIRST);
+        int count = ordered.length;
+        int maxEntries = cache.getCacheConfiguration().eviction().maxEntries();
+        if (maxEntries > 0 && maxEntries < count) {
+            count = maxEntries;
+        }
+        AdvancedCache<Object, Object> target = cache.withFlags(Flag.CACHE_MODE_LOCAL, Flag.SKIP_OWNERSHIP_CHECK,
+                Flag.SKIP_CACHE_STORE, Flag.SKIP_CACHE_LOAD, Flag.SKIP_REMOTE_LOOKUP,
+                Flag.ZERO_LOCK_ACQUISITION_TIMEOUT, Flag.FAIL_SILENTLY);
+        pool.invoke(new Insert(target, ordered, 0, count));
+    }
+
+    private static long recency(InternalMetadata metadata) {
+        return metadata == null ? -1 : Math.max(metadata.lastUsed(), metadata.created());
+    }
+
+    /**
+     * A persisted entry waiting to be loaded.
+     */
+    private static final class Candidate {
+
+        /**
+         * The store holding the entry.
+         */
+        final AdvancedCacheLoader<Object, Object> store;
+
+        final Object key;
+
+        final long recency;
+
+        final long sequence;
+
+        Candidate(AdvancedCacheLoader<Object, Object> store, Object key, long recency, long sequence) {
+            this.store = store;
+            this.key = key;
+            this.recency = recency;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Inserts a range of ordered entries, the more recent half first.
+     */
+    private final class Insert extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AdvancedCache<Object, Object> target;
+
+        private final Candidate[] candidates;
+
+        private final int from;
+
+        private final int to;
+
+        Insert(AdvancedCache<Object, Object> target, Candidate[] candidates, int from, int to) {
+            this.target = target;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    insert(candidates[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            Insert older = new Insert(target, candidates, middle, to);
+            older.fork();
+            new Insert(target, candidates, from, middle).compute();
+            older.join();
+        }
+
+        private void insert(Candidate candidate) {
+            Object key = candidate.key;
+            if (changed.contains(key)) {
+                return;
+            }
+            MarshalledEntry<Object, Object> entry = candidate.store.load(key);
+            if (entry == null) {
+                return;
+            }
+            InternalMetadata metadata = entry.getMetadata();
+            Object value = EmbeddedCaches.unwrap(entry.getValue());
+            inserting.set(Boolean.TRUE);
+            try {
+                Object previous = metadata == null
+                        ? target.putIfAbsent(key, value)
+                        : target.putIfAbsent(key, value, metadata);
+                if (previous != null) {
+                    return;
+                }
+                if (changed.contains(key)) {
+                    // changed between the check and the insert, the store no longer holds this value
+                    target.remove(key, value);
+                } else {
+                    loaded.incrementAndGet();
+                }
+            } finally {
+                inserting.remove();
+            }
+        }
+    }
+
+    /**
+     * Records the keys changed by others while the warm-up runs.
+     */
+    @Listener
+    public final class ChangeTracker {
+
+        @CacheEntryModified
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onChange(CacheEntryEvent event) {
+            if (inserting.get() == null) {
+                changed.add(event.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.container.DataContainer;
+import org.infinispan.container.entries.InternalCacheEntry;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Lazy, read-only views over the entries held in the local {@link
+ * org.infinispan.container.DataContainer} of an embedded Infinispan cache.
+ *
+ * The views stream entries straight from the data container while they are iterated: nothing is
+ * copied up front and no per-key cache lookup is performed. Expired entries are skipped. If
+ * {@link CacheMetrics} are given, every iteration that runs to completion is recorded as a scan.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class DataContainerViews {
+
+    private DataContainerViews() {
+    }
+
+    /**
+     * Returns a read-only view of the keys in the given data container.
+     *
+     * @param container the data container.
+     * @param metrics   the metrics receiving scan measurements, or {@code null}.
+     * @return a read-only view of the keys in the data container.
+     */
+    static <K> Set<K> keys(final DataContainer container, final CacheMetrics metrics) {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new EntryIterator<K>(container.iterator(), metrics) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    K extract(InternalCacheEntry entry) {
+                        return (K) entry.getKey();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                if (key == null) {
+                    return false;
+                }
+                InternalCacheEntry entry = container.peek(key);
+                return entry != null && !entry.isExpired(System.currentTimeMillis());
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return !iterator().hasNext();
+            }
+
+            @Override
+            public int size() {
+                return container.size();
+            }
+        };
+    }
+
+    /**
+     * Returns a read-only view of the values in the given data container.
+     *
+     * @param container the data container.
+     * @param metrics   the metrics receiving scan measurements, or {@code null}.
+     * @return a read-only view of the values in the data container.
+     */
+    static <V> Collection<V> values(final DataContainer container, final CacheMetrics metrics) {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new EntryIterator<V>(container.iterator(), metrics) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    V extract(InternalCacheEntry entry) {
+                        return (V) EmbeddedCaches.unwrap(entry.getValue());
+                    }
+                };
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return !iterator().hasNext();
+            }
+
+            @Override
+            public int size() {
+                return container.size();
+            }
+        };
+    }
+
+    /**
+     * Iterator that skips expired and {@code null} valued entries and maps the remaining ones to
+     * the requested element type.
+     */
+    private abstract static class EntryIterator<E> implements Iterator<E> {
+
+        private final Iterator<InternalCacheEntry> entries;
+
+        private final long now = System.currentTimeMillis();
+
+        private final CacheMetrics metrics;
+
+        private final long start;
+
+        private int visited;
+
+        private boolean done;
+
+        private E next;
+
+        EntryIterator(Iterator<InternalCacheEntry> entries, CacheMetrics metrics) {
+            this.entries = entries;
+            this.metrics = metrics;
+            this.start = metrics != null ? System.nanoTime() : 0L;
+        }
+
+        abstract E extract(InternalCacheEntry entry);
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                InternalCacheEntry entry = entries.next();
+                if (entry.getValue() != null && !entry.isExpired(now)) {
+                    next = extract(entry);
+                    visited++;
+                }
+            }
+            if (next == null && !done) {
+                done = true;
+                if (metrics != null) {
+                    metrics.recordScan(visited, System.nanoTime() - start);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            E result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Cache views are read-only.");
+        }
+    }
+}
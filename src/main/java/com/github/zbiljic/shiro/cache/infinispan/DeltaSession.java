@@ -0,0 +1,324 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link org.apache.shiro.session.mgt.SimpleSession} that records its changes, so that an
+ * embedded {@link InfinispanCache} writes only the changed fields and attributes of the session
+ * instead of the whole session.
+ *
+ * The changes are taken as a {@link SessionDelta} when the session is put, which is shipped to
+ * the owners of the session and merged into the session they hold. Touching a session thus
+ * replicates only its new {@code lastAccessTime}, whatever the size of its attributes. Sessions
+ * are created with {@link DeltaSessionFactory}; the first delta of a new session carries all of
+ * it. If the owners hold no session to merge the changes into, e.g. because it was evicted
+ * without a cache store, the whole session is written instead.
+ *
+ * Only changes made through the methods of the session are recorded: after modifying an
+ * attribute value in place, set the attribute again. Changes stay recorded until a delta
+ * containing them has been written, so a failed write is repeated by the next one.
+ *
+ * This class requires {@code infinispan-core} on the classpath. Hot Rod remote caches always
+ * write the whole session.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class DeltaSession extends SimpleSession implements DeltaAware {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int START_TIMESTAMP = 1;
+
+    static final int STOP_TIMESTAMP = 1 << 1;
+
+    static final int LAST_ACCESS_TIME = 1 << 2;
+
+    static final int TIMEOUT = 1 << 3;
+
+    static final int EXPIRED = 1 << 4;
+
+    static final int HOST = 1 << 5;
+
+    /**
+     * Indicates if the next delta carries the whole session, e.g. because it is new.
+     */
+    private transient boolean full;
+
+    /**
+     * Changed fields, as a bit mask.
+     */
+    private transient int changedFields;
+
+    /**
+     * Changed attributes, with {@code null} values for removed attributes; {@code null} if there
+     * are none.
+     */
+    private transient Map<Object, Object> changedAttributes;
+
+    /**
+     * Number of recorded changes.
+     */
+    private transient long version;
+
+    /**
+     * Number of recorded changes contained in the last delta.
+     */
+    private transient long deltaVersion;
+
+    public DeltaSession() {
+        super();
+        this.full = true;
+    }
+
+    public DeltaSession(String host) {
+        super(host);
+        this.full = true;
+    }
+
+    @Override
+    public synchronized void setId(Serializable id) {
+        super.setId(id);
+        changedAll();
+    }
+
+    @Override
+    public synchronized void setStartTimestamp(Date startTimestamp) {
+        super.setStartTimestamp(startTimestamp);
+        changed(START_TIMESTAMP);
+    }
+
+    @Override
+    public synchronized void setStopTimestamp(Date stopTimestamp) {
+        super.setStopTimestamp(stopTimestamp);
+        changed(STOP_TIMESTAMP);
+    }
+
+    @Override
+    public synchronized void setLastAccessTime(Date lastAccessTime) {
+        super.setLastAccessTime(lastAccessTime);
+        changed(LAST_ACCESS_TIME);
+    }
+
+    @Override
+    public synchronized void setExpired(boolean expired) {
+        super.setExpired(expired);
+        changed(EXPIRED);
+    }
+
+    @Override
+    public synchronized void setTimeout(long timeout) {
+        super.setTimeout(timeout);
+        changed(TIMEOUT);
+    }
+
+    @Override
+    public synchronized void setHost(String host) {
+        super.setHost(host);
+        changed(HOST);
+    }
+
+    @Override
+    public synchronized void setAttributes(Map<Object, Object> attributes) {
+        super.setAttributes(attributes);
+        changedAll();
+    }
+
+    @Override
+    public synchronized void touch() {
+        super.touch();
+        changed(LAST_ACCESS_TIME);
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        changed(STOP_TIMESTAMP);
+    }
+
+    @Override
+    protected synchronized void expire() {
+        super.expire();
+        changed(EXPIRED);
+    }
+
+    @Override
+    public synchronized void setAttribute(Object key, Object value) {
+        super.setAttribute(key, value);
+        if (value != null) {
+            changedAttribute(key, value);
+        }
+    }
+
+    @Override
+    public synchronized Object removeAttribute(Object key) {
+        Object removed = super.removeAttribute(key);
+        changedAttribute(key, null);
+        return removed;
+    }
+
+    private void changed(int field) {
+        changedFields |= field;
+        version++;
+    }
+
+    private void changedAll() {
+        full = true;
+        version++;
+    }
+
+    private void changedAttribute(Object key, Object value) {
+        if (changedAttributes == null) {
+            changedAttributes = new LinkedHashMap<Object, Object>();
+        }
+        changedAttributes.put(key, value);
+        version++;
+    }
+
+    /**
+     * Returns the changes recorded since the last {@link #commit() committed} delta.
+     *
+     * @return the changes of this session, or all of it if it is new.
+     */
+    @Override
+    public synchronized Delta delta() {
+        deltaVersion = version;
+        return full ? SessionDelta.of(this) : SessionDelta.of(this, changedFields, changedAttributes);
+    }
+
+    /**
+     * Returns all of this session as a delta, for owners holding no session to merge the recorded
+     * changes into. Recorded changes are kept until the last delta taken by {@link #delta()} is
+     * committed.
+     *
+     * @return the whole session.
+     */
+    synchronized Delta fullDelta() {
+        return SessionDelta.of(this);
+    }
+
+    /**
+     * Discards the recorded changes once the last delta has been written, unless the session has
+     * changed since the delta was taken. Writing the same changes again is harmless, so in that
+     * case they are kept for the next delta.
+     */
+    @Override
+    public synchronized void commit() {
+        if (version == deltaVersion) {
+            discardChanges();
+        }
+    }
+
+    /**
+     * Returns {@code true} if there are recorded changes that have not been committed.
+     *
+     * @return {@code true} if the session has changed since the last committed delta.
+     */
+    public synchronized boolean isChanged() {
+        return full || changedFields != 0 || changedAttributes != null;
+    }
+
+    /**
+     * Forgets the recorded changes, e.g. after the session has been read from its serialized
+     * form.
+     */
+    synchronized void discardChanges() {
+        full = false;
+        changedFields = 0;
+        changedAttributes = null;
+    }
+
+    /**
+     * Returns a copy of this session, without recorded changes, sharing the attribute values.
+     *
+     * @return a copy of this session.
+     */
+    synchronized DeltaSession copy() {
+        DeltaSession copy = new DeltaSession();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    private void copyFrom(SimpleSession source) {
+        super.setId(source.getId());
+        super.setStartTimestamp(source.getStartTimestamp());
+        super.setStopTimestamp(source.getStopTimestamp());
+        super.setLastAccessTime(source.getLastAccessTime());
+        super.setTimeout(source.getTimeout());
+        super.setExpired(source.isExpired());
+        super.setHost(source.getHost());
+        Map<Object, Object> attributes = source.getAttributes();
+        super.setAttributes(attributes != null ? new LinkedHashMap<Object, Object>(attributes) : null);
+        discardChanges();
+    }
+
+    /**
+     * Applies the changes of the delta to this session, without recording them.
+     *
+     * @param delta the changes.
+     */
+    synchronized void apply(SessionDelta delta) {
+        if (delta.isFull()) {
+            super.setId(delta.getId());
+            super.setAttributes(null);
+        }
+        int fields = delta.getFields();
+        if ((fields & START_TIMESTAMP) != 0) {
+            super.setStartTimestamp(delta.getStartTimestamp());
+        }
+        if ((fields & STOP_TIMESTAMP) != 0) {
+            super.setStopTimestamp(delta.getStopTimestamp());
+        }
+        if ((fields & LAST_ACCESS_TIME) != 0) {
+            super.setLastAccessTime(delta.getLastAccessTime());
+        }
+        if ((fields & TIMEOUT) != 0) {
+            super.setTimeout(delta.getTimeout());
+        }
+        if ((fields & EXPIRED) != 0) {
+            super.setExpired(delta.isExpired());
+        }
+        if ((fields & HOST) != 0) {
+            super.setHost(delta.getHost());
+        }
+        Map<Object, Object> attributes = delta.getAttributes();
+        if (attributes != null) {
+            for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                if (entry.getValue() != null) {
+                    super.setAttribute(entry.getKey(), entry.getValue());
+                } else {
+                    super.removeAttribute(entry.getKey());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.util.concurrent.WithinThreadExecutor;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Writes the changes of delta-aware values to an embedded Infinispan cache instead of the values
+ * themselves. Infinispan merges them into the value held by each owner of the key.
+ *
+ * Owners holding no session refuse the changes of a {@link SessionDelta}, rather than creating a
+ * session holding only them, e.g. after the session was evicted without a cache store; the whole
+ * session is then written instead. To tell, the changes are written by a task executed on an
+ * owner, which reports only whether they were merged. Neither the previous value nor the merged
+ * one is sent back to this node.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class DeltaWrites {
+
+    private final AdvancedCache<Object, Object> cache;
+
+    /**
+     * Writes whole values, whose previous value is neither needed to merge them nor returned.
+     */
+    private final AdvancedCache<Object, Object> replacingCache;
+
+    /**
+     * Executes writes of changes on the owners; {@code null} if the cache is not distributed.
+     */
+    private final DistributedExecutorService executor;
+
+    DeltaWrites(AdvancedCache<Object, Object> cache) {
+        this.cache = cache;
+        this.replacingCache = cache.withFlags(Flag.DELTA_WRITE, Flag.SKIP_REMOTE_LOOKUP, Flag.IGNORE_RETURN_VALUES);
+        this.executor = BulkOperations.isDistributed(cache)
+                ? new DefaultExecutorService(cache, new WithinThreadExecutor(), true) : null;
+    }
+
+    /**
+     * Writes the changes of the value and commits them once they are written.
+     *
+     * @param key   the key.
+     * @param value the {@link org.infinispan.atomic.DeltaAware} value.
+     */
+    void put(Object key, Object value) {
+        DeltaAware deltaAware = (DeltaAware) value;
+        write(key, deltaAware, deltaAware.delta());
+        deltaAware.commit();
+    }
+
+    /**
+     * Asynchronously writes the changes of the value. The changes are taken before this method
+     * returns, and committed once they are written.
+     *
+     * @param key   the key.
+     * @param value the {@link org.infinispan.atomic.DeltaAware} value.
+     * @return a future holding {@code null}, notifying its listeners once it is done.
+     */
+    <V> NotifyingFuture<V> putAsync(final Object key, Object value) {
+        final DeltaAware deltaAware = (DeltaAware) value;
+        final Delta delta = deltaAware.delta();
+        return EmbeddedCaches.submit(cache, new NotifyingFutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                write(key, deltaAware, delta);
+                deltaAware.commit();
+                return null;
+            }
+        }));
+    }
+
+    private void write(Object key, DeltaAware deltaAware, Delta delta) {
+        if (delta instanceof SessionDelta && !((SessionDelta) delta).isFull() && !writeChanges(key, delta)) {
+            delta = ((DeltaSession) deltaAware).fullDelta();
+        }
+        replacingCache.put(key, delta);
+    }
+
+    /**
+     * Writes the changes on an owner of the key.
+     *
+     * @return {@code true} if the changes were written, {@code false} if the owner holds no
+     * value to merge them into.
+     */
+    private boolean writeChanges(Object key, Delta delta) {
+        WriteChanges task = new WriteChanges(delta);
+        if (executor == null || EmbeddedCaches.isLocal(cache, key)) {
+            task.setEnvironment(cache, null);
+            task.key = key;
+            return task.call();
+        }
+        try {
+            return executor.submit(task, key).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing changes of [" + key + "].", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Merges changes into the value held by the node it is executed on, if it holds one. The
+     * value is loaded from the cache stores if it is not in memory; it is not returned.
+     */
+    static final class WriteChanges implements DistributedCallable<Object, Object, Boolean>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Delta delta;
+
+        private transient Cache<Object, Object> cache;
+
+        private transient Object key;
+
+        WriteChanges(Delta delta) {
+            this.delta = delta;
+        }
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache.getAdvancedCache().withFlags(Flag.DELTA_WRITE, Flag.SKIP_REMOTE_LOOKUP);
+            if (inputKeys != null) {
+                this.key = inputKeys.iterator().next();
+            }
+        }
+
+        @Override
+        public Boolean call() {
+            if (!cache.containsKey(key)) {
+                return false;
+            }
+            cache.put(key, delta);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.ValidatingSession;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.util.concurrent.WithinThreadExecutor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Finds invalid sessions in an embedded Infinispan session cache on the nodes holding them.
+ *
+ * For distributed caches, every node checks the sessions it is the primary owner of and returns
+ * the ids of those that are stopped or expired, so only these ids cross the network. Other caches
+ * hold all sessions on every node and are checked locally.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class DistributedSessionValidation {
+
+    private DistributedSessionValidation() {
+    }
+
+    /**
+     * Returns {@code true} if this node should validate the sessions of the given cache. In a
+     * cluster only the coordinator does, so sessions are validated once per interval no matter
+     * how many nodes schedule the validation.
+     *
+     * @param cache embedded Infinispan session cache.
+     * @return {@code true} if this node should validate the sessions.
+     */
+    static boolean isResponsible(BasicCache cache) {
+        EmbeddedCacheManager cacheManager = EmbeddedCaches.advanced(cache).getCacheManager();
+        return cacheManager.getTransport() == null || cacheManager.isCoordinator();
+    }
+
+    /**
+     * Returns the ids of the stopped or expired sessions in the given cache.
+     *
+     * @param cache embedded Infinispan session cache.
+     * @return the ids of the invalid sessions.
+     * @throws Exception if the sessions of any node could not be checked.
+     */
+    static List<Serializable> findInvalidSessionIds(BasicCache cache) throws Exception {
+        AdvancedCache<Object, Object> advancedCache = EmbeddedCaches.advanced(cache);
+        if (advancedCache.getDistributionManager() == null) {
+            FindInvalidSessions task = new FindInvalidSessions();
+            task.setEnvironment(advancedCache, null);
+            return task.call();
+        }
+        DefaultExecutorService executor = new DefaultExecutorService(advancedCache, new WithinThreadExecutor(), true);
+        try {
+            List<Serializable> ids = new ArrayList<Serializable>();
+            for (Future<ArrayList<Serializable>> future : executor.submitEverywhere(new FindInvalidSessions())) {
+                ids.addAll(future.get());
+            }
+            return ids;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the ids of the invalid sessions held by the node it is executed on, restricted to
+     * the sessions the node is the primary owner of if the cache is distributed.
+     */
+    static final class FindInvalidSessions implements DistributedCallable<Object, Object, ArrayList<Serializable>>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient AdvancedCache<Object, Object> cache;
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache.getAdvancedCache();
+        }
+
+        @Override
+        public ArrayList<Serializable> call() {
+            DistributionManager distributionManager = cache.getDistributionManager();
+            Address self = cache.getCacheManager().getAddress();
+            long now = System.currentTimeMillis();
+            ArrayList<Serializable> ids = new ArrayList<Serializable>();
+            for (InternalCacheEntry entry : cache.getDataContainer()) {
+                if (entry.isExpired(now)) {
+                    continue;
+                }
+                Object key = entry.getKey();
+                if (distributionManager != null && !self.equals(distributionManager.getPrimaryLocation(key))) {
+                    continue;
+                }
+                if (isInvalid(EmbeddedCaches.unwrap(entry.getValue()), now) && key instanceof Serializable) {
+                    ids.add((Serializable) key);
+                }
+            }
+            return ids;
+        }
+
+        /**
+         * Checks the session without changing it. {@code SimpleSession} only notices it has
+         * timed out when it is validated, so its timeout is checked here as well.
+         */
+        private static boolean isInvalid(Object value, long now) {
+            if (value instanceof SimpleSession) {
+                SimpleSession session = (SimpleSession) value;
+                if (session.getStopTimestamp() != null || session.isExpired()) {
+                    return true;
+                }
+                long timeout = session.getTimeout();
+                Date lastAccessTime = session.getLastAccessTime();
+                return timeout >= 0 && lastAccessTime != null && lastAccessTime.getTime() + timeout < now;
+            }
+            return value instanceof ValidatingSession && !((ValidatingSession) value).isValid();
+        }
+    }
+}
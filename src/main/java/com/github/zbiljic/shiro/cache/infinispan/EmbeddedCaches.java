@@ -0,0 +1,248 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.atomic.DeltaAware;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.marshall.core.MarshalledValue;
+import org.infinispan.context.Flag;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Helper methods for features that are only available when the wrapped cache is an embedded
+ * Infinispan {@link org.infinispan.AdvancedCache}.
+ *
+ * This class references {@code infinispan-core} types directly, so callers must make sure that
+ * {@code infinispan-core} is on the classpath before using it (see {@link
+ * InfinispanCache#EMBEDDED_AVAILABLE}).
+ *
+ * @author Nemanja Zbiljic
+ */
+final class EmbeddedCaches {
+
+    private EmbeddedCaches() {
+    }
+
+    /**
+     * Returns {@code true} if the given cache is an embedded Infinispan cache.
+     *
+     * @param cache the cache to check.
+     * @return {@code true} if the given cache is an embedded Infinispan cache.
+     */
+    static boolean isEmbedded(BasicCache cache) {
+        return cache instanceof AdvancedCache || cache instanceof org.infinispan.Cache;
+    }
+
+    /**
+     * Returns the {@link org.infinispan.AdvancedCache} view of the given embedded cache.
+     *
+     * @param cache embedded Infinispan cache.
+     * @return the advanced cache view of the given cache.
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> AdvancedCache<K, V> advanced(BasicCache cache) {
+        if (cache instanceof AdvancedCache) {
+            return (AdvancedCache<K, V>) cache;
+        }
+        return ((org.infinispan.Cache<K, V>) cache).getAdvancedCache();
+    }
+
+    /**
+     * Returns a view of the given cache whose write operations neither return, nor fetch from
+     * remote owners or stores, the previous value of the entry.
+     *
+     * @param cache the cache to decorate.
+     * @return a write-only view of the cache, or the cache itself if it is not an embedded one.
+     */
+    static BasicCache ignoreReturnValues(BasicCache cache) {
+        if (!isEmbedded(cache)) {
+            return cache;
+        }
+        return advanced(cache).withFlags(Flag.IGNORE_RETURN_VALUES, Flag.SKIP_REMOTE_LOOKUP);
+    }
+
+    /**
+     * Returns {@code true} if the value is written to embedded caches as its delta.
+     *
+     * @param value the value.
+     * @return {@code true} if the value is {@link org.infinispan.atomic.DeltaAware}.
+     */
+    static boolean isDeltaAware(Object value) {
+        return value instanceof DeltaAware;
+    }
+
+    /**
+     * Returns the writer of the changes of delta-aware values to the given embedded cache.
+     *
+     * @param cache embedded Infinispan cache.
+     * @return the writer of changes.
+     */
+    static DeltaWrites deltaWrites(BasicCache cache) {
+        return new DeltaWrites(EmbeddedCaches.<Object, Object>advanced(cache));
+    }
+
+    /**
+     * Asynchronously writes the value. Unlike {@link BasicCache#putAsync(Object, Object)}, the
+     * listeners of the returned future are notified once its result is set, so they may read it.
+     *
+     * @param cache embedded Infinispan cache.
+     * @param key   the key.
+     * @param value the value.
+     * @return a future holding the previous value.
+     */
+    static <V> NotifyingFuture<V> putAsync(final BasicCache cache, final Object key, final Object value) {
+        NotifyingFutureTask<V> task = new NotifyingFutureTask<V>(new Callable<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public V call() {
+                return (V) cache.put(key, value);
+            }
+        });
+        return submit(cache, task);
+    }
+
+    /**
+     * Runs the task on the asynchronous transport executor of the cache manager, like the
+     * asynchronous operations of Infinispan.
+     *
+     * @param cache embedded Infinispan cache.
+     * @param task  the task.
+     * @return the task.
+     */
+    static <V> NotifyingFuture<V> submit(BasicCache cache, NotifyingFutureTask<V> task) {
+        ExecutorService executor = advanced(cache).getComponentRegistry()
+                .getComponent(ExecutorService.class, KnownComponentNames.ASYNC_TRANSPORT_EXECUTOR);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns a lazy, read-only view of the keys held locally by the given embedded cache.
+     *
+     * @param cache   embedded Infinispan cache.
+     * @param metrics the metrics receiving scan measurements, or {@code null}.
+     * @return a lazy view of the local keys.
+     * @see DataContainerViews#keys(org.infinispan.container.DataContainer, CacheMetrics)
+     */
+    static <K> Set<K> keys(BasicCache cache, CacheMetrics metrics) {
+        return DataContainerViews.keys(advanced(cache).getDataContainer(), metrics);
+    }
+
+    /**
+     * Returns a lazy, read-only view of the values held locally by the given embedded cache.
+     *
+     * @param cache   embedded Infinispan cache.
+     * @param metrics the metrics receiving scan measurements, or {@code null}.
+     * @return a lazy view of the local values.
+     * @see DataContainerViews#values(org.infinispan.container.DataContainer, CacheMetrics)
+     */
+    static <V> Collection<V> values(BasicCache cache, CacheMetrics metrics) {
+        return DataContainerViews.values(advanced(cache).getDataContainer(), metrics);
+    }
+
+    /**
+     * Returns the value held by an entry of a data container, a cache store or a cache event.
+     * Caches storing their values as binary hold them wrapped in a {@link MarshalledValue}, which
+     * is deserialized.
+     *
+     * @param value the held value.
+     * @return the value, deserialized if needed.
+     */
+    static Object unwrap(Object value) {
+        return value instanceof MarshalledValue ? ((MarshalledValue) value).get() : value;
+    }
+
+    /**
+     * Returns {@code true} if the given key is owned by this node, as opposed to being owned by
+     * other nodes only. Copies held in L1 do not count.
+     *
+     * @param cache embedded Infinispan cache.
+     * @param key   the key.
+     * @return {@code true} if the key is owned locally, or the cache is not distributed.
+     */
+    static boolean isLocal(BasicCache cache, Object key) {
+        DistributionManager distributionManager = advanced(cache).getDistributionManager();
+        return distributionManager == null || distributionManager.getLocality(key).isLocal();
+    }
+
+    /**
+     * Returns the time at which the entry for the given key held in the local data container of
+     * the given embedded cache expires, without touching it.
+     *
+     * @param cache embedded Infinispan cache.
+     * @param key   the key.
+     * @return the expiry time in milliseconds since the epoch, or {@code -1} if the entry is not
+     * held locally or never expires.
+     */
+    static long expiryTime(BasicCache cache, Object key) {
+        InternalCacheEntry entry = advanced(cache).getDataContainer().peek(key);
+        return entry != null ? entry.getExpiryTime() : -1;
+    }
+
+    /**
+     * Returns the size of the given value once serialized by the marshaller of the given
+     * embedded cache.
+     *
+     * @param cache embedded Infinispan cache.
+     * @param value the value.
+     * @return the serialized size of the value, in bytes.
+     * @throws Exception if the value cannot be serialized.
+     */
+    static int serializedSize(BasicCache cache, Object value) throws Exception {
+        return advanced(cache).getComponentRegistry().getCacheMarshaller().objectToBuffer(value).getLength();
+    }
+
+    /**
+     * Returns the bulk operations executing on the key owners of the given embedded cache.
+     *
+     * @param cache embedded Infinispan cache.
+     * @return the bulk operations, or {@code null} if the cache is not distributed.
+     */
+    static BulkOperations bulkOperations(BasicCache cache) {
+        AdvancedCache advancedCache = advanced(cache);
+        return BulkOperations.isDistributed(advancedCache) ? new BulkOperations(advancedCache) : null;
+    }
+
+    /**
+     * Returns the keys of the cached authorization info satisfying the given condition, searched
+     * on the nodes holding the entries.
+     *
+     * @param cache embedded Infinispan authorization cache.
+     * @param match the condition.
+     * @return the keys of the matching entries.
+     * @throws Exception if the entries of any node could not be searched.
+     */
+    static Set<Object> findAuthorizationKeys(BasicCache cache, AuthorizationMatch match) throws Exception {
+        return AuthorizationIndex.findKeys(EmbeddedCaches.<Object, Object>advanced(cache), match);
+    }
+}
@@ -25,45 +25,300 @@ package com.github.zbiljic.shiro.cache.infinispan;
 
 import org.apache.shiro.cache.Cache;
 import org.apache.shiro.cache.CacheException;
+import org.apache.shiro.util.ClassUtils;
 import org.apache.shiro.util.CollectionUtils;
 import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Shiro {@link org.apache.shiro.cache.Cache} implementation that wraps an {@link
  * org.infinispan.commons.api.BasicCache} instance.
  *
+ * Non-blocking variants of the cache operations are available through the {@link
+ * AsyncInfinispanCache} interface, operations on many entries at once through the {@link
+ * BulkInfinispanCache} interface and removal of cached authorization info by role or permission
+ * through the {@link AuthorizationCache} interface. Missing values can be loaded once per key,
+ * however many callers miss them concurrently, through the {@link LoadingInfinispanCache}
+ * interface.
+ *
+ * Caches configured as {@link InfinispanCacheManager#setRequestScopedCacheNames(Set)
+ * request-scoped} serve repeated reads from, and defer writes to, the {@link CacheRequestScope}
+ * bound to the calling thread.
+ *
+ * Values implementing Infinispan's {@code DeltaAware}, such as {@link DeltaSession}s, are put into
+ * embedded caches as their changes only, which Infinispan merges into the value held by each
+ * owner. Writes of many entries at once write them whole.
+ *
+ * The wrapped instance may also be a Hot Rod remote cache, in which case all data lives on the
+ * Infinispan servers.
+ *
+ * The synchronous operations can be measured by {@link CacheMetrics} obtained from the {@link
+ * InfinispanCacheManager#setMetricsRegistry(CacheMetricsRegistry) metrics registry} of the cache
+ * manager.
+ *
  * @author Nemanja Zbiljic
  */
-public class InfinispanCache<K, V> implements Cache<K, V> {
+public class InfinispanCache<K, V> implements AsyncInfinispanCache<K, V>, BulkInfinispanCache<K, V>,
+        AuthorizationCache<K, V>, LoadingInfinispanCache<K, V> {
 
     /**
      * Private internal log instance.
      */
     private static final Logger log = LoggerFactory.getLogger(InfinispanCache.class);
 
+    /**
+     * Indicates if {@code infinispan-core} is on the classpath, so that embedded-only features may
+     * be used.
+     */
+    static final boolean EMBEDDED_AVAILABLE = ClassUtils.isAvailable("org.infinispan.AdvancedCache");
+
+    /**
+     * Indicates if {@code infinispan-client-hotrod} is on the classpath, so that remote caches may
+     * be used.
+     */
+    static final boolean REMOTE_AVAILABLE = ClassUtils.isAvailable("org.infinispan.client.hotrod.RemoteCache");
+
+    /**
+     * The serialized size of one in this many put values is recorded. Must be a power of two.
+     */
+    static final int VALUE_SIZE_SAMPLE_INTERVAL = 64;
+
     /**
      * The wrapped Infinispan instance.
      */
     private BasicCache cache;
 
+    /**
+     * The view of the wrapped Infinispan instance used for {@link #put(Object, Object) put} and
+     * {@link #remove(Object) remove} operations.
+     */
+    private BasicCache writeCache;
+
+    /**
+     * Writes the changes of delta-aware values to the wrapped embedded Infinispan instance;
+     * {@code null} if it is not an embedded cache.
+     */
+    private DeltaWrites deltaWrites;
+
+    /**
+     * Indicates if {@link #put(Object, Object) put} and {@link #remove(Object) remove} should
+     * return the previous value of the entry.
+     */
+    private boolean returnPreviousValues;
+
+    /**
+     * Indicates if the wrapped Infinispan instance is an embedded cache.
+     */
+    private boolean embedded;
+
+    /**
+     * Indicates if the wrapped Infinispan instance is a Hot Rod remote cache.
+     */
+    private boolean remote;
+
+    /**
+     * Optional node-local near-cache kept in front of the wrapped Infinispan instance.
+     */
+    private NearCache nearCache;
+
+    /**
+     * Optional write-behind buffer coalescing puts to the wrapped Infinispan instance.
+     */
+    private WriteBehindQueue writeBehind;
+
+    /**
+     * Bulk operations executed on the key owners, if the wrapped Infinispan instance is a
+     * distributed cache.
+     */
+    private BulkOperations bulk;
+
+    /**
+     * Optional metrics receiving measurements of the operations of this cache.
+     */
+    private CacheMetrics metrics;
+
+    /**
+     * Optional memory budget weighing the entries of this cache.
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Indicates if reads and writes go through the {@link CacheRequestScope} bound to the calling
+     * thread, if any.
+     */
+    private boolean requestScoped;
+
+    /**
+     * Coordinator of the loads of missing values, see {@link #get(Object, Callable)}.
+     */
+    private SingleFlightLoader singleFlight = new SingleFlightLoader(null, 0,
+            SingleFlightLoader.DEFAULT_EARLY_REFRESH_BETA);
+
+    /**
+     * Reads and writes of the values loaded by the {@link #singleFlight} coordinator.
+     */
+    private final SingleFlightLoader.Target loadTarget = new SingleFlightLoader.Target() {
+        @Override
+        public Object read(Object key) {
+            return InfinispanCache.this.read(key);
+        }
+
+        @Override
+        public void store(Object key, Object value) {
+            if (metrics == null) {
+                write(key, value);
+            } else {
+                measuredWrite(key, value);
+            }
+        }
+    };
+
+    /**
+     * Number of measured puts, used to sample value sizes.
+     */
+    private final AtomicInteger measuredPuts = new AtomicInteger();
+
     /**
      * Constructs a new InfinispanCache instance with the given cache.
      *
      * @param cache - delegate InfinispanCache instance this Shiro cache instance will wrap.
      */
     public InfinispanCache(BasicCache cache) {
+        this(cache, false);
+    }
+
+    /**
+     * Constructs a new InfinispanCache instance with the given cache.
+     *
+     * If {@code ignoreReturnValues} is {@code true}, {@link #put(Object, Object) put} and {@link
+     * #remove(Object) remove} always return {@code null} and, for embedded caches, are executed
+     * with the {@code IGNORE_RETURN_VALUES} and {@code SKIP_REMOTE_LOOKUP} flags, so the previous
+     * value is never fetched from remote owners or cache stores. This is suitable for callers
+     * that discard the return values, such as Shiro's {@code CachingSessionDAO}.
+     *
+     * @param cache              - delegate InfinispanCache instance this Shiro cache instance
+     *                           will wrap.
+     * @param ignoreReturnValues - if the previous values should not be returned from write
+     *                           operations.
+     */
+    public InfinispanCache(BasicCache cache, boolean ignoreReturnValues) {
         if (cache == null) {
             throw new IllegalArgumentException("Cache argument cannot be null.");
         }
         this.cache = cache;
+        this.returnPreviousValues = !ignoreReturnValues;
+        this.embedded = EMBEDDED_AVAILABLE && EmbeddedCaches.isEmbedded(cache);
+        this.remote = REMOTE_AVAILABLE && RemoteCaches.isRemote(cache);
+        if (ignoreReturnValues && EMBEDDED_AVAILABLE) {
+            this.writeCache = EmbeddedCaches.ignoreReturnValues(cache);
+        } else {
+            this.writeCache = cache;
+        }
+        if (this.embedded) {
+            this.bulk = EmbeddedCaches.bulkOperations(cache);
+            this.deltaWrites = EmbeddedCaches.deltaWrites(cache);
+        }
+    }
+
+    /**
+     * Sets the node-local near-cache kept in front of the wrapped Infinispan instance.
+     *
+     * @param nearCache the near-cache, or {@code null} to read from Infinispan directly.
+     */
+    void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Releases what this cache holds apart from the wrapped Infinispan instance, such as the
+     * executor of its bulk operations. Called by the cache manager when it is destroyed.
+     */
+    void stop() {
+        if (bulk != null) {
+            bulk.stop();
+        }
+    }
+
+    /**
+     * Sets the write-behind buffer coalescing puts to the wrapped Infinispan instance. Caches with
+     * a write-behind buffer never return previous values from write operations.
+     *
+     * @param writeBehind the write-behind buffer, or {@code null} to write through.
+     */
+    void setWriteBehind(WriteBehindQueue writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Sets the metrics receiving measurements of the operations of this cache. When no metrics
+     * are set, operations are not timed at all.
+     *
+     * @param metrics the metrics, or {@code null} to disable measurements.
+     */
+    void setMetrics(CacheMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the memory budget weighing the entries of this cache. Values are weighed by their
+     * serialized size on the nodes that own them, when they are written there.
+     *
+     * @param memoryBudget the memory budget, or {@code null} to not weigh entries.
+     */
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets whether reads are memoized and writes deferred by the {@link CacheRequestScope} bound
+     * to the calling thread.
+     *
+     * @param requestScoped {@code true} to use the request scope of the calling thread.
+     */
+    void setRequestScoped(boolean requestScoped) {
+        this.requestScoped = requestScoped;
+    }
+
+    /**
+     * Sets the coordinator of the loads of missing values, e.g. one taking cluster-wide leases.
+     *
+     * @param singleFlight the coordinator of the loads.
+     */
+    void setSingleFlight(SingleFlightLoader singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    private CacheRequestScope requestScope() {
+        return requestScoped ? CacheRequestScope.current() : null;
+    }
+
+    /**
+     * Returns the wrapped Infinispan instance.
+     *
+     * @return the wrapped Infinispan instance.
+     */
+    BasicCache getDelegate() {
+        return cache;
+    }
+
+    /**
+     * Returns {@code true} if the wrapped Infinispan instance is an embedded cache.
+     *
+     * @return {@code true} if the wrapped Infinispan instance is an embedded cache.
+     */
+    boolean isEmbedded() {
+        return embedded;
     }
 
     /**
@@ -74,66 +329,590 @@ public class InfinispanCache<K, V> implements Cache<K, V> {
      */
     @Override
     public V get(K key) throws CacheException {
+        if (key == null) {
+            return null;
+        }
         try {
-            if (log.isTraceEnabled()) {
-                log.trace("Getting object from cache [" + cache.getName() + "] for key [" + key + "]");
+            CacheRequestScope scope = requestScope();
+            if (scope != null) {
+                return scopedGet(scope, key);
             }
+            //noinspection unchecked
+            return (V) (metrics == null ? read(key) : measuredRead(key));
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    private V scopedGet(CacheRequestScope scope, K key) {
+        Object value;
+        if (scope.contains(this, key)) {
+            value = scope.get(this, key);
+        } else {
+            value = metrics == null ? read(key) : measuredRead(key);
+            scope.remember(this, key, value);
+        }
+        //noinspection unchecked
+        return (V) value;
+    }
+
+    /**
+     * Gets a value of an element which matches the given key, loading it if there is none.
+     *
+     * Concurrent misses of the same key on this node are coalesced into a single call of the
+     * loader, and, if the cache manager is configured to take {@link
+     * InfinispanCacheManager#setLoadLockCacheNames(Set) load locks}, so are misses on other nodes.
+     * The loaded value is put into the cache before the waiting callers return.
+     *
+     * For embedded caches, values held on this node may be refreshed shortly before they expire
+     * by one caller, while the others keep getting the current value, see {@link
+     * InfinispanCacheManager#setEarlyRefreshBeta(double)}.
+     *
+     * @param key    the key of the element to return.
+     * @param loader the loader of the value.
+     * @return the cached or loaded value, or {@code null} if the loader returned {@code null}.
+     */
+    @Override
+    public V get(K key, Callable<? extends V> loader) throws CacheException {
+        try {
             if (key == null) {
-                return null;
+                return loader.call();
             }
-            Object value = cache.get(key);
-            if (value == null) {
-                if (log.isTraceEnabled()) {
-                    log.trace("Object for [" + key + "] is null.");
-                }
-                return null;
+            CacheRequestScope scope = requestScope();
+            Object value;
+            if (scope != null) {
+                value = scopedGet(scope, key);
             } else {
-                //noinspection unchecked
-                return (V) value;
+                value = metrics == null ? read(key) : measuredRead(key);
+            }
+            if (value == null || isExpiring(key)) {
+                value = singleFlight.load(key, value, loader, loadTarget);
+                if (scope != null) {
+                    scope.remember(this, key, value);
+                }
             }
+            //noinspection unchecked
+            return (V) value;
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
+    private boolean isExpiring(Object key) {
+        return embedded && singleFlight.isEarlyRefreshEnabled()
+                && singleFlight.shouldRefresh(EmbeddedCaches.expiryTime(cache, key));
+    }
+
+    private Object read(Object key) {
+        Object value = local(key);
+        if (value == null) {
+            value = load(key);
+        }
+        if (value != null && memoryBudget != null) {
+            memoryBudget.touch(key);
+        }
+        return value;
+    }
+
+    private Object measuredRead(Object key) {
+        long start = System.nanoTime();
+        boolean remote = false;
+        Object value = local(key);
+        if (value == null) {
+            // before the read, which may keep a copy of the entry in L1
+            remote = isRemote(key);
+            value = load(key);
+        }
+        if (value != null) {
+            if (memoryBudget != null) {
+                memoryBudget.touch(key);
+            }
+            metrics.recordHit(remote, System.nanoTime() - start);
+        } else {
+            metrics.recordMiss(System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value buffered or near-cached on this node, if any.
+     */
+    private Object local(Object key) {
+        Object value = null;
+        if (writeBehind != null) {
+            value = writeBehind.get(key);
+        }
+        if (value == null && nearCache != null) {
+            value = nearCache.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the value from the wrapped Infinispan instance, keeping it in the near-cache.
+     */
+    private Object load(Object key) {
+        if (nearCache == null) {
+            return cache.get(key);
+        }
+        long invalidations = nearCache.invalidations(key);
+        Object value = cache.get(key);
+        if (value != null) {
+            nearCache.put(key, value, invalidations);
+        }
+        return value;
+    }
+
+    /**
+     * Drops the keys from the request scope of the calling thread, because they are read or
+     * written bypassing it.
+     */
+    private void forget(Collection<?> keys) {
+        CacheRequestScope scope = requestScope();
+        if (scope != null) {
+            scope.forget(this, keys);
+        }
+    }
+
+    private boolean isRemote(Object key) {
+        return !embedded || !EmbeddedCaches.isLocal(cache, key);
+    }
+
+    private void recordValueSize(Object value) {
+        if (embedded && value != null
+                && (measuredPuts.getAndIncrement() & (VALUE_SIZE_SAMPLE_INTERVAL - 1)) == 0) {
+            try {
+                metrics.recordValueSize(EmbeddedCaches.serializedSize(cache, value));
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to determine serialized size of value in cache [" + cache.getName() + "]", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a failure of an operation. Kept out of the operations themselves, so that they stay
+     * small enough to be inlined.
+     */
+    private static CacheException failure(Throwable t) {
+        return t instanceof CacheException ? (CacheException) t : new CacheException(t);
+    }
+
     /**
      * Puts an object into the cache.
      *
+     * The previous value is returned by the same atomic operation that stores the new one, or not
+     * at all if this instance was created to ignore return values. Embedded caches write only the
+     * changes of delta-aware values, and return no previous value for them.
+     *
      * @param key   the key.
      * @param value the value.
+     * @return the previous value, or {@code null} if there was none, return values are ignored or
+     * the value is delta-aware.
      */
     @Override
     public V put(K key, V value) throws CacheException {
-        if (log.isTraceEnabled()) {
-            log.trace("Putting object in cache [" + cache.getName() + "] for key [" + key + "]");
-        }
         try {
-            V previous = get(key);
-            cache.put(key, value);
-            return previous;
+            if (key != null) {
+                CacheRequestScope scope = requestScope();
+                if (scope != null) {
+                    //noinspection unchecked
+                    return (V) scope.write(this, key, value);
+                }
+            }
+            //noinspection unchecked
+            return (V) (metrics == null ? write(key, value) : measuredWrite(key, value));
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
+    private Object write(Object key, Object value) {
+        long invalidations = nearCache != null ? nearCache.invalidations(key) : 0;
+        Object previous = null;
+        if (writeBehind == null || !writeBehind.offer(key, value)) {
+            if (nearCache != null) {
+                nearCache.startWriting(Collections.singleton(key));
+            }
+            try {
+                previous = writeThrough(key, value);
+            } finally {
+                if (nearCache != null) {
+                    nearCache.stopWriting();
+                }
+            }
+        }
+        if (nearCache != null) {
+            nearCache.put(key, value, invalidations);
+        }
+        return previous;
+    }
+
+    private Object measuredWrite(Object key, Object value) {
+        long start = System.nanoTime();
+        Object previous = write(key, value);
+        metrics.recordPut(System.nanoTime() - start);
+        recordValueSize(value);
+        return previous;
+    }
+
+    private Object writeThrough(Object key, Object value) {
+        if (embedded && EmbeddedCaches.isDeltaAware(value)) {
+            deltaWrites.put(key, value);
+            return null;
+        }
+        if (writeBehind == null && returnPreviousValues) {
+            //noinspection unchecked
+            return cache.put(key, value);
+        }
+        //noinspection unchecked
+        writeCache.put(key, value);
+        return null;
+    }
+
     /**
      * Removes the value which matches the key.
      *
      * If no key matches, nothing is removed and no Exception is thrown.
      *
      * @param key the key of the element to remove
+     * @return the removed value, or {@code null} if there was none or return values are ignored.
      */
     @Override
     public V remove(K key) throws CacheException {
-        if (log.isTraceEnabled()) {
-            log.trace("Removing object from cache [" + cache.getName() + "] for key [" + key + "]");
+        if (key == null) {
+            return null;
+        }
+        try {
+            CacheRequestScope scope = requestScope();
+            if (scope != null) {
+                //noinspection unchecked
+                return (V) scope.write(this, key, null);
+            }
+            long start = metrics != null ? System.nanoTime() : 0L;
+            Object previous = null;
+            if (writeBehind != null) {
+                writeBehind.remove(key);
+            } else if (returnPreviousValues) {
+                previous = cache.remove(key);
+            } else {
+                writeCache.remove(key);
+            }
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            if (metrics != null) {
+                metrics.recordRemove(System.nanoTime() - start);
+            }
+            //noinspection unchecked
+            return (V) previous;
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    @Override
+    public NotifyingFuture<V> getAsync(K key) throws CacheException {
+        try {
+            if (key == null) {
+                return new CompletedFuture<V>(null);
+            }
+            CacheRequestScope scope = requestScope();
+            if (scope != null && scope.contains(this, key)) {
+                //noinspection unchecked
+                return new CompletedFuture<V>((V) scope.get(this, key));
+            }
+            Object value = null;
+            if (writeBehind != null) {
+                value = writeBehind.get(key);
+            }
+            if (value == null && nearCache != null) {
+                value = nearCache.get(key);
+            }
+            if (value != null) {
+                //noinspection unchecked
+                return new CompletedFuture<V>((V) value);
+            }
+            //noinspection unchecked
+            return cache.getAsync(key);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    @Override
+    public NotifyingFuture<V> putAsync(K key, V value) throws CacheException {
+        try {
+            forget(Collections.singleton(key));
+            long invalidations = nearCache != null ? nearCache.invalidations(key) : 0;
+            if (writeBehind != null && writeBehind.offer(key, value)) {
+                if (nearCache != null) {
+                    nearCache.put(key, value, invalidations);
+                }
+                return new CompletedFuture<V>(null);
+            }
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            if (embedded && EmbeddedCaches.isDeltaAware(value)) {
+                return deltaWrites.putAsync(key, value);
+            }
+            if (embedded) {
+                return EmbeddedCaches.putAsync(returnPreviousValues ? cache : writeCache, key, value);
+            }
+            //noinspection unchecked
+            return returnPreviousValues ? cache.putAsync(key, value) : writeCache.putAsync(key, value);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    @Override
+    public NotifyingFuture<V> putIfAbsentAsync(K key, V value) throws CacheException {
+        try {
+            if (key == null) {
+                return new CompletedFuture<V>(null);
+            }
+            CacheRequestScope scope = requestScope();
+            if (scope != null && scope.contains(this, key)) {
+                Object known = scope.get(this, key);
+                if (known != null) {
+                    //noinspection unchecked
+                    return new CompletedFuture<V>((V) known);
+                }
+                scope.forget(this, Collections.singleton(key));
+            }
+            if (writeBehind != null) {
+                Object buffered = writeBehind.get(key);
+                if (buffered != null) {
+                    //noinspection unchecked
+                    return new CompletedFuture<V>((V) buffered);
+                }
+            }
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            //noinspection unchecked
+            return cache.putIfAbsentAsync(key, value);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    @Override
+    public NotifyingFuture<V> removeAsync(K key) throws CacheException {
+        try {
+            if (key == null) {
+                return new CompletedFuture<V>(null);
+            }
+            forget(Collections.singleton(key));
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            if (writeBehind != null) {
+                writeBehind.remove(key);
+                return new CompletedFuture<V>(null);
+            }
+            //noinspection unchecked
+            return returnPreviousValues ? cache.removeAsync(key) : writeCache.removeAsync(key);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    /**
+     * Gets the values of the elements which match the given keys.
+     *
+     * Buffered and near-cached values are served locally. For distributed caches the remaining
+     * keys are read by their primary owners, one batched request per owner.
+     *
+     * @param keys the keys of the elements to return.
+     * @return the found values, per key.
+     */
+    @Override
+    public Map<K, V> getAll(Set<? extends K> keys) throws CacheException {
+        try {
+            Map<Object, Object> values = new HashMap<Object, Object>(keys.size());
+            Set<Object> missing = new HashSet<Object>(keys.size());
+            CacheRequestScope scope = requestScope();
+            for (K key : keys) {
+                if (key == null) {
+                    continue;
+                }
+                if (scope != null && scope.contains(this, key)) {
+                    Object value = scope.get(this, key);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                    continue;
+                }
+                Object value = null;
+                if (writeBehind != null) {
+                    value = writeBehind.get(key);
+                }
+                if (value == null && nearCache != null) {
+                    value = nearCache.get(key);
+                }
+                if (value != null) {
+                    values.put(key, value);
+                    if (scope != null) {
+                        scope.remember(this, key, value);
+                    }
+                } else {
+                    missing.add(key);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<Object, Long> invalidations = null;
+                if (nearCache != null) {
+                    invalidations = new HashMap<Object, Long>(missing.size());
+                    for (Object key : missing) {
+                        invalidations.put(key, nearCache.invalidations(key));
+                    }
+                }
+                Map<Object, Object> loaded;
+                if (bulk != null) {
+                    loaded = bulk.getAll(missing);
+                } else {
+                    loaded = new HashMap<Object, Object>(missing.size());
+                    for (Object key : missing) {
+                        Object value = cache.get(key);
+                        if (value != null) {
+                            loaded.put(key, value);
+                        }
+                    }
+                }
+                if (nearCache != null) {
+                    for (Map.Entry<Object, Object> entry : loaded.entrySet()) {
+                        nearCache.put(entry.getKey(), entry.getValue(), invalidations.get(entry.getKey()));
+                    }
+                }
+                if (scope != null) {
+                    for (Object key : missing) {
+                        scope.remember(this, key, loaded.get(key));
+                    }
+                }
+                values.putAll(loaded);
+            }
+            //noinspection unchecked
+            return (Map<K, V>) values;
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    /**
+     * Puts all given objects into the cache with a single Infinispan {@code putAll} command,
+     * which is sent once to every node owning any of the keys. Embedded caches write only the
+     * changes of delta-aware values, one key at a time, like {@link #put(Object, Object)}.
+     *
+     * @param entries the values to put, per key.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) throws CacheException {
+        try {
+            forget(entries.keySet());
+            Map<? extends K, ? extends V> writes = entries;
+            if (writeBehind != null) {
+                Map<K, V> overflow = new HashMap<K, V>();
+                for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                    if (!writeBehind.offer(entry.getKey(), entry.getValue())) {
+                        overflow.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                writes = overflow;
+            }
+            if (nearCache == null) {
+                if (!writes.isEmpty()) {
+                    writeAll(writes);
+                }
+                return;
+            }
+            Map<Object, Long> invalidations = new HashMap<Object, Long>(entries.size());
+            for (K key : entries.keySet()) {
+                invalidations.put(key, nearCache.invalidations(key));
+            }
+            if (!writes.isEmpty()) {
+                nearCache.startWriting(writes.keySet());
+                try {
+                    writeAll(writes);
+                } finally {
+                    nearCache.stopWriting();
+                }
+            }
+            for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                nearCache.put(entry.getKey(), entry.getValue(), invalidations.get(entry.getKey()));
+            }
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    private void writeAll(Map<?, ?> writes) {
+        Map<?, ?> whole = writes;
+        if (embedded) {
+            Map<Object, Object> others = new HashMap<Object, Object>(writes.size());
+            for (Map.Entry<?, ?> entry : writes.entrySet()) {
+                if (EmbeddedCaches.isDeltaAware(entry.getValue())) {
+                    deltaWrites.put(entry.getKey(), entry.getValue());
+                } else {
+                    others.put(entry.getKey(), entry.getValue());
+                }
+            }
+            whole = others;
         }
+        if (!whole.isEmpty()) {
+            //noinspection unchecked
+            writeCache.putAll(whole);
+        }
+    }
+
+    /**
+     * Removes the values which match the given keys.
+     *
+     * For distributed caches the keys are removed by their primary owners, one batched request
+     * per owner.
+     *
+     * @param keys the keys of the elements to remove.
+     */
+    @Override
+    public void removeAll(final Set<? extends K> keys) throws CacheException {
         try {
-            V previous = get(key);
-            cache.remove(key);
-            return previous;
+            if (keys.isEmpty()) {
+                return;
+            }
+            forget(keys);
+            if (writeBehind != null) {
+                writeBehind.removeAll(keys, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        removeEntries(keys);
+                        return null;
+                    }
+                });
+            } else {
+                removeEntries(keys);
+            }
+            if (nearCache != null) {
+                for (K key : keys) {
+                    nearCache.invalidate(key);
+                }
+            }
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
+        }
+    }
+
+    private void removeEntries(Set<? extends K> keys) throws Exception {
+        if (bulk != null) {
+            bulk.removeAll(keys);
+        } else {
+            for (K key : keys) {
+                if (key != null) {
+                    writeCache.remove(key);
+                }
+            }
         }
     }
 
@@ -142,62 +921,147 @@ public class InfinispanCache<K, V> implements Cache<K, V> {
      */
     @Override
     public void clear() throws CacheException {
-        if (log.isTraceEnabled()) {
-            log.trace("Clearing all objects from cache [" + cache.getName() + "]");
-        }
         try {
-            cache.clear();
+            CacheRequestScope scope = requestScope();
+            if (scope != null) {
+                scope.forget(this);
+            }
+            if (writeBehind != null) {
+                writeBehind.clear();
+            } else {
+                cache.clear();
+            }
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+            if (memoryBudget != null) {
+                memoryBudget.clear();
+            }
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
     @Override
     public int size() {
         try {
-            return cache.size();
+            return remote ? RemoteCaches.size(cache) : cache.size();
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
+    /**
+     * Returns a read-only view of the keys in the cache.
+     *
+     * For embedded caches the view is backed by the local data container and streams the keys
+     * while it is iterated, without copying them. If metrics are enabled, each complete iteration
+     * is recorded as a scan.
+     *
+     * @return a read-only view of the keys in the cache.
+     */
     @Override
     public Set<K> keys() {
         try {
+            if (embedded) {
+                return EmbeddedCaches.keys(cache, metrics);
+            }
+            long start = metrics != null ? System.nanoTime() : 0L;
             @SuppressWarnings({"unchecked"})
             Set<K> keys = cache.keySet();
+            if (metrics != null) {
+                metrics.recordScan(keys != null ? keys.size() : 0, System.nanoTime() - start);
+            }
             if (!CollectionUtils.isEmpty(keys)) {
                 return Collections.unmodifiableSet(keys);
             } else {
                 return Collections.emptySet();
             }
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
+    /**
+     * Returns a read-only view of the values in the cache.
+     *
+     * For embedded caches the view is backed by the local data container and streams the values
+     * while it is iterated, without copying them and without a lookup per key. If metrics are
+     * enabled, each complete iteration is recorded as a scan. For remote caches the values are
+     * copied by a single bulk read.
+     *
+     * @return a read-only view of the values in the cache.
+     */
     @Override
     public Collection<V> values() {
         try {
+            if (embedded) {
+                return EmbeddedCaches.values(cache, metrics);
+            }
+            long start = metrics != null ? System.nanoTime() : 0L;
             @SuppressWarnings({"unchecked"})
-            Set<K> keys = cache.keySet();
-            if (!CollectionUtils.isEmpty(keys)) {
-                List<V> values = new ArrayList<V>(keys.size());
-                for (K key : keys) {
-                    V value = get(key);
-                    if (value != null) {
-                        values.add(value);
-                    }
-                }
-                return Collections.unmodifiableList(values);
+            Collection<V> values = remote ? RemoteCaches.<K, V>entries(cache).values() : cache.values();
+            if (metrics != null) {
+                metrics.recordScan(values != null ? values.size() : 0, System.nanoTime() - start);
+            }
+            if (!CollectionUtils.isEmpty(values)) {
+                return Collections.unmodifiableCollection(values);
             } else {
                 return Collections.emptyList();
             }
         } catch (Throwable t) {
-            throw new CacheException(t);
+            throw failure(t);
         }
     }
 
+    /**
+     * Removes the cached authorization info of every principal that has the given role.
+     *
+     * @param role the name of the role.
+     * @return the number of removed entries.
+     */
+    @Override
+    public int invalidateByRole(String role) throws CacheException {
+        return invalidate(AuthorizationMatch.byRole(role));
+    }
+
+    /**
+     * Removes the cached authorization info of every principal that has a permission starting
+     * with the given prefix.
+     *
+     * @param permissionPrefix the prefix of the permissions.
+     * @return the number of removed entries.
+     */
+    @Override
+    public int invalidateByPermissionPrefix(String permissionPrefix) throws CacheException {
+        return invalidate(AuthorizationMatch.byPermissionPrefix(permissionPrefix));
+    }
+
+    private int invalidate(AuthorizationMatch match) {
+        Set<Object> keys;
+        try {
+            if (embedded) {
+                keys = EmbeddedCaches.findAuthorizationKeys(cache, match);
+            } else {
+                keys = new HashSet<Object>();
+                Set<?> entries = remote ? RemoteCaches.entries(cache).entrySet() : cache.entrySet();
+                for (Object entry : entries) {
+                    Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entry;
+                    if (match.matches(mapEntry.getValue())) {
+                        keys.add(mapEntry.getKey());
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidating {} authorization entries from cache [{}]", keys.size(), cache.getName());
+        }
+        //noinspection unchecked
+        removeAll((Set<K>) keys);
+        return keys.size();
+    }
 
     /**
      * Returns &quot;InfinispanCache [&quot; + cache.getName() + &quot;]&quot;
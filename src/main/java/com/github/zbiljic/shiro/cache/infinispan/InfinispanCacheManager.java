@@ -31,8 +31,17 @@ import org.apache.shiro.config.ConfigurationException;
 import org.apache.shiro.io.ResourceUtils;
 import org.apache.shiro.util.Destroyable;
 import org.apache.shiro.util.Initializable;
+import org.infinispan.AdvancedCache;
 import org.infinispan.commons.api.BasicCache;
 import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StoreConfigurationBuilder;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.ParserRegistry;
+import org.infinispan.distribution.ch.SyncConsistentHashFactory;
+import org.infinispan.eviction.EvictionStrategy;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
 import org.slf4j.Logger;
@@ -40,6 +49,24 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Shiro {@code CacheManager} implementation utilizing the Infinispan data grid for all cache
@@ -51,6 +78,11 @@ import java.io.InputStream;
  * constructed. If neither are specified, Shiro's failsafe <code><a href="./infinispan.xml">infinispan.xml</a>}
  * file will be used by default.
  *
+ * Alternatively, with {@link #setRemoteServers(String) remoteServers} or a {@link
+ * #setRemoteConfigFile(String) remoteConfigFile}, this class creates a Hot Rod {@code
+ * RemoteCacheManager}, and all cached data lives on the Infinispan servers. This requires {@code
+ * infinispan-client-hotrod} on the classpath.
+ *
  * This implementation requires Infinispan 6.0.0 and above.
  *
  * Please see the <a href="http://infinispan.org/" target="_top">Infinispan - Open Source Data Grids
@@ -67,10 +99,15 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
      */
     private static final Logger log = LoggerFactory.getLogger(InfinispanCacheManager.class);
 
+    /**
+     * Suffix of the names of the caches holding the load locks of a cache.
+     */
+    static final String LOAD_LOCK_CACHE_SUFFIX = ".loadLocks";
+
     /**
      * The Infinispan cache container used to obtain a {@link org.infinispan.commons.api.BasicCache}.
      */
-    protected BasicCacheContainer cacheContainer;
+    protected volatile BasicCacheContainer cacheContainer;
 
     /**
      * The Infinispan cache manager used by this implementation to create caches if no {@code
@@ -79,88 +116,975 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
     protected EmbeddedCacheManager manager;
 
     /**
-     * Indicates if the EmbeddedCacheManager instance was implicitly/automatically created by this
-     * instance, indicating that it should be automatically cleaned up as well on shutdown.
+     * Cache wrappers returned by this instance, per cache name.
+     */
+    private final ConcurrentMap<String, InfinispanCache<?, ?>> caches = new ConcurrentHashMap<String, InfinispanCache<?, ?>>();
+
+    /**
+     * Indicates if the EmbeddedCacheManager instance was implicitly/automatically created by this
+     * instance, indicating that it should be automatically cleaned up as well on shutdown.
+     */
+    private volatile boolean cacheManagerImplicitlyCreated = false;
+
+    /**
+     * Indicates if the cache container is a Hot Rod remote cache manager implicitly created by this
+     * instance, indicating that it should be automatically stopped as well on shutdown.
+     */
+    private volatile boolean remoteCacheManagerImplicitlyCreated = false;
+
+    /**
+     * Hot Rod servers a remote cache manager is created for.
+     */
+    private String remoteServers;
+
+    /**
+     * Resource path of the Hot Rod client properties a remote cache manager is created from.
+     */
+    private String remoteConfigFile;
+
+    /**
+     * Maximum number of pooled connections to each Hot Rod server.
+     */
+    private int remoteMaxActiveConnections = 0;
+
+    /**
+     * Classpath file location of the Infinispan EmbeddedCacheManager config file.
+     */
+    private String cacheManagerConfigFile = "classpath:com/github/zbiljic/shiro/cache/infinispan/infinispan.xml";
+
+    /**
+     * Indicates if caches returned by this manager should skip fetching previous values on {@code
+     * put} and {@code remove} operations.
+     */
+    private boolean ignoreReturnValues = false;
+
+    /**
+     * Indicates if compact externalizers for Shiro types are registered with an implicitly created
+     * EmbeddedCacheManager.
+     */
+    private boolean registerExternalizers = true;
+
+    /**
+     * Names of the caches that should keep a node-local near-cache in front of Infinispan.
+     */
+    private Set<String> nearCacheNames = Collections.emptySet();
+
+    /**
+     * Maximum number of entries kept in each near-cache.
+     */
+    private int nearCacheMaxEntries = 1000;
+
+    /**
+     * Maximum time, in milliseconds, an entry is served from a near-cache before it is re-read.
+     */
+    private long nearCacheMaxStaleness = 30000;
+
+    /**
+     * Near-caches created by this manager, per cache name.
+     */
+    private final ConcurrentMap<String, NearCache> nearCaches = new ConcurrentHashMap<String, NearCache>();
+
+    /**
+     * Names of the caches whose puts are buffered and written behind in batches.
+     */
+    private Set<String> writeBehindCacheNames = Collections.emptySet();
+
+    /**
+     * Interval, in milliseconds, at which buffered puts are written to Infinispan.
+     */
+    private long writeBehindInterval = 500;
+
+    /**
+     * Maximum number of keys buffered per cache before puts are written through.
+     */
+    private int writeBehindMaxPending = 10000;
+
+    /**
+     * Write-behind buffers created by this manager, per cache name.
+     */
+    private final ConcurrentMap<String, WriteBehindQueue> writeBehindQueues = new ConcurrentHashMap<String, WriteBehindQueue>();
+
+    /**
+     * Executor flushing the write-behind buffers; created when the first buffer is.
+     */
+    private ScheduledExecutorService writeBehindExecutor;
+
+    /**
+     * Names of the caches that keep their values serialized.
+     */
+    private Set<String> binaryCacheNames = Collections.emptySet();
+
+    /**
+     * Names of the caches whose entries are bounded by memory use.
+     */
+    private Set<String> memoryBoundedCacheNames = Collections.emptySet();
+
+    /**
+     * Maximum memory, in bytes, held by the entries of each memory bounded cache on this node.
+     */
+    private long maxCacheMemory = 64L * 1024 * 1024;
+
+    /**
+     * Memory budgets created by this manager, per cache name.
+     */
+    private final ConcurrentMap<String, MemoryBudget> memoryBudgets = new ConcurrentHashMap<String, MemoryBudget>();
+
+    /**
+     * Executor evicting entries from memory bounded caches; created when the first budget is.
+     */
+    private ExecutorService evictionExecutor;
+
+    /**
+     * Registry supplying the metrics of the caches created by this manager, if any.
+     */
+    private CacheMetricsRegistry metricsRegistry;
+
+    /**
+     * Names of the caches whose persisted entries are loaded in the background on init.
+     */
+    private Set<String> warmCacheNames = Collections.emptySet();
+
+    /**
+     * Number of threads loading persisted entries.
+     */
+    private int warmUpParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Names of the principal-keyed caches whose entries are grouped by principal.
+     */
+    private Set<String> principalGroupedCacheNames = Collections.emptySet();
+
+    /**
+     * Indicates if caches are given the {@link CacheProfile} of the role recognised by their name.
+     */
+    private boolean cacheProfilesEnabled = false;
+
+    /**
+     * Names of the cache profiles configured explicitly, per cache name.
+     */
+    private Map<String, String> cacheProfiles = Collections.emptyMap();
+
+    /**
+     * Names of the caches whose reads are memoized and writes deferred by request scopes.
+     */
+    private Set<String> requestScopedCacheNames = Collections.emptySet();
+
+    /**
+     * Names of the authorization caches indexed by role and permission.
+     */
+    private Set<String> indexedAuthorizationCacheNames = Collections.emptySet();
+
+    /**
+     * Authorization indexes created by this instance, per cache name.
+     */
+    private final ConcurrentMap<String, AuthorizationIndex> authorizationIndexes = new ConcurrentHashMap<String, AuthorizationIndex>();
+
+    /**
+     * Names of the caches whose loads are coordinated cluster-wide.
+     */
+    private Set<String> loadLockCacheNames = Collections.emptySet();
+
+    /**
+     * Duration of a load lock, in milliseconds.
+     */
+    private long loadLockTimeout = 10000;
+
+    /**
+     * Scale of the window in which values are refreshed before they expire.
+     */
+    private double earlyRefreshBeta = SingleFlightLoader.DEFAULT_EARLY_REFRESH_BETA;
+
+    /**
+     * Names of the caches started concurrently on init.
+     */
+    private Set<String> startCacheNames = Collections.emptySet();
+
+    /**
+     * Time it took to start each cache started on init, in milliseconds.
+     */
+    private final ConcurrentMap<String, Long> cacheStartDurations = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Counted down as the warm-up or the initial state transfer of each cache completes;
+     * {@code null} until init.
+     */
+    private volatile CountDownLatch readyLatch;
+
+    /**
+     * Pool loading persisted entries, created on init if there are caches to warm up.
+     */
+    private ForkJoinPool warmUpPool;
+
+    /**
+     * Default no argument constructor
+     */
+    public InfinispanCacheManager() {
+    }
+
+    /**
+     * Returns the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     *
+     * @return the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     */
+    public BasicCacheContainer getCacheContainer() {
+        return cacheContainer;
+    }
+
+    /**
+     * Sets the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     *
+     * The caches already returned by this instance, together with their near-caches,
+     * write-behind buffers, memory budgets and authorization indexes, are stopped, and caches
+     * returned from now on are backed by the given container.
+     *
+     * @param cacheContainer the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer}
+     *                       instance.
+     */
+    public void setCacheContainer(BasicCacheContainer cacheContainer) {
+        stopCaches();
+        this.cacheContainer = cacheContainer;
+    }
+
+    /**
+     * Returns the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     *
+     * @return the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     */
+    public EmbeddedCacheManager getCacheManager() {
+        return this.manager;
+    }
+
+    /**
+     * Sets the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     *
+     * The caches already returned by this instance are stopped, as by {@link
+     * #setCacheContainer(BasicCacheContainer)}, and, unless another container was set, caches
+     * returned from now on are taken from the given manager.
+     *
+     * @param manager the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager}
+     *                instance.
+     */
+    public void setCacheManager(EmbeddedCacheManager manager) {
+        stopCaches();
+        if (this.cacheContainer == this.manager) {
+            // the container was the previous manager, so the caches come from the new one now
+            this.cacheContainer = manager;
+        }
+        this.manager = manager;
+    }
+
+    /**
+     * Returns the resource location of the config file used to initialize a new Infinispan
+     * EmbeddedCacheManager instance.  The string can be any resource path supported by the {@link
+     * org.apache.shiro.io.ResourceUtils#getInputStreamForPath(String)} call.
+     *
+     * This property is ignored if the EmbeddedCacheManager instance is injected directly - that is,
+     * it is only used to lazily create a EmbeddedCacheManager if one is not already provided.
+     *
+     * @return the resource location of the config file used to initialize the wrapped Infinispan
+     * EmbeddedCacheManager instance.
+     */
+    public String getCacheManagerConfigFile() {
+        return this.cacheManagerConfigFile;
+    }
+
+    /**
+     * Sets the resource location of the config file used to initialize the wrapped Infinispan
+     * EmbeddedCacheManager instance.  The string can be any resource path supported by the {@link
+     * org.apache.shiro.io.ResourceUtils#getInputStreamForPath(String)} call.
+     *
+     * This property is ignored if the EmbeddedCacheManager instance is injected directly - that is,
+     * it is only used to lazily create a EmbeddedCacheManager if one is not already provided.
+     *
+     * @param classpathLocation resource location of the config file used to create the wrapped
+     *                          Infinispan EmbeddedCacheManager instance.
+     */
+    public void setCacheManagerConfigFile(String classpathLocation) {
+        this.cacheManagerConfigFile = classpathLocation;
+    }
+
+    /**
+     * Returns the Hot Rod servers a remote cache manager is created for.
+     *
+     * @return the Hot Rod servers, or {@code null}.
+     */
+    public String getRemoteServers() {
+        return remoteServers;
+    }
+
+    /**
+     * Sets the Hot Rod servers a remote cache manager is created for, as a list of {@code
+     * host[:port]} separated by {@code ;}, e.g. {@code cache1:11222;cache2:11222}. The servers
+     * must have the caches used by Shiro defined.
+     *
+     * This property is ignored if a cache container or an EmbeddedCacheManager is injected
+     * directly.
+     *
+     * @param remoteServers the Hot Rod servers, or {@code null} to use an embedded cache manager.
+     */
+    public void setRemoteServers(String remoteServers) {
+        this.remoteServers = remoteServers;
+    }
+
+    /**
+     * Returns the resource path of the Hot Rod client properties a remote cache manager is
+     * created from.
+     *
+     * @return the resource path of the Hot Rod client properties, or {@code null}.
+     */
+    public String getRemoteConfigFile() {
+        return remoteConfigFile;
+    }
+
+    /**
+     * Sets the resource path of the Hot Rod client properties (the format of {@code
+     * hotrod-client.properties}) a remote cache manager is created from. Any resource path
+     * supported by {@link org.apache.shiro.io.ResourceUtils#getInputStreamForPath(String)} can be
+     * used. {@link #setRemoteServers(String) remoteServers} and {@link
+     * #setRemoteMaxActiveConnections(int) remoteMaxActiveConnections}, if set, override the
+     * corresponding properties.
+     *
+     * This property is ignored if a cache container or an EmbeddedCacheManager is injected
+     * directly.
+     *
+     * @param remoteConfigFile the resource path of the Hot Rod client properties, or {@code null}.
+     */
+    public void setRemoteConfigFile(String remoteConfigFile) {
+        this.remoteConfigFile = remoteConfigFile;
+    }
+
+    /**
+     * Returns the maximum number of pooled connections to each Hot Rod server.
+     *
+     * Default value is {@code 0}, the Hot Rod client default is used.
+     *
+     * @return the maximum number of pooled connections to each Hot Rod server.
+     */
+    public int getRemoteMaxActiveConnections() {
+        return remoteMaxActiveConnections;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections to each Hot Rod server. Every concurrent
+     * operation, including async ones, holds a connection while it is executed.
+     *
+     * @param remoteMaxActiveConnections the maximum number of pooled connections to each Hot Rod
+     *                                   server, or {@code 0} to use the Hot Rod client default.
+     */
+    public void setRemoteMaxActiveConnections(int remoteMaxActiveConnections) {
+        this.remoteMaxActiveConnections = remoteMaxActiveConnections;
+    }
+
+    /**
+     * Returns {@code true} if caches returned by this manager do not return (and therefore never
+     * fetch) previous values from {@code put} and {@code remove} operations.
+     *
+     * Default value is {@code false}.
+     *
+     * @return {@code true} if previous values are not returned from write operations.
+     */
+    public boolean isIgnoreReturnValues() {
+        return ignoreReturnValues;
+    }
+
+    /**
+     * Sets whether caches returned by this manager return previous values from {@code put} and
+     * {@code remove} operations.
+     *
+     * Shiro's own components (e.g. {@code CachingSessionDAO}) discard those values, so enabling
+     * this saves a remote lookup for every write to a distributed cache.
+     *
+     * @param ignoreReturnValues {@code true} if previous values should not be returned from write
+     *                           operations.
+     */
+    public void setIgnoreReturnValues(boolean ignoreReturnValues) {
+        this.ignoreReturnValues = ignoreReturnValues;
+    }
+
+    /**
+     * Returns {@code true} if compact externalizers for Shiro's session and principal types are
+     * registered with an implicitly created EmbeddedCacheManager.
+     *
+     * Default value is {@code true}.
+     *
+     * @return {@code true} if Shiro externalizers are registered.
+     * @see ShiroExternalizers
+     */
+    public boolean isRegisterExternalizers() {
+        return registerExternalizers;
+    }
+
+    /**
+     * Sets whether compact externalizers for Shiro's session and principal types are registered
+     * with an implicitly created EmbeddedCacheManager. All nodes of a cluster, and all readers of
+     * persisted cache stores, must use the same setting.
+     *
+     * This property is ignored if the EmbeddedCacheManager instance is injected directly.
+     *
+     * @param registerExternalizers {@code true} if Shiro externalizers should be registered.
+     * @see ShiroExternalizers
+     */
+    public void setRegisterExternalizers(boolean registerExternalizers) {
+        this.registerExternalizers = registerExternalizers;
+    }
+
+    /**
+     * Returns the names of the caches that keep a node-local near-cache in front of Infinispan.
+     *
+     * @return the names of the caches that keep a near-cache.
+     */
+    public Set<String> getNearCacheNames() {
+        return nearCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches that should keep a bounded, node-local near-cache in front of
+     * Infinispan. Reads of near-cached entries are served from local memory after the first
+     * access, until the entry is changed in Infinispan or becomes older than {@link
+     * #getNearCacheMaxStaleness() nearCacheMaxStaleness}.
+     *
+     * Hot Rod remote caches are not notified of changes, so their near-caches are only kept if
+     * {@code nearCacheMaxStaleness} is set, and bound how long changes made by other nodes go
+     * unnoticed.
+     *
+     * @param nearCacheNames the names of the caches that should keep a near-cache.
+     */
+    public void setNearCacheNames(Set<String> nearCacheNames) {
+        this.nearCacheNames = nearCacheNames != null ? nearCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the maximum number of entries kept in each near-cache.
+     *
+     * Default value is {@code 1000}.
+     *
+     * @return the maximum number of entries kept in each near-cache.
+     */
+    public int getNearCacheMaxEntries() {
+        return nearCacheMaxEntries;
+    }
+
+    /**
+     * Sets the maximum number of entries kept in each near-cache. Least valuable entries are
+     * evicted using the LIRS policy.
+     *
+     * @param nearCacheMaxEntries the maximum number of entries kept in each near-cache.
+     */
+    public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    /**
+     * Returns the maximum time, in milliseconds, an entry is served from a near-cache.
+     *
+     * Default value is {@code 30000}.
+     *
+     * @return the maximum time an entry is served from a near-cache.
+     */
+    public long getNearCacheMaxStaleness() {
+        return nearCacheMaxStaleness;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, an entry is served from a near-cache before it is
+     * read from Infinispan again. This bounds staleness for entries changed on nodes that do not
+     * notify this one (e.g. distributed caches without L1). Values less than or equal to zero
+     * rely on invalidation only.
+     *
+     * @param nearCacheMaxStaleness the maximum time an entry is served from a near-cache.
+     */
+    public void setNearCacheMaxStaleness(long nearCacheMaxStaleness) {
+        this.nearCacheMaxStaleness = nearCacheMaxStaleness;
+    }
+
+    /**
+     * Returns the names of the caches whose puts are buffered and written behind in batches.
+     *
+     * @return the names of the write-behind caches.
+     */
+    public Set<String> getWriteBehindCacheNames() {
+        return writeBehindCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches whose puts are buffered and written behind in batches.
+     *
+     * Repeated puts of the same key within one {@link #getWriteBehindInterval()
+     * writeBehindInterval} are collapsed into a single write, which greatly reduces replication
+     * traffic caused by Shiro updating the session's {@code lastAccessTime} on every request.
+     * Buffered values are visible to reads through the same cache instance on this node only, and
+     * write-behind caches never return previous values from write operations. Removals are
+     * written through immediately. Buffers are flushed on {@link #destroy() destroy}.
+     *
+     * @param writeBehindCacheNames the names of the write-behind caches.
+     */
+    public void setWriteBehindCacheNames(Set<String> writeBehindCacheNames) {
+        this.writeBehindCacheNames = writeBehindCacheNames != null ? writeBehindCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the interval, in milliseconds, at which buffered puts are written to Infinispan.
+     *
+     * Default value is {@code 500}.
+     *
+     * @return the write-behind flush interval.
+     */
+    public long getWriteBehindInterval() {
+        return writeBehindInterval;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which buffered puts are written to Infinispan.
+     *
+     * @param writeBehindInterval the write-behind flush interval.
+     */
+    public void setWriteBehindInterval(long writeBehindInterval) {
+        this.writeBehindInterval = writeBehindInterval;
+    }
+
+    /**
+     * Returns the maximum number of keys buffered per cache before puts are written through.
+     *
+     * Default value is {@code 10000}.
+     *
+     * @return the maximum number of buffered keys per cache.
+     */
+    public int getWriteBehindMaxPending() {
+        return writeBehindMaxPending;
+    }
+
+    /**
+     * Sets the maximum number of keys buffered per cache. When the buffer is full, puts of keys
+     * that are not buffered yet are written to Infinispan synchronously.
+     *
+     * @param writeBehindMaxPending the maximum number of buffered keys per cache.
+     */
+    public void setWriteBehindMaxPending(int writeBehindMaxPending) {
+        this.writeBehindMaxPending = writeBehindMaxPending;
+    }
+
+    /**
+     * Returns the names of the caches that keep their values serialized.
+     *
+     * @return the names of the binary caches.
+     */
+    public Set<String> getBinaryCacheNames() {
+        return binaryCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches that keep their values serialized, as one byte array per entry,
+     * instead of as object graphs. Values are deserialized on every read, which returns a copy.
+     *
+     * This trades CPU for much less work for the garbage collector: a session with attributes is
+     * dozens of objects on the heap, a serialized one is a single array without references. It
+     * suits large session caches that are read much less often than they are held.
+     *
+     * This property is ignored if the EmbeddedCacheManager instance is injected directly; enable
+     * {@code storeAsBinary} in its configuration instead.
+     *
+     * @param binaryCacheNames the names of the binary caches.
+     */
+    public void setBinaryCacheNames(Set<String> binaryCacheNames) {
+        this.binaryCacheNames = binaryCacheNames != null ? binaryCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the names of the caches whose entries are bounded by memory use.
+     *
+     * @return the names of the memory bounded caches.
+     */
+    public Set<String> getMemoryBoundedCacheNames() {
+        return memoryBoundedCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches whose entries are bounded by memory use rather than by count.
+     *
+     * Each entry is weighed by the serialized size of its value when it is written on a node that
+     * owns it. When the entries owned by this node weigh more than {@link #getMaxCacheMemory() maxCacheMemory}
+     * in total, the least recently used ones are evicted from this node in the background. The
+     * {@code maxEntries} limit of the Infinispan configuration still applies, so it should be set
+     * high enough not to evict first.
+     *
+     * Memory bounds are only available for embedded Infinispan caches.
+     *
+     * @param memoryBoundedCacheNames the names of the memory bounded caches.
+     */
+    public void setMemoryBoundedCacheNames(Set<String> memoryBoundedCacheNames) {
+        this.memoryBoundedCacheNames = memoryBoundedCacheNames != null ? memoryBoundedCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the maximum memory, in bytes, held by the entries of each memory bounded cache on
+     * this node.
+     *
+     * Default value is {@code 67108864} (64 MB).
+     *
+     * @return the memory budget of each memory bounded cache.
+     */
+    public long getMaxCacheMemory() {
+        return maxCacheMemory;
+    }
+
+    /**
+     * Sets the maximum memory, in bytes, held by the entries of each memory bounded cache on this
+     * node. Memory is estimated from serialized sizes, which are smaller than the size of the
+     * deserialized objects unless the cache {@link #setBinaryCacheNames(Set) stores values as
+     * binary}.
+     *
+     * @param maxCacheMemory the memory budget of each memory bounded cache.
+     */
+    public void setMaxCacheMemory(long maxCacheMemory) {
+        this.maxCacheMemory = maxCacheMemory;
+    }
+
+    /**
+     * Returns the registry supplying the metrics of the caches created by this manager.
+     *
+     * @return the metrics registry, or {@code null} if caches are not measured.
+     */
+    public CacheMetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Sets the registry supplying the metrics of the caches created by this manager. The
+     * registry is asked for the metrics of each cache when the cache is first acquired, so it
+     * must be set before {@link #getCache(String) getCache} is called.
+     *
+     * Default value is {@code null}, in which case cache operations are not measured at all.
+     *
+     * @param metricsRegistry the metrics registry, or {@code null} to disable measurements.
+     * @see SimpleCacheMetricsRegistry
+     */
+    public void setMetricsRegistry(CacheMetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Returns the names of the caches whose persisted entries are loaded in the background when
+     * this instance is initialized.
+     *
+     * @return the names of the caches warmed up on init.
+     */
+    public Set<String> getWarmCacheNames() {
+        return warmCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches whose persisted entries are loaded in the background when
+     * this instance is {@link #init() initialized}.
+     *
+     * {@code init} starts these caches and returns without waiting for their entries. Meanwhile
+     * the entries are read from the cache stores in parallel and loaded most recently used first;
+     * a request for an entry that is not loaded yet reads it from the store as usual. Use {@link
+     * #isReady()} or {@link #awaitReady(long, TimeUnit)}, e.g. from a load balancer health check,
+     * to find out when loading has completed.
+     *
+     * Infinispan's own blocking {@code preload} is disabled for these caches when the cache
+     * manager is created implicitly. Warm-up is only available for embedded Infinispan caches.
+     *
+     * @param warmCacheNames the names of the caches warmed up on init.
+     */
+    public void setWarmCacheNames(Set<String> warmCacheNames) {
+        this.warmCacheNames = warmCacheNames != null ? warmCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the number of threads loading persisted entries on init.
+     *
+     * Default value is the number of available processors.
+     *
+     * @return the number of threads loading persisted entries.
+     */
+    public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    /**
+     * Sets the number of threads loading persisted entries on init.
+     *
+     * @param warmUpParallelism the number of threads loading persisted entries.
+     */
+    public void setWarmUpParallelism(int warmUpParallelism) {
+        this.warmUpParallelism = warmUpParallelism;
+    }
+
+    /**
+     * Returns the names of the principal-keyed caches whose entries are grouped by principal.
+     *
+     * @return the names of the principal-grouped caches.
+     */
+    public Set<String> getPrincipalGroupedCacheNames() {
+        return principalGroupedCacheNames;
+    }
+
+    /**
+     * Sets the names of the principal-keyed caches whose entries are grouped by principal, e.g.
+     * the authentication and authorization caches of the realms and the {@link
+     * InfinispanSessionDAO#setPrincipalIndexCacheName(String) principal index}.
+     *
+     * These caches use a {@link PrincipalGrouper} and Infinispan's {@code
+     * SyncConsistentHashFactory}, so that all entries of one principal are owned by the same
+     * nodes, whichever of these caches they are in, and a request touching several of them talks
+     * to one owner only. Applied only when the cache manager is created implicitly; the caches
+     * must have the same number of segments.
+     *
+     * @param principalGroupedCacheNames the names of the principal-grouped caches.
+     */
+    public void setPrincipalGroupedCacheNames(Set<String> principalGroupedCacheNames) {
+        this.principalGroupedCacheNames = principalGroupedCacheNames != null
+                ? principalGroupedCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns {@code true} if caches are given the {@link CacheProfile} of the role recognised by
+     * their name, {@code false} otherwise. Default is {@code false}.
+     *
+     * @return {@code true} if cache profiles are recognised by name.
+     */
+    public boolean isCacheProfilesEnabled() {
+        return cacheProfilesEnabled;
+    }
+
+    /**
+     * Sets whether caches of the implicitly created cache manager are given the {@link
+     * CacheProfile} of the role recognised by their name: authorization caches are replicated,
+     * authentication caches are local, and the active session cache is distributed asynchronously
+     * with its puts written behind. Profiles set with {@link #setCacheProfiles(Map)} are applied
+     * either way.
+     *
+     * Profiles only apply when the cache manager is created implicitly and is clustered, and are
+     * not recognised for {@link #setPrincipalGroupedCacheNames(Set) principal-grouped caches}.
+     *
+     * Enabling them changes the clustering configured in {@code infinispan.xml}. In particular,
+     * session writes are only visible to other nodes once they are flushed, and are lost if the
+     * node stops before that.
+     *
+     * Default value is {@code false}.
+     *
+     * @param cacheProfilesEnabled whether cache profiles are recognised by name.
+     */
+    public void setCacheProfilesEnabled(boolean cacheProfilesEnabled) {
+        this.cacheProfilesEnabled = cacheProfilesEnabled;
+    }
+
+    /**
+     * Returns the names of the cache profiles configured explicitly, per cache name.
+     *
+     * @return the explicitly configured cache profiles.
+     */
+    public Map<String, String> getCacheProfiles() {
+        return cacheProfiles;
+    }
+
+    /**
+     * Sets the {@link CacheProfile} of caches by name, overriding the profile recognised by their
+     * name, e.g. {@code myRealm.authorizationCache:none, sessions:session}. Profile names are
+     * {@code authorization}, {@code authentication}, {@code session} and {@code none}.
+     *
+     * @param cacheProfiles the names of the cache profiles, per cache name.
+     * @throws ConfigurationException if a profile name is not known.
+     */
+    public void setCacheProfiles(Map<String, String> cacheProfiles) {
+        if (cacheProfiles == null) {
+            this.cacheProfiles = Collections.emptyMap();
+            return;
+        }
+        for (Map.Entry<String, String> entry : cacheProfiles.entrySet()) {
+            try {
+                CacheProfile.forName(entry.getValue());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Unknown cache profile [" + entry.getValue() +
+                        "] for cache named [" + entry.getKey() + "]", e);
+            }
+        }
+        this.cacheProfiles = cacheProfiles;
+    }
+
+    /**
+     * Returns the names of the caches whose reads are memoized and writes deferred by the {@link
+     * CacheRequestScope} bound to the calling thread.
+     *
+     * @return the names of the request-scoped caches.
+     */
+    public Set<String> getRequestScopedCacheNames() {
+        return requestScopedCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches whose reads are memoized and writes deferred by the {@link
+     * CacheRequestScope} bound to the calling thread, e.g. the active sessions cache and the
+     * authorization cache. Without a bound scope these caches behave as any other.
+     *
+     * @param requestScopedCacheNames the names of the request-scoped caches.
+     */
+    public void setRequestScopedCacheNames(Set<String> requestScopedCacheNames) {
+        this.requestScopedCacheNames = requestScopedCacheNames != null
+                ? requestScopedCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the names of the authorization caches indexed by role and permission.
+     *
+     * @return the names of the indexed authorization caches.
+     */
+    public Set<String> getIndexedAuthorizationCacheNames() {
+        return indexedAuthorizationCacheNames;
+    }
+
+    /**
+     * Sets the names of the authorization caches indexed by role and permission, e.g. the {@code
+     * authorizationCacheName} of an {@code AuthorizingRealm}.
+     *
+     * Every node keeps an index of the {@code AuthorizationInfo}s it holds, so that {@link
+     * AuthorizationCache#invalidateByRole(String) invalidateByRole} and {@link
+     * AuthorizationCache#invalidateByPermissionPrefix(String) invalidateByPermissionPrefix} find
+     * the affected entries without scanning the cache. Configure the same names on all nodes.
+     * Indexes are only available for embedded Infinispan caches.
+     *
+     * @param indexedAuthorizationCacheNames the names of the indexed authorization caches.
+     */
+    public void setIndexedAuthorizationCacheNames(Set<String> indexedAuthorizationCacheNames) {
+        this.indexedAuthorizationCacheNames = indexedAuthorizationCacheNames != null
+                ? indexedAuthorizationCacheNames : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the names of the caches whose loads are coordinated cluster-wide.
+     *
+     * @return the names of the caches taking load locks.
+     */
+    public Set<String> getLoadLockCacheNames() {
+        return loadLockCacheNames;
+    }
+
+    /**
+     * Sets the names of the caches whose loads are coordinated cluster-wide, e.g. the {@code
+     * authorizationCacheName} of an {@code AuthorizingRealm} backed by an expensive data source.
+     *
+     * Values loaded through {@link LoadingInfinispanCache#get(Object, Callable)} are always loaded
+     * once at a time per key on each node. For these caches a node additionally takes a lock on
+     * the key, in a companion cache named after the cache with a {@code .loadLocks} suffix, while
+     * it loads the value; other nodes missing the same key wait for the value instead of loading
+     * it too. Load locks are only taken for clustered embedded Infinispan caches.
+     *
+     * @param loadLockCacheNames the names of the caches taking load locks.
      */
-    private boolean cacheManagerImplicitlyCreated = false;
+    public void setLoadLockCacheNames(Set<String> loadLockCacheNames) {
+        this.loadLockCacheNames = loadLockCacheNames != null ? loadLockCacheNames : Collections.<String>emptySet();
+    }
 
     /**
-     * Classpath file location of the Infinispan EmbeddedCacheManager config file.
+     * Returns the time after which a load lock expires, in milliseconds.
+     *
+     * @return the duration of a load lock, in milliseconds.
      */
-    private String cacheManagerConfigFile = "classpath:com/github/zbiljic/shiro/cache/infinispan/infinispan.xml";
+    public long getLoadLockTimeout() {
+        return loadLockTimeout;
+    }
 
     /**
-     * Default no argument constructor
+     * Sets the time after which a load lock expires, in milliseconds. Nodes waiting for the value
+     * loaded by another node load it themselves once the lock expires, so that a failed node does
+     * not block the others. Defaults to 10 seconds.
+     *
+     * @param loadLockTimeout the duration of a load lock, in milliseconds.
      */
-    public InfinispanCacheManager() {
+    public void setLoadLockTimeout(long loadLockTimeout) {
+        this.loadLockTimeout = loadLockTimeout;
     }
 
     /**
-     * Returns the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     * Returns the scale of the window in which loaded values are refreshed before they expire.
      *
-     * @return the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     * @return the early refresh beta.
      */
-    public BasicCacheContainer getCacheContainer() {
-        return cacheContainer;
+    public double getEarlyRefreshBeta() {
+        return earlyRefreshBeta;
     }
 
     /**
-     * Sets the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer} instance.
+     * Sets the scale of the window in which values loaded through {@link
+     * LoadingInfinispanCache#get(Object, Callable)} are refreshed before they expire.
      *
-     * @param cacheContainer the Infinispan {@link org.infinispan.commons.api.BasicCacheContainer}
-     *                       instance.
+     * Each read of a value held on this node refreshes it with a probability that rises as its
+     * expiry time approaches, within a window proportional to the average time a load takes, so
+     * that under load the value is reloaded by a single caller before it expires instead of by all
+     * of them after it does. Values greater than {@code 1} refresh earlier, {@code 0} disables
+     * early refreshes. Defaults to {@code 1}.
+     *
+     * @param earlyRefreshBeta the early refresh beta.
      */
-    public void setCacheContainer(BasicCacheContainer cacheContainer) {
-        this.cacheContainer = cacheContainer;
+    public void setEarlyRefreshBeta(double earlyRefreshBeta) {
+        this.earlyRefreshBeta = earlyRefreshBeta;
     }
 
     /**
-     * Returns the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     * Returns the names of the caches started concurrently when this instance is initialized.
      *
-     * @return the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     * @return the names of the caches started on init.
      */
-    public EmbeddedCacheManager getCacheManager() {
-        return this.manager;
+    public Set<String> getStartCacheNames() {
+        return startCacheNames;
     }
 
     /**
-     * Sets the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager} instance.
+     * Sets the names of the caches started concurrently when this instance is {@link #init()
+     * initialized}, instead of lazily on their first {@link #getCache(String) getCache} call.
      *
-     * @param manager the wrapped Infinispan {@link org.infinispan.manager.EmbeddedCacheManager}
-     *                instance.
+     * {@code init} returns once all of these caches, and the {@link #setWarmCacheNames(Set) warm
+     * caches}, have been started. When the cache manager is created implicitly, clustered caches
+     * among them are started without waiting for their initial state transfer; until it completes
+     * requests are served from local and persisted data, and entries not transferred yet are
+     * fetched from other nodes. {@link #isReady()} reports when the transfers have completed.
+     *
+     * @param startCacheNames the names of the caches started on init.
      */
-    public void setCacheManager(EmbeddedCacheManager manager) {
-        this.manager = manager;
+    public void setStartCacheNames(Set<String> startCacheNames) {
+        this.startCacheNames = startCacheNames != null ? startCacheNames : Collections.<String>emptySet();
     }
 
     /**
-     * Returns the resource location of the config file used to initialize a new Infinispan
-     * EmbeddedCacheManager instance.  The string can be any resource path supported by the {@link
-     * org.apache.shiro.io.ResourceUtils#getInputStreamForPath(String)} call.
+     * Returns the time it took to start each of the caches started on init, in milliseconds,
+     * keyed by cache name.
      *
-     * This property is ignored if the EmbeddedCacheManager instance is injected directly - that is,
-     * it is only used to lazily create a EmbeddedCacheManager if one is not already provided.
-     *
-     * @return the resource location of the config file used to initialize the wrapped Infinispan
-     * EmbeddedCacheManager instance.
+     * @return the start durations of the caches started on init.
      */
-    public String getCacheManagerConfigFile() {
-        return this.cacheManagerConfigFile;
+    public Map<String, Long> getCacheStartDurations() {
+        return Collections.unmodifiableMap(cacheStartDurations);
     }
 
     /**
-     * Sets the resource location of the config file used to initialize the wrapped Infinispan
-     * EmbeddedCacheManager instance.  The string can be any resource path supported by the {@link
-     * org.apache.shiro.io.ResourceUtils#getInputStreamForPath(String)} call.
+     * Returns {@code true} once the persisted entries of all {@link #setWarmCacheNames(Set) warm
+     * caches} have been loaded and the initial state transfer of all clustered {@link
+     * #setStartCacheNames(Set) caches started on init} has completed. Always {@code true} if there
+     * is nothing to wait for, and {@code false} if there is but this instance has not been
+     * initialized yet.
      *
-     * This property is ignored if the EmbeddedCacheManager instance is injected directly - that is,
-     * it is only used to lazily create a EmbeddedCacheManager if one is not already provided.
+     * @return {@code true} if this instance is ready to serve requests from memory.
+     */
+    public boolean isReady() {
+        CountDownLatch latch = this.readyLatch;
+        return latch != null ? latch.getCount() == 0 : this.warmCacheNames.isEmpty() && this.startCacheNames.isEmpty();
+    }
+
+    /**
+     * Waits until this instance is {@link #isReady() ready}, or the timeout elapses.
      *
-     * @param classpathLocation resource location of the config file used to create the wrapped
-     *                          Infinispan EmbeddedCacheManager instance.
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return {@code true} if this instance is {@link #isReady() ready}, {@code false} if the
+     * timeout elapsed first.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
      */
-    public void setCacheManagerConfigFile(String classpathLocation) {
-        this.cacheManagerConfigFile = classpathLocation;
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = this.readyLatch;
+        if (latch == null) {
+            return isReady();
+        }
+        return latch.await(timeout, unit);
     }
 
     /**
@@ -184,10 +1108,19 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
      * Loads an existing InfinispanCache from the cache manager, or starts a new cache if one is not
      * found.
      *
+     * Wrappers are created once per cache name and kept in a concurrent registry, so once a cache
+     * has been acquired subsequent calls are a single lock-free map lookup. Different caches may
+     * be started concurrently.
+     *
      * @param name the name of the cache to load/create.
      */
     @Override
     public final <K, V> Cache<K, V> getCache(String name) throws CacheException {
+        InfinispanCache<?, ?> existing = this.caches.get(name);
+        if (existing != null) {
+            //noinspection unchecked
+            return (Cache<K, V>) existing;
+        }
 
         if (log.isTraceEnabled()) {
             log.trace("Acquiring Infinispan instance named [" + name + "]");
@@ -195,39 +1128,267 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
 
         try {
             this.ensureCacheContainer();
-            BasicCache<K, V> cache;
+            InfinispanCache<K, V> created = createCache(name);
+            existing = this.caches.putIfAbsent(name, created);
+            if (existing != null) {
+                created.stop();
+                //noinspection unchecked
+                return (Cache<K, V>) existing;
+            }
+            return created;
+        } catch (CacheException e) {
+            throw new CacheException(e);
+        }
+    }
 
-            if (this.cacheManagerImplicitlyCreated) {
-                if (!this.manager.getCacheNames().contains(name)) {
-                    if (log.isInfoEnabled()) {
-                        log.info("Cache with name '{}' does not yet exist.  Creating now.", name);
-                    }
+    private <K, V> InfinispanCache<K, V> createCache(String name) {
+        BasicCache<K, V> cache;
+        CacheProfile profile = CacheProfile.NONE;
 
-                    cache = this.manager.getCache(name, true);
+        if (this.cacheManagerImplicitlyCreated) {
+            if (isClustered(this.manager)) {
+                profile = profileOf(name);
+            }
+            if (!this.manager.getCacheNames().contains(name)) {
+                if (log.isInfoEnabled()) {
+                    log.info("Cache with name '{}' does not yet exist.  Creating now.", name);
+                }
 
-                    if (log.isInfoEnabled()) {
-                        log.info("Added InfinispanCache named [" + name + "]");
-                    }
-                } else {
-                    this.manager.startCaches(name);
-                    cache = this.manager.getCache(name, false);
+                if (profile != CacheProfile.NONE) {
+                    defineProfiledConfiguration(name, profile);
+                }
+                cache = this.manager.getCache(name, true);
 
-                    if (log.isInfoEnabled()) {
-                        log.info("Using existing InfinispanCache named [" + cache.getName() + "]");
-                    }
+                if (log.isInfoEnabled()) {
+                    log.info("Added InfinispanCache named [" + name + "]");
                 }
             } else {
-                cache = this.cacheContainer.getCache(name);
+                this.manager.startCaches(name);
+                cache = this.manager.getCache(name, false);
 
                 if (log.isInfoEnabled()) {
-                    log.info("Using InfinispanCache named [" + cache.getName() + "]");
+                    log.info("Using existing InfinispanCache named [" + cache.getName() + "]");
                 }
             }
+        } else if (InfinispanCache.REMOTE_AVAILABLE && RemoteCaches.isRemote(this.cacheContainer)) {
+            cache = RemoteCaches.getCache(this.cacheContainer, name, !this.ignoreReturnValues);
 
-            return new InfinispanCache<K, V>(cache);
-        } catch (CacheException e) {
-            throw new CacheException(e);
+            if (log.isInfoEnabled()) {
+                log.info("Using remote InfinispanCache named [" + name + "]");
+            }
+        } else {
+            cache = this.cacheContainer.getCache(name);
+
+            if (log.isInfoEnabled()) {
+                log.info("Using InfinispanCache named [" + cache.getName() + "]");
+            }
+        }
+
+        InfinispanCache<K, V> infinispanCache = TracingInfinispanCache.isEnabled()
+                ? new TracingInfinispanCache<K, V>(cache, this.ignoreReturnValues)
+                : new InfinispanCache<K, V>(cache, this.ignoreReturnValues);
+        if (this.nearCacheNames.contains(name)) {
+            if (EmbeddedCaches.isEmbedded(cache)) {
+                infinispanCache.setNearCache(getNearCache(name, EmbeddedCaches.advanced(cache)));
+            } else if (this.nearCacheMaxStaleness > 0) {
+                infinispanCache.setNearCache(getNearCache(name, null));
+            } else if (log.isWarnEnabled()) {
+                log.warn("InfinispanCache named [" + name + "] is not embedded and nearCacheMaxStaleness is not " +
+                        "set.  Near-cache will not be used.");
+            }
+        }
+        if (this.writeBehindCacheNames.contains(name) || profile.isWriteBehind()) {
+            infinispanCache.setWriteBehind(getWriteBehindQueue(name, cache));
+        }
+        if (this.memoryBoundedCacheNames.contains(name) && EmbeddedCaches.isEmbedded(cache)) {
+            infinispanCache.setMemoryBudget(getMemoryBudget(name, cache));
+        }
+        if (this.requestScopedCacheNames.contains(name)) {
+            infinispanCache.setRequestScoped(true);
+        }
+        if (this.indexedAuthorizationCacheNames.contains(name) && EmbeddedCaches.isEmbedded(cache)) {
+            ensureAuthorizationIndex(name, cache);
+        }
+        if (this.metricsRegistry != null) {
+            infinispanCache.setMetrics(this.metricsRegistry.metricsFor(name));
+        }
+        BasicCache locks = null;
+        if (this.loadLockCacheNames.contains(name)) {
+            locks = getLoadLockCache(name, cache);
+        }
+        infinispanCache.setSingleFlight(new SingleFlightLoader(locks, this.loadLockTimeout, this.earlyRefreshBeta));
+        return infinispanCache;
+    }
+
+    private BasicCache getLoadLockCache(String name, BasicCache cache) {
+        if (this.manager == null || !EmbeddedCaches.isEmbedded(cache) || !isClustered(this.manager)) {
+            if (log.isWarnEnabled()) {
+                log.warn("InfinispanCache named [" + name + "] is not a clustered embedded cache.  Loads will " +
+                        "only be coordinated on this node.");
+            }
+            return null;
+        }
+        String lockName = name + LOAD_LOCK_CACHE_SUFFIX;
+        defineLoadLockConfiguration(lockName);
+        return this.manager.getCache(lockName);
+    }
+
+    /**
+     * Defines the configuration of a load lock cache: the default configuration, synchronously
+     * distributed and without stores, as locks need neither survive a restart nor be evicted.
+     */
+    private synchronized void defineLoadLockConfiguration(String lockName) {
+        if (this.manager.getCacheNames().contains(lockName)) {
+            return;
+        }
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        builder.read(this.manager.getDefaultCacheConfiguration());
+        builder.clustering().cacheMode(CacheMode.DIST_SYNC);
+        builder.persistence().clearStores();
+        builder.eviction().strategy(EvictionStrategy.NONE).maxEntries(-1);
+        builder.expiration().maxIdle(-1);
+        this.manager.defineConfiguration(lockName, builder.build());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Defined load lock cache named [" + lockName + "]");
+        }
+    }
+
+    /**
+     * Returns the profile of the named cache: the one set explicitly, or the one recognised by its
+     * name if enabled. Principal-grouped caches stay distributed unless set explicitly.
+     *
+     * @param name the name of the cache.
+     * @return the profile of the cache.
+     */
+    private CacheProfile profileOf(String name) {
+        String profile = this.cacheProfiles.get(name);
+        if (profile != null) {
+            return CacheProfile.forName(profile);
+        }
+        if (!this.cacheProfilesEnabled || this.principalGroupedCacheNames.contains(name)) {
+            return CacheProfile.NONE;
+        }
+        return CacheProfile.forCacheName(name);
+    }
+
+    private synchronized void defineProfiledConfiguration(String name, CacheProfile profile) {
+        EmbeddedCacheManager cacheManager = getCacheManager();
+        if (cacheManager.getCacheNames().contains(name)) {
+            return;
+        }
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        builder.read(cacheManager.getDefaultCacheConfiguration());
+        profile.apply(builder);
+        cacheManager.defineConfiguration(name, builder.build());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Applied cache profile " + profile + " to InfinispanCache named [" + name + "]");
+        }
+    }
+
+    private static boolean isClustered(EmbeddedCacheManager cacheManager) {
+        return cacheManager.getCacheManagerConfiguration().transport().transport() != null;
+    }
+
+    private NearCache getNearCache(String name, AdvancedCache cache) {
+        NearCache nearCache = this.nearCaches.get(name);
+        if (nearCache == null) {
+            NearCache created = new NearCache(cache, this.nearCacheMaxEntries,
+                    this.nearCacheMaxStaleness);
+            nearCache = this.nearCaches.putIfAbsent(name, created);
+            if (nearCache == null) {
+                nearCache = created;
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Created near-cache for InfinispanCache named [" + name + "]");
+                }
+            } else {
+                created.stop();
+            }
+        }
+        return nearCache;
+    }
+
+    private WriteBehindQueue getWriteBehindQueue(String name, BasicCache cache) {
+        WriteBehindQueue queue = this.writeBehindQueues.get(name);
+        if (queue == null) {
+            final WriteBehindQueue created = new WriteBehindQueue(cache, this.writeBehindMaxPending);
+            queue = this.writeBehindQueues.putIfAbsent(name, created);
+            if (queue == null) {
+                queue = created;
+                ensureWriteBehindExecutor().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        created.flush();
+                    }
+                }, this.writeBehindInterval, this.writeBehindInterval, TimeUnit.MILLISECONDS);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Created write-behind buffer for InfinispanCache named [" + name + "]");
+                }
+            }
+        }
+        return queue;
+    }
+
+    private MemoryBudget getMemoryBudget(String name, BasicCache cache) {
+        MemoryBudget budget = this.memoryBudgets.get(name);
+        if (budget == null) {
+            MemoryBudget created = new MemoryBudget(EmbeddedCaches.advanced(cache), this.maxCacheMemory,
+                    ensureEvictionExecutor());
+            budget = this.memoryBudgets.putIfAbsent(name, created);
+            if (budget == null) {
+                budget = created;
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Created memory budget for InfinispanCache named [" + name + "]");
+                }
+            } else {
+                created.stop();
+            }
+        }
+        return budget;
+    }
+
+    private void ensureAuthorizationIndex(String name, BasicCache cache) {
+        if (this.authorizationIndexes.containsKey(name)) {
+            return;
+        }
+        AuthorizationIndex created = new AuthorizationIndex(EmbeddedCaches.advanced(cache));
+        if (this.authorizationIndexes.putIfAbsent(name, created) == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Created authorization index for InfinispanCache named [" + name + "]");
+            }
+        } else {
+            created.stop();
+        }
+    }
+
+    private synchronized ScheduledExecutorService ensureWriteBehindExecutor() {
+        if (this.writeBehindExecutor == null) {
+            this.writeBehindExecutor = Executors.newSingleThreadScheduledExecutor(
+                    daemonThreadFactory("shiro-infinispan-write-behind"));
+        }
+        return this.writeBehindExecutor;
+    }
+
+    private synchronized ExecutorService ensureEvictionExecutor() {
+        if (this.evictionExecutor == null) {
+            this.evictionExecutor = Executors.newSingleThreadExecutor(daemonThreadFactory("shiro-infinispan-eviction"));
         }
+        return this.evictionExecutor;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     /**
@@ -245,6 +1406,11 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
      * minutes, something not desirable for Shiro sessions), this class manages an internal default
      * configuration for this case.
      *
+     * The {@link #setStartCacheNames(Set) caches started on init} and the {@link
+     * #setWarmCacheNames(Set) warm caches} are then started concurrently. Loading of persisted
+     * entries of the warm caches, and waiting for initial state transfers, continue in the
+     * background.
+     *
      * @throws org.apache.shiro.cache.CacheException if there are any CacheExceptions thrown by
      *                                               Infinispan.
      * @see org.infinispan.manager.DefaultCacheManager#createCache(String)
@@ -252,15 +1418,118 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
     @Override
     public final void init() throws ShiroException {
         ensureCacheContainer();
+        startBackgroundTasks(startCaches());
     }
 
-    private synchronized void ensureCacheContainer() {
+    private Map<String, InfinispanCache<?, ?>> startCaches() {
+        Set<String> names = new LinkedHashSet<String>(this.startCacheNames);
+        names.addAll(this.warmCacheNames);
+        Map<String, InfinispanCache<?, ?>> started = new LinkedHashMap<String, InfinispanCache<?, ?>>();
+        if (names.isEmpty()) {
+            return started;
+        }
+
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(names.size(),
+                daemonThreadFactory("shiro-infinispan-cache-start"));
         try {
-            if (this.cacheContainer == null) {
-                this.cacheContainer = ensureCacheManager();
+            Map<String, Future<InfinispanCache<?, ?>>> futures = new LinkedHashMap<String, Future<InfinispanCache<?, ?>>>();
+            for (final String name : names) {
+                futures.put(name, executor.submit(new Callable<InfinispanCache<?, ?>>() {
+                    @Override
+                    public InfinispanCache<?, ?> call() {
+                        long cacheStartTime = System.nanoTime();
+                        InfinispanCache<?, ?> cache = (InfinispanCache<?, ?>) getCache(name);
+                        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cacheStartTime);
+                        cacheStartDurations.put(name, duration);
+
+                        if (log.isInfoEnabled()) {
+                            log.info("Started InfinispanCache named [{}] in {} ms.", name, duration);
+                        }
+                        return cache;
+                    }
+                }));
             }
-        } catch (Exception e) {
+            for (Map.Entry<String, Future<InfinispanCache<?, ?>>> future : futures.entrySet()) {
+                started.put(future.getKey(), future.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new CacheException(e);
+        } catch (ExecutionException e) {
+            throw new CacheException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("Started {} InfinispanCaches in {} ms.", started.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+        return started;
+    }
+
+    private void startBackgroundTasks(Map<String, InfinispanCache<?, ?>> started) {
+        Map<String, AdvancedCache<Object, Object>> transfers = new LinkedHashMap<String, AdvancedCache<Object, Object>>();
+        Map<String, AdvancedCache<Object, Object>> warmUps = new LinkedHashMap<String, AdvancedCache<Object, Object>>();
+        for (Map.Entry<String, InfinispanCache<?, ?>> entry : started.entrySet()) {
+            String name = entry.getKey();
+            InfinispanCache<?, ?> cache = entry.getValue();
+            if (!cache.isEmbedded()) {
+                if (this.warmCacheNames.contains(name) && log.isWarnEnabled()) {
+                    log.warn("InfinispanCache named [" + name + "] is not embedded and will not be warmed up.");
+                }
+                continue;
+            }
+            AdvancedCache<Object, Object> advancedCache = EmbeddedCaches.advanced(cache.getDelegate());
+            if (this.startCacheNames.contains(name) && InitialStateTransfer.isObservable(advancedCache)) {
+                transfers.put(name, advancedCache);
+            }
+            if (this.warmCacheNames.contains(name)) {
+                warmUps.put(name, advancedCache);
+            }
+        }
+
+        CountDownLatch latch = new CountDownLatch(transfers.size() + warmUps.size());
+        this.readyLatch = latch;
+        for (Map.Entry<String, AdvancedCache<Object, Object>> transfer : transfers.entrySet()) {
+            daemonThreadFactory("shiro-infinispan-initial-transfer-" + transfer.getKey())
+                    .newThread(InitialStateTransfer.of(transfer.getValue(), latch))
+                    .start();
+        }
+        if (warmUps.isEmpty()) {
+            return;
+        }
+        ForkJoinPool pool;
+        synchronized (this) {
+            if (this.warmUpPool == null) {
+                this.warmUpPool = new ForkJoinPool(this.warmUpParallelism);
+            }
+            pool = this.warmUpPool;
+        }
+        for (Map.Entry<String, AdvancedCache<Object, Object>> warmUp : warmUps.entrySet()) {
+            daemonThreadFactory("shiro-infinispan-warm-up-" + warmUp.getKey())
+                    .newThread(new CacheWarmUp(warmUp.getValue(), pool, latch))
+                    .start();
+        }
+    }
+
+    private void ensureCacheContainer() {
+        if (this.cacheContainer != null) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                if (this.cacheContainer == null) {
+                    if (this.manager == null && (getRemoteServers() != null || getRemoteConfigFile() != null)) {
+                        this.cacheContainer = createRemoteCacheManager();
+                    } else {
+                        this.cacheContainer = ensureCacheManager();
+                    }
+                }
+            } catch (Exception e) {
+                throw new CacheException(e);
+            }
         }
     }
 
@@ -273,7 +1542,9 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
 
                 try {
                     Class.forName("org.infinispan.manager.DefaultCacheManager");
-                    this.manager = new DefaultCacheManager(getCacheManagerConfigFileInputStream());
+                    ConfigurationBuilderHolder holder = new ParserRegistry().parse(getCacheManagerConfigFileInputStream());
+                    configure(holder);
+                    this.manager = new DefaultCacheManager(holder, true);
                 } catch (ClassNotFoundException e) {
                     throw new CacheException(e);
                 }
@@ -294,8 +1565,93 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
         }
     }
 
+    private BasicCacheContainer createRemoteCacheManager() throws IOException {
+        if (!InfinispanCache.REMOTE_AVAILABLE) {
+            throw new CacheException("Remote Infinispan caches require infinispan-client-hotrod on the classpath.");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Hot Rod servers configured.  Constructing RemoteCacheManager instance... ");
+        }
+
+        Properties properties = null;
+        String configFile = getRemoteConfigFile();
+        if (configFile != null) {
+            properties = new Properties();
+            InputStream is = ResourceUtils.getInputStreamForPath(configFile);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        BasicCacheContainer remoteCacheManager = RemoteCaches.createCacheManager(properties, getRemoteServers(),
+                getRemoteMaxActiveConnections());
+        remoteCacheManagerImplicitlyCreated = true;
+
+        if (log.isDebugEnabled()) {
+            log.debug("implicit RemoteCacheManager created successfully.");
+        }
+        return remoteCacheManager;
+    }
+
+    /**
+     * Applies the configuration of this instance to the parsed configuration of an implicitly
+     * created EmbeddedCacheManager.
+     *
+     * @param holder parsed Infinispan configuration.
+     */
+    private void configure(ConfigurationBuilderHolder holder) {
+        if (this.registerExternalizers) {
+            for (AdvancedExternalizer<?> externalizer : ShiroExternalizers.all()) {
+                holder.getGlobalConfigurationBuilder().serialization().addAdvancedExternalizer(externalizer);
+            }
+        }
+        for (String name : this.binaryCacheNames) {
+            cacheConfiguration(holder, name).storeAsBinary().enable()
+                    .storeKeysAsBinary(false)
+                    .storeValuesAsBinary(true);
+        }
+        for (String name : this.principalGroupedCacheNames) {
+            cacheConfiguration(holder, name).clustering().hash()
+                    .consistentHashFactory(new SyncConsistentHashFactory())
+                    .groups().enabled().addGrouper(new PrincipalGrouper());
+        }
+        for (String name : this.startCacheNames) {
+            cacheConfiguration(holder, name).clustering().stateTransfer().awaitInitialTransfer(false);
+        }
+        for (String name : this.warmCacheNames) {
+            for (StoreConfigurationBuilder<?, ?> store : cacheConfiguration(holder, name).persistence().stores()) {
+                store.preload(false);
+            }
+        }
+        if (holder.getGlobalConfigurationBuilder().transport().getTransport() != null) {
+            for (Map.Entry<String, ConfigurationBuilder> entry : holder.getNamedConfigurationBuilders().entrySet()) {
+                profileOf(entry.getKey()).apply(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the configuration builder of the named cache, creating one from the default
+     * configuration if the cache is not configured explicitly.
+     *
+     * @param holder parsed Infinispan configuration.
+     * @param name   the name of the cache.
+     * @return the configuration builder of the cache.
+     */
+    private static ConfigurationBuilder cacheConfiguration(ConfigurationBuilderHolder holder, String name) {
+        ConfigurationBuilder builder = holder.getNamedConfigurationBuilders().get(name);
+        if (builder == null) {
+            builder = holder.newConfigurationBuilder(name);
+            builder.read(holder.getDefaultConfigurationBuilder().build());
+        }
+        return builder;
+    }
+
     /**
-     * Shuts-down the wrapped Infinispan EmbeddedCacheManager <b>only if implicitly created</b>.
+     * Flushes write-behind buffers, stops near-caches, memory budgets, authorization indexes and
+     * warm-ups created by this instance and shuts-down the wrapped Infinispan
+     * EmbeddedCacheManager or RemoteCacheManager <b>only if implicitly created</b>.
      *
      * If another component injected a non-null EmbeddedCacheManager into this instance before
      * calling {@link #init() init}, this instance expects that same component to also destroy the
@@ -303,6 +1659,17 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
      */
     @Override
     public void destroy() {
+        synchronized (this) {
+            if (evictionExecutor != null) {
+                evictionExecutor.shutdownNow();
+                evictionExecutor = null;
+            }
+            if (warmUpPool != null) {
+                warmUpPool.shutdownNow();
+                warmUpPool = null;
+            }
+        }
+        stopCaches();
         if (cacheManagerImplicitlyCreated) {
             try {
                 EmbeddedCacheManager cacheMgr = getCacheManager();
@@ -315,5 +1682,82 @@ public class InfinispanCacheManager implements CacheManager, Initializable, Dest
             }
             cacheManagerImplicitlyCreated = false;
         }
+        if (remoteCacheManagerImplicitlyCreated) {
+            try {
+                BasicCacheContainer remoteCacheManager = this.cacheContainer;
+                this.cacheContainer = null;
+                remoteCacheManager.stop();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to cleanly shutdown implicitly created RemoteCacheManager instance.  " +
+                            "Ignoring (shutting down)...");
+                }
+            }
+            remoteCacheManagerImplicitlyCreated = false;
+        }
+    }
+
+    /**
+     * Flushes and stops the write-behind buffers, and stops the caches, near-caches, memory
+     * budgets and authorization indexes created by this instance, so that the next {@link
+     * #getCache(String) getCache} creates them anew.
+     */
+    private void stopCaches() {
+        synchronized (this) {
+            if (writeBehindExecutor != null) {
+                writeBehindExecutor.shutdownNow();
+                writeBehindExecutor = null;
+            }
+        }
+        for (WriteBehindQueue queue : writeBehindQueues.values()) {
+            try {
+                queue.flush();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to flush write-behind buffer.  Ignoring (shutting down)...");
+                }
+            }
+        }
+        writeBehindQueues.clear();
+        for (InfinispanCache<?, ?> cache : caches.values()) {
+            try {
+                cache.stop();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to cleanly stop cache.  Ignoring (shutting down)...");
+                }
+            }
+        }
+        caches.clear();
+        for (NearCache nearCache : nearCaches.values()) {
+            try {
+                nearCache.stop();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to cleanly stop near-cache.  Ignoring (shutting down)...");
+                }
+            }
+        }
+        nearCaches.clear();
+        for (MemoryBudget budget : memoryBudgets.values()) {
+            try {
+                budget.stop();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to cleanly stop memory budget.  Ignoring (shutting down)...");
+                }
+            }
+        }
+        memoryBudgets.clear();
+        for (AuthorizationIndex index : authorizationIndexes.values()) {
+            try {
+                index.stop();
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to cleanly stop authorization index.  Ignoring (shutting down)...");
+                }
+            }
+        }
+        authorizationIndexes.clear();
     }
 }
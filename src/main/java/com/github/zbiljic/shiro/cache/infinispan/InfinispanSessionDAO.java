@@ -0,0 +1,548 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.ValidatingSession;
+import org.apache.shiro.session.mgt.eis.EnterpriseCacheSessionDAO;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link org.apache.shiro.session.mgt.eis.EnterpriseCacheSessionDAO} that writes session updates
+ * (such as the {@code lastAccessTime} changes made on every request) to an {@link
+ * AsyncInfinispanCache} without blocking the calling thread.
+ *
+ * Session creation and deletion remain synchronous, so a new session is visible cluster-wide as
+ * soon as it is created. If the active sessions cache is not an {@link AsyncInfinispanCache}, or
+ * {@link #setAsyncUpdates(boolean) asyncUpdates} is disabled, updates are written synchronously.
+ *
+ * Asynchronous writes of the same session are not ordered by Infinispan, so at most one update of
+ * each session is written at a time; updates made meanwhile are coalesced into the latest one,
+ * which is written when the previous write completes. Deleting a session drops its pending update
+ * and waits for the one being written, so an update made before a logout can never write the
+ * session back after it has been removed.
+ *
+ * Sessions created by a {@link DeltaSessionFactory} are written to embedded caches as their
+ * changes only, so an update ships the new {@code lastAccessTime} rather than the whole session.
+ *
+ * Optionally, the ids of the sessions of each principal are indexed in a separate cache, so that
+ * {@link #getActiveSessions(Object)} finds the sessions of a user without scanning all sessions.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class InfinispanSessionDAO extends EnterpriseCacheSessionDAO {
+
+    /**
+     * This class's private log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(InfinispanSessionDAO.class);
+
+    /**
+     * Indicates if session updates are written to the cache asynchronously.
+     */
+    private boolean asyncUpdates = true;
+
+    /**
+     * Maximum number of session ids whose indexed principal is remembered by this instance.
+     */
+    static final int MAX_TRACKED_SESSIONS = 65536;
+
+    /**
+     * Name of the cache holding the session ids of each principal; {@code null} if sessions are
+     * not indexed.
+     */
+    private String principalIndexCacheName;
+
+    /**
+     * Index of the session ids of each principal, created on first use.
+     */
+    private volatile PrincipalSessionIndex principalIndex;
+
+    /**
+     * Principal each session was last indexed under by this instance, per session id, so the
+     * index is only written when the principal of a session changes. Guarded by itself.
+     */
+    private final Map<Serializable, Object> indexedPrincipals = new IndexedPrincipals();
+
+    /**
+     * Asynchronous updates being written, per session id.
+     */
+    private final ConcurrentMap<Serializable, SessionWrites> pendingWrites = new ConcurrentHashMap<Serializable, SessionWrites>();
+
+    /**
+     * Default no argument constructor
+     */
+    public InfinispanSessionDAO() {
+    }
+
+    /**
+     * Returns {@code true} if session updates are written to the cache asynchronously.
+     *
+     * Default value is {@code true}.
+     *
+     * @return {@code true} if session updates are written to the cache asynchronously.
+     */
+    public boolean isAsyncUpdates() {
+        return asyncUpdates;
+    }
+
+    /**
+     * Sets whether session updates are written to the cache asynchronously.
+     *
+     * @param asyncUpdates {@code true} if session updates should be written asynchronously.
+     */
+    public void setAsyncUpdates(boolean asyncUpdates) {
+        this.asyncUpdates = asyncUpdates;
+    }
+
+    /**
+     * Returns the name of the cache holding the session ids of each principal.
+     *
+     * @return the name of the principal index cache, or {@code null} if sessions are not indexed.
+     */
+    public String getPrincipalIndexCacheName() {
+        return principalIndexCacheName;
+    }
+
+    /**
+     * Sets the name of the cache holding the session ids of each principal, e.g. {@code
+     * shiro-activeSessionCache-principals}. Sessions are indexed by the primary principal of the
+     * subject logged in to them. The cache must be obtained from an {@link
+     * InfinispanCacheManager}.
+     *
+     * Default value is {@code null}, sessions are not indexed.
+     *
+     * @param principalIndexCacheName the name of the principal index cache, or {@code null} to
+     *                                not index sessions.
+     */
+    public void setPrincipalIndexCacheName(String principalIndexCacheName) {
+        this.principalIndexCacheName = principalIndexCacheName;
+        this.principalIndex = null;
+    }
+
+    /**
+     * Returns the active sessions of the given primary principal.
+     *
+     * With a {@link #setPrincipalIndexCacheName(String) principal index} only the indexed
+     * sessions of the principal are read, and ids of sessions that have ended or changed their
+     * principal are dropped from the index. Without one all active sessions are scanned.
+     *
+     * @param principal the primary principal, e.g. the user name.
+     * @return the active sessions of the principal.
+     */
+    public Collection<Session> getActiveSessions(Object principal) {
+        List<Session> sessions = new ArrayList<Session>();
+        PrincipalSessionIndex index = getPrincipalIndex();
+        if (index == null) {
+            for (Session session : getActiveSessions()) {
+                if (principal.equals(principalOf(session))) {
+                    sessions.add(session);
+                }
+            }
+            return sessions;
+        }
+        Set<Serializable> sessionIds = index.get(principal);
+        if (sessionIds.isEmpty()) {
+            return sessions;
+        }
+        Cache<Serializable, Session> cache = getActiveSessionsCache();
+        Map<Serializable, Session> found;
+        if (cache instanceof BulkInfinispanCache) {
+            found = ((BulkInfinispanCache<Serializable, Session>) cache).getAll(sessionIds);
+        } else {
+            found = new LinkedHashMap<Serializable, Session>();
+            for (Serializable sessionId : sessionIds) {
+                Session session = cache.get(sessionId);
+                if (session != null) {
+                    found.put(sessionId, session);
+                }
+            }
+        }
+        for (Serializable sessionId : sessionIds) {
+            Session session = found.get(sessionId);
+            if (session != null && principal.equals(principalOf(session))) {
+                sessions.add(session);
+            } else {
+                index.remove(principal, sessionId);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Caches the session and indexes it under its principal.
+     *
+     * @param session   the session to cache.
+     * @param sessionId the id of the session.
+     */
+    @Override
+    protected void cache(Session session, Serializable sessionId) {
+        super.cache(session, sessionId);
+        index(session, sessionId);
+    }
+
+    /**
+     * Removes the session from the cache and from the principal index.
+     *
+     * @param session the session to remove.
+     */
+    @Override
+    protected void uncache(Session session) {
+        Serializable sessionId = session != null ? session.getId() : null;
+        if (sessionId != null) {
+            awaitPendingWrites(sessionId);
+        }
+        super.uncache(session);
+        if (sessionId == null) {
+            return;
+        }
+        PrincipalSessionIndex index = getPrincipalIndex();
+        if (index == null) {
+            return;
+        }
+        Object principal;
+        synchronized (indexedPrincipals) {
+            principal = indexedPrincipals.remove(sessionId);
+        }
+        if (principal == null) {
+            principal = principalOf(session);
+        }
+        if (principal != null) {
+            index.remove(principal, sessionId);
+        }
+    }
+
+    private void index(Session session, Serializable sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        PrincipalSessionIndex index = getPrincipalIndex();
+        if (index == null) {
+            return;
+        }
+        Object principal = principalOf(session);
+        Object previous;
+        synchronized (indexedPrincipals) {
+            previous = indexedPrincipals.get(sessionId);
+        }
+        if (principal == null ? previous == null : principal.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            index.remove(previous, sessionId);
+            synchronized (indexedPrincipals) {
+                indexedPrincipals.remove(sessionId);
+            }
+        }
+        if (principal != null) {
+            index.add(principal, sessionId);
+            synchronized (indexedPrincipals) {
+                indexedPrincipals.put(sessionId, principal);
+            }
+        }
+    }
+
+    private PrincipalSessionIndex getPrincipalIndex() {
+        PrincipalSessionIndex index = this.principalIndex;
+        if (index == null && this.principalIndexCacheName != null) {
+            CacheManager cacheManager = getCacheManager();
+            if (cacheManager == null) {
+                return null;
+            }
+            Cache<Object, Set<Serializable>> cache = cacheManager.getCache(this.principalIndexCacheName);
+            if (!(cache instanceof InfinispanCache)) {
+                throw new IllegalStateException("Principal index cache [" + this.principalIndexCacheName +
+                        "] is not an InfinispanCache.");
+            }
+            //noinspection unchecked
+            index = new PrincipalSessionIndex(
+                    (BasicCache<Object, Set<Serializable>>) ((InfinispanCache) cache).getDelegate());
+            this.principalIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the primary principal of the subject logged in to the session.
+     *
+     * @param session the session.
+     * @return the primary principal, or {@code null} if no subject is logged in to the session.
+     */
+    protected Object principalOf(Session session) {
+        Object principals = session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+        if (principals instanceof PrincipalCollection) {
+            return ((PrincipalCollection) principals).getPrimaryPrincipal();
+        }
+        return null;
+    }
+
+    /**
+     * Updates the session, writing it to the active sessions cache without waiting for the write
+     * to complete if possible.
+     *
+     * @param session the session to update.
+     * @throws UnknownSessionException if the session could not be updated.
+     */
+    @Override
+    public void update(Session session) throws UnknownSessionException {
+        Cache<Serializable, Session> cache = getActiveSessionsCache();
+        if (!asyncUpdates || !(cache instanceof AsyncInfinispanCache)) {
+            super.update(session);
+            return;
+        }
+        doUpdate(session);
+        if (session instanceof ValidatingSession && !((ValidatingSession) session).isValid()) {
+            uncache(session);
+        } else {
+            //noinspection unchecked
+            writeAsync((AsyncInfinispanCache<Serializable, Session>) cache, session.getId(), snapshot(session));
+            index(session, session.getId());
+        }
+    }
+
+    private void writeAsync(AsyncInfinispanCache<Serializable, Session> cache, Serializable sessionId, Session session) {
+        for (; ; ) {
+            SessionWrites writes = pendingWrites.get(sessionId);
+            if (writes == null) {
+                SessionWrites created = new SessionWrites(cache, sessionId);
+                writes = pendingWrites.putIfAbsent(sessionId, created);
+                if (writes == null) {
+                    writes = created;
+                }
+            }
+            if (writes.offer(session)) {
+                return;
+            }
+            // the writes were completed or closed by a delete meanwhile
+            pendingWrites.remove(sessionId, writes);
+        }
+    }
+
+    /**
+     * Drops the pending asynchronous update of the session, and waits for the one being written.
+     *
+     * @param sessionId the id of the session.
+     */
+    private void awaitPendingWrites(Serializable sessionId) {
+        SessionWrites writes = pendingWrites.remove(sessionId);
+        if (writes == null) {
+            return;
+        }
+        Future<Session> inFlight = writes.close();
+        if (inFlight == null) {
+            return;
+        }
+        try {
+            inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logUpdateFailure(e);
+        }
+    }
+
+    private static void logUpdateFailure(ExecutionException e) {
+        if (log.isWarnEnabled()) {
+            log.warn("Unable to asynchronously update session in cache.", e.getCause());
+        }
+    }
+
+    /**
+     * Asynchronous updates of one session, written one at a time.
+     */
+    private final class SessionWrites implements FutureListener<Session> {
+
+        private final AsyncInfinispanCache<Serializable, Session> cache;
+
+        private final Serializable sessionId;
+
+        /**
+         * The write in progress, {@code null} if none.
+         */
+        private Future<Session> inFlight;
+
+        /**
+         * The latest update made while a write was in progress, {@code null} if none.
+         */
+        private Session next;
+
+        /**
+         * Indicates if no more updates are accepted, because the writes completed or the session
+         * was deleted.
+         */
+        private boolean closed;
+
+        SessionWrites(AsyncInfinispanCache<Serializable, Session> cache, Serializable sessionId) {
+            this.cache = cache;
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Writes the session, or replaces the pending update if a write is in progress.
+         *
+         * @param session the session to write.
+         * @return {@code false} if no more updates are accepted.
+         */
+        synchronized boolean offer(Session session) {
+            if (closed) {
+                return false;
+            }
+            if (inFlight != null) {
+                next = session;
+            } else {
+                write(session);
+            }
+            return true;
+        }
+
+        /**
+         * Drops the pending update and accepts no more updates.
+         *
+         * @return the write in progress, or {@code null} if none.
+         */
+        synchronized Future<Session> close() {
+            closed = true;
+            next = null;
+            return inFlight;
+        }
+
+        private void write(Session session) {
+            NotifyingFuture<Session> future = cache.putAsync(sessionId, session);
+            inFlight = future;
+            future.attachListener(this);
+        }
+
+        /**
+         * Called once the write is applied or has failed. Writes to embedded caches notify their
+         * listeners once the result is set, so failures are logged before the next update is
+         * written. Remote caches notify them before, so the result is only read if it is already
+         * available; waiting for it here would never return.
+         *
+         * @param future the completed write.
+         */
+        @Override
+        public void futureDone(Future<Session> future) {
+            if (future.isDone()) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    logUpdateFailure(e);
+                }
+            }
+            synchronized (this) {
+                if (future != inFlight) {
+                    return;
+                }
+                inFlight = null;
+                if (next != null && !closed) {
+                    Session session = next;
+                    next = null;
+                    write(session);
+                    return;
+                }
+                closed = true;
+            }
+            pendingWrites.remove(sessionId, this);
+        }
+    }
+
+    /**
+     * Returns the session instance that is written to the cache asynchronously.
+     *
+     * Because the calling thread keeps using (and possibly modifying) the session while it is being
+     * written, {@link org.apache.shiro.session.mgt.SimpleSession}s are copied, including a shallow
+     * copy of their attributes. Other session types are returned as is, including {@link
+     * DeltaSession}s, whose changes are taken when the write is submitted.
+     *
+     * @param session the session to write.
+     * @return the session instance to write.
+     */
+    protected Session snapshot(Session session) {
+        if (!(session instanceof SimpleSession) || (InfinispanCache.EMBEDDED_AVAILABLE && session instanceof DeltaSession)) {
+            return session;
+        }
+        SimpleSession source = (SimpleSession) session;
+        SimpleSession copy = new SimpleSession();
+        copy.setId(source.getId());
+        copy.setStartTimestamp(copyOf(source.getStartTimestamp()));
+        copy.setStopTimestamp(copyOf(source.getStopTimestamp()));
+        copy.setLastAccessTime(copyOf(source.getLastAccessTime()));
+        copy.setTimeout(source.getTimeout());
+        copy.setExpired(source.isExpired());
+        copy.setHost(source.getHost());
+        Map<Object, Object> attributes = source.getAttributes();
+        if (attributes != null) {
+            copy.setAttributes(new LinkedHashMap<Object, Object>(attributes));
+        }
+        return copy;
+    }
+
+    private static Date copyOf(Date date) {
+        return date != null ? new Date(date.getTime()) : null;
+    }
+
+    /**
+     * Indexed principals of the {@value #MAX_TRACKED_SESSIONS} most recently indexed or updated
+     * sessions. Sessions which expired on other nodes are never uncached here, so the least
+     * recently used ones are dropped; their next update writes the index again.
+     */
+    private static final class IndexedPrincipals extends LinkedHashMap<Serializable, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        IndexedPrincipals() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Serializable, Object> eldest) {
+            return size() > MAX_TRACKED_SESSIONS;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.session.InvalidSessionException;
+import org.apache.shiro.session.mgt.AbstractValidatingSessionManager;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.NativeSessionManager;
+import org.apache.shiro.session.mgt.SessionValidationScheduler;
+import org.apache.shiro.session.mgt.ValidatingSessionManager;
+import org.apache.shiro.session.mgt.eis.CachingSessionDAO;
+import org.apache.shiro.session.mgt.eis.SessionDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shiro {@link org.apache.shiro.session.mgt.SessionValidationScheduler} that validates the
+ * sessions of an Infinispan session cache on the nodes holding them.
+ *
+ * Shiro's own validation reads every active session through the session DAO and checks them on
+ * one node, which copies the whole distributed session cache over the network on every run. This
+ * scheduler instead checks the sessions on their primary owners and only collects the ids of the
+ * stopped or expired ones. Those sessions are then invalidated through {@link
+ * org.apache.shiro.session.mgt.NativeSessionManager#checkValid(org.apache.shiro.session.mgt.SessionKey)
+ * checkValid}, so session listeners are notified and the sessions are deleted exactly as if Shiro
+ * had validated them. In a cluster only the coordinator validates the sessions.
+ *
+ * The session cache is taken from the session manager's {@link
+ * org.apache.shiro.session.mgt.eis.CachingSessionDAO}. If it is not an embedded {@link
+ * InfinispanCache}, the scheduler falls back to {@link
+ * org.apache.shiro.session.mgt.ValidatingSessionManager#validateSessions()}.
+ *
+ * <pre>
+ * sessionValidationScheduler = com.github.zbiljic.shiro.cache.infinispan.InfinispanSessionValidationScheduler
+ * sessionValidationScheduler.sessionManager = $sessionManager
+ * sessionManager.sessionValidationScheduler = $sessionValidationScheduler
+ * </pre>
+ *
+ * @author Nemanja Zbiljic
+ */
+public class InfinispanSessionValidationScheduler implements SessionValidationScheduler, Runnable {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(InfinispanSessionValidationScheduler.class);
+
+    /**
+     * The session manager whose sessions are validated.
+     */
+    private ValidatingSessionManager sessionManager;
+
+    /**
+     * Interval, in milliseconds, between validations.
+     */
+    private long interval = AbstractValidatingSessionManager.DEFAULT_SESSION_VALIDATION_INTERVAL;
+
+    /**
+     * Executor running the validations while enabled.
+     */
+    private ScheduledExecutorService service;
+
+    private volatile boolean enabled = false;
+
+    public InfinispanSessionValidationScheduler() {
+    }
+
+    public InfinispanSessionValidationScheduler(ValidatingSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public ValidatingSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public void setSessionManager(ValidatingSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Returns the interval, in milliseconds, between validations.
+     *
+     * Default value is one hour, the same as Shiro's default.
+     *
+     * @return the validation interval.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, between validations.
+     *
+     * @param interval the validation interval.
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts validating sessions every {@link #getInterval() interval} milliseconds.
+     */
+    @Override
+    public void enableSessionValidation() {
+        if (this.interval > 0) {
+            this.service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "shiro-infinispan-session-validation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.service.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        this.enabled = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            validateSessions();
+        } catch (RuntimeException e) {
+            if (log.isErrorEnabled()) {
+                log.error("Unable to validate sessions.  Retrying on next run.", e);
+            }
+        }
+    }
+
+    /**
+     * Validates the sessions of the session manager once.
+     */
+    public void validateSessions() {
+        InfinispanCache<?, ?> cache = getActiveSessionsCache();
+        if (cache == null || !cache.isEmbedded() || !(sessionManager instanceof NativeSessionManager)) {
+            sessionManager.validateSessions();
+            return;
+        }
+        if (!DistributedSessionValidation.isResponsible(cache.getDelegate())) {
+            if (log.isDebugEnabled()) {
+                log.debug("Sessions are validated by the cluster coordinator.  Skipping.");
+            }
+            return;
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("Validating all active sessions on their owners...");
+        }
+
+        List<Serializable> ids;
+        try {
+            ids = DistributedSessionValidation.findInvalidSessionIds(cache.getDelegate());
+        } catch (Exception e) {
+            throw new CacheException(e);
+        }
+
+        int invalidCount = 0;
+        NativeSessionManager nativeSessionManager = (NativeSessionManager) sessionManager;
+        for (Serializable id : ids) {
+            try {
+                nativeSessionManager.checkValid(new DefaultSessionKey(id));
+            } catch (InvalidSessionException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Invalidated session with id [" + id + "]");
+                }
+                invalidCount++;
+            }
+        }
+
+        if (log.isInfoEnabled()) {
+            String msg = "Finished session validation.";
+            if (invalidCount > 0) {
+                msg += "  [" + invalidCount + "] sessions were stopped.";
+            } else {
+                msg += "  No sessions were stopped.";
+            }
+            log.info(msg);
+        }
+    }
+
+    private InfinispanCache<?, ?> getActiveSessionsCache() {
+        if (!(sessionManager instanceof DefaultSessionManager)) {
+            return null;
+        }
+        SessionDAO sessionDAO = ((DefaultSessionManager) sessionManager).getSessionDAO();
+        if (!(sessionDAO instanceof CachingSessionDAO)) {
+            return null;
+        }
+        CachingSessionDAO cachingSessionDAO = (CachingSessionDAO) sessionDAO;
+        Cache<?, ?> cache = cachingSessionDAO.getActiveSessionsCache();
+        CacheManager cacheManager = cachingSessionDAO.getCacheManager();
+        if (cache == null && cacheManager != null) {
+            cache = cacheManager.getCache(cachingSessionDAO.getActiveSessionsCacheName());
+        }
+        return cache instanceof InfinispanCache ? (InfinispanCache<?, ?>) cache : null;
+    }
+
+    /**
+     * Stops validating sessions.
+     */
+    @Override
+    public void disableSessionValidation() {
+        if (this.service != null) {
+            this.service.shutdownNow();
+        }
+        this.enabled = false;
+    }
+}
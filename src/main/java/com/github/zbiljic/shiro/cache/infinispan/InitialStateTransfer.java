@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.statetransfer.StateTransferManager;
+import org.infinispan.statetransfer.StateTransferManagerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits in the background for the initial state transfer of a clustered embedded Infinispan cache
+ * that was started without waiting for it ({@code awaitInitialTransfer="false"}).
+ *
+ * Until the transfer completes the cache already serves requests: entries this node does not hold
+ * yet are read from their previous owners or from the cache stores.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class InitialStateTransfer implements Runnable {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(InitialStateTransfer.class);
+
+    private final AdvancedCache<?, ?> cache;
+
+    private final StateTransferManagerImpl stateTransferManager;
+
+    private final CountDownLatch done;
+
+    private final long startTime = System.nanoTime();
+
+    private InitialStateTransfer(AdvancedCache<?, ?> cache, StateTransferManagerImpl stateTransferManager,
+                                 CountDownLatch done) {
+        this.cache = cache;
+        this.stateTransferManager = stateTransferManager;
+        this.done = done;
+    }
+
+    /**
+     * Returns {@code true} if the given cache is clustered and the completion of its initial state
+     * transfer can be observed.
+     *
+     * @param cache embedded Infinispan cache.
+     * @return {@code true} if the initial state transfer of the cache can be waited for.
+     */
+    static boolean isObservable(AdvancedCache<?, ?> cache) {
+        return cache.getRpcManager() != null && stateTransferManager(cache) != null;
+    }
+
+    /**
+     * Creates a task waiting for the initial state transfer of the given cache.
+     *
+     * @param cache embedded Infinispan cache, for which {@link #isObservable(AdvancedCache)} holds.
+     * @param done  latch counted down once the transfer completed or failed.
+     * @return the task waiting for the initial state transfer.
+     */
+    static InitialStateTransfer of(AdvancedCache<?, ?> cache, CountDownLatch done) {
+        return new InitialStateTransfer(cache, stateTransferManager(cache), done);
+    }
+
+    private static StateTransferManagerImpl stateTransferManager(AdvancedCache<?, ?> cache) {
+        StateTransferManager stateTransferManager = cache.getComponentRegistry()
+                .getComponent(StateTransferManager.class);
+        return stateTransferManager instanceof StateTransferManagerImpl
+                ? (StateTransferManagerImpl) stateTransferManager : null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            stateTransferManager.waitForInitialStateTransferToComplete();
+            if (log.isInfoEnabled()) {
+                log.info("Initial state transfer of InfinispanCache named [{}] completed {} ms after start.",
+                        cache.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Initial state transfer of InfinispanCache named [" + cache.getName() +
+                        "] did not complete.  Missing entries will be fetched from other nodes on access.", e);
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+}
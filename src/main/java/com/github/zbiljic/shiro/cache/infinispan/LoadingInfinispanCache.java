@@ -0,0 +1,55 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Extension of Shiro's {@link org.apache.shiro.cache.Cache} that loads missing values on demand.
+ *
+ * Concurrent misses of the same key are coalesced, so that the loader is called once while the
+ * other callers wait for its result. Values about to expire may be refreshed early by a single
+ * caller, while the others keep being served the current value. This protects the backend of a
+ * realm from a stampede of identical loads whenever a popular entry expires.
+ *
+ * @author Nemanja Zbiljic
+ */
+public interface LoadingInfinispanCache<K, V> extends Cache<K, V> {
+
+    /**
+     * Gets a value of an element which matches the given key, loading and putting it into the
+     * cache if there is none.
+     *
+     * @param key    the key of the element to return.
+     * @param loader the loader of the value, called if the value is not found or about to expire.
+     * @return the cached or loaded value, or {@code null} if the loader returned {@code null}, in
+     * which case nothing is cached.
+     * @throws CacheException if the value could not be read, loaded or put. Failures of the loader
+     *                        are wrapped, and reported to every caller waiting for it.
+     */
+    V get(K key, Callable<? extends V> loader) throws CacheException;
+}
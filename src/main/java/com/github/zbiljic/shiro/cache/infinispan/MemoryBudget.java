@@ -0,0 +1,398 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.container.DataContainer;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the memory held by the local entries of an embedded Infinispan cache.
+ *
+ * Every entry is weighed by the serialized size of its value when it is first written on a node
+ * that owns it, and again on one in {@value #WEIGH_SAMPLE_INTERVAL} of its later modifications,
+ * whether the writes came from this node, from another node or from a write-behind flush. Entries
+ * owned only by other nodes are never weighed here, even when this node wrote them. The weights
+ * of the entries owned by this node add up to a running total. When the total exceeds the budget,
+ * the least recently read or written entries are evicted from this node until the total drops
+ * below {@value #LOW_WATER_MARK_PERCENT}% of the budget.
+ *
+ * Weighing and eviction run on the given executor, never on the thread that wrote the entry.
+ * Writes only mark the entry to be weighed; the value is serialized later, as it is then, so an
+ * entry modified several times in between is weighed once. Eviction uses Infinispan's own
+ * {@code evict}, so evicted entries are passivated to a cache store if one is configured, and
+ * only this node's copy is affected.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class MemoryBudget {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+
+    /**
+     * Percentage of the budget that eviction brings the total down to, so that eviction does not
+     * run again on the very next write.
+     */
+    static final int LOW_WATER_MARK_PERCENT = 90;
+
+    /**
+     * An entry already weighed is weighed again on one in this many of its modifications.
+     */
+    static final int WEIGH_SAMPLE_INTERVAL = 16;
+
+    /**
+     * The Infinispan cache whose entries are weighed.
+     */
+    private final AdvancedCache cache;
+
+    /**
+     * Maximum total weight, in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * Executor running evictions.
+     */
+    private final Executor executor;
+
+    /**
+     * Weights of the entries held on this node, per key.
+     */
+    private final ConcurrentMap<Object, Weight> weights = new ConcurrentHashMap<Object, Weight>();
+
+    /**
+     * Keys of the entries waiting to be weighed.
+     */
+    private final Set<Object> pending = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Sum of all weights.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Indicates if weighing and eviction are scheduled or running.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The listener that keeps the weights in line with the cache.
+     */
+    private final Tracker tracker = new Tracker();
+
+    private final Runnable maintenance = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                weighPending();
+                evict();
+            } catch (RuntimeException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to evict entries from cache [" + cache.getName() + "]", e);
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (!pending.isEmpty() || total.get() > maxBytes) {
+                schedule();
+            }
+        }
+    };
+
+    MemoryBudget(AdvancedCache cache, long maxBytes, Executor executor) {
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+        this.cache.addListener(tracker);
+    }
+
+    /**
+     * Weighs the value written for the key.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return the weight of the value, or {@code -1} if it could not be serialized.
+     */
+    int weigh(Object key, Object value) {
+        int bytes;
+        try {
+            bytes = EmbeddedCaches.serializedSize(cache, value);
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to weigh value in cache [" + cache.getName() + "]", e);
+            }
+            return -1;
+        }
+        Weight previous = weights.put(key, new Weight(bytes));
+        if (total.addAndGet(previous != null ? bytes - previous.bytes : bytes) > maxBytes) {
+            schedule();
+        }
+        return bytes;
+    }
+
+    /**
+     * Records a write of the key on this node, marking the entry to be weighed if it was not
+     * weighed before, or if the modification is sampled.
+     *
+     * @param key the key.
+     */
+    private void written(Object key) {
+        Weight weight = weights.get(key);
+        if (weight != null) {
+            weight.lastAccess = System.nanoTime();
+            // increments lost to races only delay the next weighing
+            if (++weight.modifications % WEIGH_SAMPLE_INTERVAL != 0) {
+                return;
+            }
+        }
+        if (pending.add(key)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Weighs the current values of the entries waiting to be weighed.
+     */
+    private void weighPending() {
+        DataContainer container = cache.getDataContainer();
+        for (Object key : pending) {
+            pending.remove(key);
+            InternalCacheEntry entry = container.peek(key);
+            Object value = entry != null ? EmbeddedCaches.unwrap(entry.getValue()) : null;
+            if (value != null) {
+                weigh(key, value);
+            }
+        }
+    }
+
+    /**
+     * Records a read of the key, making the entry less likely to be evicted.
+     *
+     * @param key the key.
+     */
+    void touch(Object key) {
+        Weight weight = weights.get(key);
+        if (weight != null) {
+            weight.lastAccess = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns whether this node owns the key, as opposed to holding it in L1 or not at all.
+     *
+     * @param key the key.
+     * @return {@code true} if the key is owned by this node, or the cache is not distributed.
+     */
+    private boolean isOwned(Object key) {
+        DistributionManager distributionManager = cache.getDistributionManager();
+        return distributionManager == null || distributionManager.getLocality(key).isLocal();
+    }
+
+    /**
+     * Drops the weight of the key.
+     *
+     * @param key the key.
+     */
+    void release(Object key) {
+        Weight weight = weights.remove(key);
+        if (weight != null) {
+            total.addAndGet(-weight.bytes);
+        }
+    }
+
+    /**
+     * Drops all weights, after the cache has been cleared.
+     */
+    void clear() {
+        for (Object key : weights.keySet()) {
+            release(key);
+        }
+    }
+
+    /**
+     * Returns the total weight, in bytes, of the entries held on this node.
+     *
+     * @return the total weight.
+     */
+    long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Unregisters the listener and drops all weights.
+     */
+    void stop() {
+        cache.removeListener(tracker);
+        pending.clear();
+        clear();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(maintenance);
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the total weight is below the low water mark.
+     */
+    private void evict() {
+        long target = maxBytes / 100 * LOW_WATER_MARK_PERCENT;
+        if (total.get() <= target) {
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<Candidate>(weights.size());
+        for (Map.Entry<Object, Weight> entry : weights.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+        Candidate[] ordered = candidates.toArray(new Candidate[candidates.size()]);
+        Arrays.sort(ordered, OLDEST_FIRST);
+
+        DataContainer container = cache.getDataContainer();
+        int evicted = 0;
+        for (Candidate candidate : ordered) {
+            if (total.get() <= target) {
+                break;
+            }
+            if (container.containsKey(candidate.key)) {
+                cache.evict(candidate.key);
+                evicted++;
+            }
+            // entries that expired or were evicted without notification are dropped as well
+            if (weights.remove(candidate.key, candidate.weight)) {
+                total.addAndGet(-candidate.weight.bytes);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Evicted " + evicted + " entries from cache [" + cache.getName() + "], " +
+                    total.get() + " of " + maxBytes + " bytes in use");
+        }
+    }
+
+    private static final Comparator<Candidate> OLDEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+        }
+    };
+
+    /**
+     * The weight of an entry, when it was last accessed, and how many times it was modified since
+     * it was weighed.
+     */
+    private static final class Weight {
+
+        private final int bytes;
+
+        private volatile long lastAccess = System.nanoTime();
+
+        private int modifications;
+
+        Weight(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * An entry considered for eviction. The access time is copied so that it does not change
+     * while the candidates are sorted.
+     */
+    private static final class Candidate {
+
+        private final Object key;
+
+        private final Weight weight;
+
+        private final long lastAccess;
+
+        Candidate(Object key, Weight weight) {
+            this.key = key;
+            this.weight = weight;
+            this.lastAccess = weight.lastAccess;
+        }
+    }
+
+    /**
+     * Marks entries to be weighed as they are written on this node, and drops the weights of
+     * entries that leave this node.
+     */
+    @Listener
+    public final class Tracker {
+
+        @CacheEntryModified
+        public void onModify(CacheEntryModifiedEvent event) {
+            if (!event.isPre() && isOwned(event.getKey())) {
+                written(event.getKey());
+            }
+        }
+
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onRemove(CacheEntryEvent event) {
+            if (!event.isPre()) {
+                release(event.getKey());
+            }
+        }
+
+        @CacheEntriesEvicted
+        public void onEvict(CacheEntriesEvictedEvent event) {
+            for (Object key : event.getEntries().keySet()) {
+                release(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.commons.equivalence.AnyEquivalence;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, node-local read-through cache kept in front of an embedded Infinispan cache.
+ *
+ * Entries are held in a {@link org.infinispan.util.concurrent.BoundedConcurrentHashMap} with LIRS
+ * eviction. They are invalidated by a listener registered on the Infinispan cache whenever the
+ * entry is modified, removed or (L1) invalidated on this node. Because Infinispan 6 only notifies
+ * nodes that own or hold an L1 copy of an entry, distributed caches should either enable L1 or
+ * rely on the {@code maxStaleness} bound, after which a near-cached entry is re-read.
+ *
+ * Near-caches of Hot Rod remote caches have no Infinispan cache to listen to, as Hot Rod 6 clients
+ * are not notified of changes. Only writes made through this node invalidate their entries, and
+ * the {@code maxStaleness} bound must be set.
+ *
+ * A value read or written before an entry is invalidated must not be cached after it. Each
+ * invalidation is counted, in one of a fixed number of counters picked by the hash of the key;
+ * callers read the count before reading or writing the value, and the value is only cached if
+ * the count is unchanged once it is in place. Modifications of the written entries made by the
+ * writing thread itself are not counted.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class NearCache {
+
+    /**
+     * Number of invalidation counters; a power of two.
+     */
+    private static final int INVALIDATION_COUNTERS = 1024;
+
+    /**
+     * The embedded Infinispan cache this near-cache is kept in front of, or {@code null} for remote
+     * caches.
+     */
+    private final AdvancedCache cache;
+
+    /**
+     * Locally cached values.
+     */
+    private final ConcurrentMap<Object, Entry> entries;
+
+    /**
+     * Maximum time, in milliseconds, an entry is served from this near-cache. Values less than or
+     * equal to zero disable time based staleness bound.
+     */
+    private final long maxStaleness;
+
+    /**
+     * The listener that invalidates entries modified in the Infinispan cache.
+     */
+    private final Invalidator invalidator = new Invalidator();
+
+    /**
+     * Number of invalidations, per key hash.
+     */
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_COUNTERS);
+
+    /**
+     * The keys written by the current thread, see {@link #startWriting(Collection)}.
+     */
+    private final ThreadLocal<Collection<?>> writing = new ThreadLocal<Collection<?>>();
+
+    NearCache(AdvancedCache cache, int maxEntries, long maxStaleness) {
+        this.cache = cache;
+        this.maxStaleness = maxStaleness;
+        this.entries = new BoundedConcurrentHashMap<Object, Entry>(maxEntries,
+                Runtime.getRuntime().availableProcessors() * 4, BoundedConcurrentHashMap.Eviction.LIRS,
+                AnyEquivalence.<Object>getInstance(), AnyEquivalence.<Entry>getInstance());
+        if (cache != null) {
+            cache.addListener(invalidator);
+        }
+    }
+
+    /**
+     * Returns the locally cached value for the key, or {@code null} if there is none or it became
+     * too stale.
+     *
+     * @param key the key.
+     * @return locally cached value, or {@code null}.
+     */
+    Object get(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (maxStaleness > 0 && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the count of invalidations of the key, to be read before the value to cache is read
+     * or written.
+     *
+     * @param key the key.
+     * @return the count of invalidations.
+     */
+    long invalidations(Object key) {
+        return invalidations.get(counter(key));
+    }
+
+    /**
+     * Caches the value for the key locally, unless the key has been invalidated since the count
+     * of its invalidations was read.
+     *
+     * @param key           the key.
+     * @param value         the value.
+     * @param invalidations the count of invalidations read before the value was read or written.
+     */
+    void put(Object key, Object value, long invalidations) {
+        long expires = maxStaleness > 0 ? System.currentTimeMillis() + maxStaleness : Long.MAX_VALUE;
+        Entry entry = new Entry(value, expires);
+        entries.put(key, entry);
+        // an invalidation counted after this check removes the entry afterwards
+        if (this.invalidations.get(counter(key)) != invalidations) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes the locally cached value for the key.
+     *
+     * @param key the key.
+     */
+    void invalidate(Object key) {
+        invalidations.incrementAndGet(counter(key));
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all locally cached values.
+     */
+    void clear() {
+        for (int i = 0; i < INVALIDATION_COUNTERS; i++) {
+            invalidations.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Marks the keys as being written by the current thread, until {@link #stopWriting()}. The
+     * modifications made by the write itself then do not prevent caching the written values.
+     *
+     * @param keys the written keys.
+     */
+    void startWriting(Collection<?> keys) {
+        writing.set(keys);
+    }
+
+    /**
+     * Ends the write started by {@link #startWriting(Collection)}.
+     */
+    void stopWriting() {
+        writing.remove();
+    }
+
+    private static int counter(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (INVALIDATION_COUNTERS - 1);
+    }
+
+    /**
+     * Unregisters the invalidation listener and removes all locally cached values.
+     */
+    void stop() {
+        if (cache != null) {
+            cache.removeListener(invalidator);
+        }
+        entries.clear();
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Invalidates near-cached entries after they have been changed in the Infinispan cache.
+     */
+    @Listener
+    public final class Invalidator {
+
+        @CacheEntryModified
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onChange(CacheEntryEvent event) {
+            if (event.isPre()) {
+                return;
+            }
+            Collection<?> written = writing.get();
+            if (written != null && event.isOriginLocal() && written.contains(event.getKey())) {
+                entries.remove(event.getKey());
+            } else {
+                invalidate(event.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link org.infinispan.commons.util.concurrent.NotifyingFuture} running a task, whose listeners
+ * are notified once the result of the task is set.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class NotifyingFutureTask<V> extends FutureTask<V> implements NotifyingFuture<V> {
+
+    /**
+     * Listeners to notify once done; {@code null} once they have been notified.
+     */
+    private List<FutureListener<V>> listeners = new ArrayList<FutureListener<V>>(1);
+
+    NotifyingFutureTask(Callable<V> callable) {
+        super(callable);
+    }
+
+    @Override
+    public NotifyingFuture<V> attachListener(FutureListener<V> listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        listener.futureDone(this);
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        List<FutureListener<V>> notified;
+        synchronized (this) {
+            notified = listeners;
+            listeners = null;
+        }
+        for (FutureListener<V> listener : notified) {
+            listener.futureDone(this);
+        }
+    }
+}
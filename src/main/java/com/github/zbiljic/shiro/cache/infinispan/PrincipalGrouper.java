@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.subject.PrincipalCollection;
+import org.infinispan.distribution.group.Grouper;
+
+/**
+ * Infinispan {@link org.infinispan.distribution.group.Grouper} placing all entries of one
+ * principal in the same group, whichever principal-keyed cache they are in.
+ *
+ * The group of a {@link org.apache.shiro.subject.PrincipalCollection} key, as used by Shiro's
+ * authorization caches, is the string form of its primary principal. The group of any other key,
+ * such as the user name keying Shiro's authentication caches or the {@link
+ * InfinispanSessionDAO#setPrincipalIndexCacheName(String) principal index}, is its own string
+ * form. Keys that already belong to a group keep it.
+ *
+ * Entries of the same group are owned by the same nodes only if the caches also have the same
+ * number of segments and use Infinispan's {@code SyncConsistentHashFactory}, as configured by
+ * {@link InfinispanCacheManager#setPrincipalGroupedCacheNames(java.util.Set)}. The grouper can
+ * also be registered in XML, with {@code <groups enabled="true"><grouper
+ * class="com.github.zbiljic.shiro.cache.infinispan.PrincipalGrouper"/></groups>}.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class PrincipalGrouper implements Grouper<Object> {
+
+    @Override
+    public String computeGroup(Object key, String group) {
+        if (group != null) {
+            return group;
+        }
+        if (key instanceof PrincipalCollection) {
+            Object primaryPrincipal = ((PrincipalCollection) key).getPrimaryPrincipal();
+            return primaryPrincipal != null ? String.valueOf(primaryPrincipal) : null;
+        }
+        return String.valueOf(key);
+    }
+
+    @Override
+    public Class<Object> getKeyType() {
+        return Object.class;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.commons.api.BasicCache;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Index of the ids of the sessions of each principal, kept in its own Infinispan cache.
+ *
+ * Every principal has one entry holding the set of its session ids. Entries are never modified
+ * in place: a changed set is written with Infinispan's atomic {@code putIfAbsent}, {@code
+ * replace} and {@code remove} operations conditioned on the previous set, retried if another node
+ * changed the entry in the meantime. Concurrent logins of the same principal on different nodes
+ * therefore never lose each other's session ids. Hot Rod caches condition these operations on
+ * the version of the entry instead.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class PrincipalSessionIndex {
+
+    private final BasicCache<Object, Set<Serializable>> cache;
+
+    private final boolean remote;
+
+    PrincipalSessionIndex(BasicCache<Object, Set<Serializable>> cache) {
+        this.cache = cache;
+        this.remote = InfinispanCache.REMOTE_AVAILABLE && RemoteCaches.isRemote(cache);
+    }
+
+    /**
+     * Adds the session id to the sessions of the principal.
+     *
+     * @param principal the principal.
+     * @param sessionId the session id.
+     */
+    void add(Object principal, Serializable sessionId) {
+        while (true) {
+            Set<Serializable> current = cache.get(principal);
+            if (current == null) {
+                if (putIfAbsent(principal, Collections.<Serializable>singleton(sessionId)) == null) {
+                    return;
+                }
+            } else {
+                if (current.contains(sessionId)) {
+                    return;
+                }
+                Set<Serializable> updated = new HashSet<Serializable>(current);
+                updated.add(sessionId);
+                if (replace(principal, current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the session id from the sessions of the principal.
+     *
+     * @param principal the principal.
+     * @param sessionId the session id.
+     */
+    void remove(Object principal, Serializable sessionId) {
+        while (true) {
+            Set<Serializable> current = cache.get(principal);
+            if (current == null || !current.contains(sessionId)) {
+                return;
+            }
+            if (current.size() == 1) {
+                if (remove(principal, current)) {
+                    return;
+                }
+            } else {
+                Set<Serializable> updated = new HashSet<Serializable>(current);
+                updated.remove(sessionId);
+                if (replace(principal, current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Set<Serializable> putIfAbsent(Object principal, Set<Serializable> sessionIds) {
+        return remote ? RemoteCaches.putIfAbsent(cache, principal, sessionIds) : cache.putIfAbsent(principal, sessionIds);
+    }
+
+    private boolean replace(Object principal, Set<Serializable> current, Set<Serializable> updated) {
+        return remote ? RemoteCaches.replace(cache, principal, current, updated) : cache.replace(principal, current, updated);
+    }
+
+    private boolean remove(Object principal, Set<Serializable> current) {
+        return remote ? RemoteCaches.remove(cache, principal, current) : cache.remove(principal, current);
+    }
+
+    /**
+     * Returns the ids of the sessions of the principal.
+     *
+     * @param principal the principal.
+     * @return the session ids, possibly including sessions which have ended since.
+     */
+    Set<Serializable> get(Object principal) {
+        Set<Serializable> sessionIds = cache.get(principal);
+        return sessionIds != null ? sessionIds : Collections.<Serializable>emptySet();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.client.hotrod.Flag;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.client.hotrod.VersionedValue;
+import org.infinispan.client.hotrod.configuration.ConfigurationBuilder;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.api.BasicCacheContainer;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Helper methods for caches accessed through an Infinispan Hot Rod {@link
+ * org.infinispan.client.hotrod.RemoteCacheManager}.
+ *
+ * This class references {@code infinispan-client-hotrod} types directly, so callers must make
+ * sure that {@code infinispan-client-hotrod} is on the classpath before using it (see {@link
+ * InfinispanCache#REMOTE_AVAILABLE}).
+ *
+ * @author Nemanja Zbiljic
+ */
+final class RemoteCaches {
+
+    private RemoteCaches() {
+    }
+
+    /**
+     * Returns {@code true} if the given cache container is a Hot Rod remote cache manager.
+     *
+     * @param cacheContainer the cache container to check.
+     * @return {@code true} if the given cache container is a remote cache manager.
+     */
+    static boolean isRemote(BasicCacheContainer cacheContainer) {
+        return cacheContainer instanceof RemoteCacheManager;
+    }
+
+    /**
+     * Returns {@code true} if the given cache is a Hot Rod remote cache.
+     *
+     * @param cache the cache to check.
+     * @return {@code true} if the given cache is a remote cache.
+     */
+    static boolean isRemote(BasicCache cache) {
+        return cache instanceof RemoteCache;
+    }
+
+    /**
+     * Creates and starts a remote cache manager.
+     *
+     * @param properties           Hot Rod client properties, or {@code null}.
+     * @param servers              list of {@code host[:port]} servers separated by {@code ;},
+     *                             or {@code null} to use the servers of the properties.
+     * @param maxActiveConnections maximum number of connections to each server, or a value less
+     *                             than or equal to zero to use the one of the properties.
+     * @return the started remote cache manager.
+     */
+    static BasicCacheContainer createCacheManager(Properties properties, String servers, int maxActiveConnections) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        if (properties != null) {
+            builder.withProperties(properties);
+        }
+        if (servers != null) {
+            builder.addServers(servers);
+        }
+        if (maxActiveConnections > 0) {
+            builder.connectionPool().maxActive(maxActiveConnections);
+        }
+        return new RemoteCacheManager(builder.build(), true);
+    }
+
+    /**
+     * Returns the named cache of the given remote cache manager.
+     *
+     * Hot Rod write operations return the previous value of the entry only if asked to, so caches
+     * returning previous values are obtained with {@code forceReturnValue}.
+     *
+     * @param cacheContainer   the remote cache manager.
+     * @param name             the name of the cache.
+     * @param forceReturnValue if write operations should return the previous value.
+     * @return the remote cache.
+     */
+    static <K, V> BasicCache<K, V> getCache(BasicCacheContainer cacheContainer, String name,
+                                            boolean forceReturnValue) {
+        return ((RemoteCacheManager) cacheContainer).getCache(name, forceReturnValue);
+    }
+
+    /**
+     * Returns all entries of the given remote cache, read with a single bulk operation. Hot Rod
+     * caches do not support {@code values()} and {@code entrySet()}.
+     *
+     * @param cache remote Infinispan cache.
+     * @return a copy of all entries of the cache.
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Map<K, V> entries(BasicCache cache) {
+        return ((RemoteCache<K, V>) cache).getBulk();
+    }
+
+    /**
+     * Returns the number of entries of the given remote cache. Hot Rod servers report it from
+     * their statistics, so if statistics are disabled the keys are counted instead.
+     *
+     * @param cache remote Infinispan cache.
+     * @return the number of entries of the cache.
+     */
+    static int size(BasicCache cache) {
+        int size = cache.size();
+        return size >= 0 ? size : cache.keySet().size();
+    }
+
+    /**
+     * Stores the value if there is none, returning the existing value regardless of whether the
+     * cache was obtained with {@code forceReturnValue}.
+     *
+     * @param cache remote Infinispan cache.
+     * @param key   the key.
+     * @param value the value.
+     * @return the existing value, or {@code null} if the value was stored.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> V putIfAbsent(BasicCache cache, Object key, V value) {
+        return ((RemoteCache<Object, V>) cache).withFlags(Flag.FORCE_RETURN_VALUE).putIfAbsent(key, value);
+    }
+
+    /**
+     * Replaces the value of the entry if it currently equals the expected one. Hot Rod caches
+     * only support conditional writes on the version of an entry, so the version is read along
+     * with the value and the replacement is conditioned on it.
+     *
+     * @param cache    remote Infinispan cache.
+     * @param key      the key.
+     * @param expected the expected current value.
+     * @param value    the new value.
+     * @return {@code true} if the value was replaced.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean replace(BasicCache cache, Object key, Object expected, Object value) {
+        RemoteCache<Object, Object> remoteCache = (RemoteCache<Object, Object>) cache;
+        VersionedValue<Object> current = remoteCache.getVersioned(key);
+        return current != null && expected.equals(current.getValue())
+                && remoteCache.replaceWithVersion(key, value, current.getVersion());
+    }
+
+    /**
+     * Removes the entry if its value currently equals the expected one, conditioned on the
+     * version of the entry.
+     *
+     * @param cache    remote Infinispan cache.
+     * @param key      the key.
+     * @param expected the expected current value.
+     * @return {@code true} if the entry was removed.
+     * @see #replace(BasicCache, Object, Object, Object)
+     */
+    @SuppressWarnings("unchecked")
+    static boolean remove(BasicCache cache, Object key, Object expected) {
+        RemoteCache<Object, Object> remoteCache = (RemoteCache<Object, Object>) cache;
+        VersionedValue<Object> current = remoteCache.getVersioned(key);
+        return current != null && expected.equals(current.getValue())
+                && remoteCache.removeWithVersion(key, current.getVersion());
+    }
+}
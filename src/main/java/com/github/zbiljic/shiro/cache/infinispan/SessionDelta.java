@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changes of a {@link DeltaSession}: the changed fields and the changed or removed attributes, or
+ * the whole session.
+ *
+ * Infinispan merges a delta put into a cache into the session held by each owner, by applying
+ * the changes to a copy of it. A delta carrying the whole session replaces the held one; a delta
+ * carrying changes only is refused if the owner holds none, as it would create a session without
+ * an id, timestamps or most of its attributes, or bring back a deleted one.
+ *
+ * @author Nemanja Zbiljic
+ */
+public final class SessionDelta implements Delta, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Bit mask of all session fields.
+     */
+    static final int ALL_FIELDS = DeltaSession.START_TIMESTAMP | DeltaSession.STOP_TIMESTAMP
+            | DeltaSession.LAST_ACCESS_TIME | DeltaSession.TIMEOUT | DeltaSession.EXPIRED | DeltaSession.HOST;
+
+    private final Serializable id;
+
+    private final boolean full;
+
+    private final int fields;
+
+    private final Date startTimestamp;
+
+    private final Date stopTimestamp;
+
+    private final Date lastAccessTime;
+
+    private final long timeout;
+
+    private final boolean expired;
+
+    private final String host;
+
+    private final Map<Object, Object> attributes;
+
+    SessionDelta(Serializable id, boolean full, int fields, Date startTimestamp, Date stopTimestamp,
+                 Date lastAccessTime, long timeout, boolean expired, String host, Map<Object, Object> attributes) {
+        this.id = id;
+        this.full = full;
+        this.fields = fields;
+        this.startTimestamp = startTimestamp;
+        this.stopTimestamp = stopTimestamp;
+        this.lastAccessTime = lastAccessTime;
+        this.timeout = timeout;
+        this.expired = expired;
+        this.host = host;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Returns a delta carrying the whole session.
+     *
+     * @param session the session.
+     * @return the delta.
+     */
+    static SessionDelta of(DeltaSession session) {
+        Map<Object, Object> attributes = session.getAttributes();
+        return new SessionDelta(session.getId(), true, ALL_FIELDS, copyOf(session.getStartTimestamp()),
+                copyOf(session.getStopTimestamp()), copyOf(session.getLastAccessTime()), session.getTimeout(),
+                session.isExpired(), session.getHost(),
+                attributes != null ? new LinkedHashMap<Object, Object>(attributes) : null);
+    }
+
+    /**
+     * Returns a delta carrying the given changes of the session.
+     *
+     * @param session    the session.
+     * @param fields     the changed fields, as a bit mask.
+     * @param attributes the changed attributes, with {@code null} values for removed ones, or
+     *                   {@code null}.
+     * @return the delta.
+     */
+    static SessionDelta of(DeltaSession session, int fields, Map<Object, Object> attributes) {
+        return new SessionDelta(session.getId(), false, fields,
+                (fields & DeltaSession.START_TIMESTAMP) != 0 ? copyOf(session.getStartTimestamp()) : null,
+                (fields & DeltaSession.STOP_TIMESTAMP) != 0 ? copyOf(session.getStopTimestamp()) : null,
+                (fields & DeltaSession.LAST_ACCESS_TIME) != 0 ? copyOf(session.getLastAccessTime()) : null,
+                session.getTimeout(), session.isExpired(),
+                (fields & DeltaSession.HOST) != 0 ? session.getHost() : null,
+                attributes != null ? new LinkedHashMap<Object, Object>(attributes) : null);
+    }
+
+    private static Date copyOf(Date date) {
+        return date != null ? new Date(date.getTime()) : null;
+    }
+
+    /**
+     * Applies this delta to a copy of the given session.
+     *
+     * @param target the session held by the owner, or {@code null} if it holds none.
+     * @return the changed session.
+     * @throws IllegalStateException if this delta carries changes only and the owner holds no
+     *                               session.
+     */
+    @Override
+    public DeltaAware merge(DeltaAware target) {
+        DeltaSession merged;
+        if (target instanceof DeltaSession) {
+            merged = ((DeltaSession) target).copy();
+        } else if (full) {
+            merged = new DeltaSession();
+        } else {
+            throw new IllegalStateException("No session [" + id + "] to merge changes into.");
+        }
+        merged.apply(this);
+        merged.discardChanges();
+        return merged;
+    }
+
+    public Serializable getId() {
+        return id;
+    }
+
+    /**
+     * Returns {@code true} if this delta carries the whole session.
+     *
+     * @return {@code true} if this delta replaces the session.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Returns the fields carried by this delta.
+     *
+     * @return the carried fields, as a bit mask.
+     */
+    int getFields() {
+        return fields;
+    }
+
+    public Date getStartTimestamp() {
+        return copyOf(startTimestamp);
+    }
+
+    public Date getStopTimestamp() {
+        return copyOf(stopTimestamp);
+    }
+
+    public Date getLastAccessTime() {
+        return copyOf(lastAccessTime);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public boolean isExpired() {
+        return expired;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the changed attributes, with {@code null} values for removed ones, or all attributes
+     * if this delta carries the whole session.
+     *
+     * @return the attributes carried by this delta, or {@code null} if there are none.
+     */
+    public Map<Object, Object> getAttributes() {
+        return attributes != null ? Collections.unmodifiableMap(attributes) : null;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.infinispan.commons.marshall.AbstractExternalizer;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.commons.util.Util;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact Infinispan {@link org.infinispan.commons.marshall.AdvancedExternalizer}s for Shiro's
+ * session and principal types, and for {@link DeltaSession}s and their {@link SessionDelta}s.
+ *
+ * Compared to Java serialization, the externalizers write no class descriptors or field names:
+ * timestamps are written as {@code long}s, and strings and boxed primitives (the usual session
+ * ids, attribute keys and principals) are written with a one byte type tag. Other values are
+ * delegated to the Infinispan marshaller.
+ *
+ * Externalizer ids {@value #ID_RANGE_START} to {@value #ID_RANGE_END} are reserved for this
+ * library. All nodes of a cluster must register the same externalizers.
+ *
+ * @author Nemanja Zbiljic
+ */
+public final class ShiroExternalizers {
+
+    /**
+     * First externalizer id reserved for this library.
+     */
+    public static final int ID_RANGE_START = 4100;
+
+    /**
+     * Last externalizer id reserved for this library.
+     */
+    public static final int ID_RANGE_END = 4199;
+
+    static final int SIMPLE_SESSION_ID = ID_RANGE_START;
+
+    static final int SIMPLE_PRINCIPAL_COLLECTION_ID = ID_RANGE_START + 1;
+
+    static final int SIMPLE_AUTHORIZATION_INFO_ID = ID_RANGE_START + 2;
+
+    static final int DELTA_SESSION_ID = ID_RANGE_START + 3;
+
+    static final int SESSION_DELTA_ID = ID_RANGE_START + 4;
+
+    private static final byte NULL = 0;
+
+    private static final byte STRING = 1;
+
+    private static final byte LONG = 2;
+
+    private static final byte INTEGER = 3;
+
+    private static final byte BOOLEAN = 4;
+
+    private static final byte OBJECT = 5;
+
+    /**
+     * Maximum length of strings that are always within {@link java.io.DataOutput#writeUTF(String)}
+     * 65535 byte limit.
+     */
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+
+    private ShiroExternalizers() {
+    }
+
+    /**
+     * Returns new instances of all externalizers provided by this library.
+     *
+     * @return the externalizers.
+     */
+    public static List<AdvancedExternalizer<?>> all() {
+        List<AdvancedExternalizer<?>> externalizers = new ArrayList<AdvancedExternalizer<?>>();
+        externalizers.add(new SimpleSessionExternalizer());
+        externalizers.add(new SimplePrincipalCollectionExternalizer());
+        externalizers.add(new SimpleAuthorizationInfoExternalizer());
+        externalizers.add(new DeltaSessionExternalizer());
+        externalizers.add(new SessionDeltaExternalizer());
+        return externalizers;
+    }
+
+    static void writeValue(ObjectOutput output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String && ((String) value).length() <= MAX_UTF_LENGTH) {
+            output.writeByte(STRING);
+            output.writeUTF((String) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else {
+            output.writeByte(OBJECT);
+            output.writeObject(value);
+        }
+    }
+
+    static Object readValue(ObjectInput input) throws IOException, ClassNotFoundException {
+        byte type = input.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return input.readUTF();
+            case LONG:
+                return input.readLong();
+            case INTEGER:
+                return input.readInt();
+            case BOOLEAN:
+                return input.readBoolean();
+            case OBJECT:
+                return input.readObject();
+            default:
+                throw new IOException("Unknown value type [" + type + "]");
+        }
+    }
+
+    static void writeDate(ObjectOutput output, Date date) throws IOException {
+        output.writeLong(date != null ? date.getTime() : Long.MIN_VALUE);
+    }
+
+    static Date readDate(ObjectInput input) throws IOException {
+        long time = input.readLong();
+        return time != Long.MIN_VALUE ? new Date(time) : null;
+    }
+
+    static void writeStrings(ObjectOutput output, Collection<String> strings) throws IOException {
+        if (strings == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(strings.size());
+        for (String string : strings) {
+            output.writeUTF(string);
+        }
+    }
+
+    static Set<String> readStrings(ObjectInput input) throws IOException {
+        int size = input.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Set<String> strings = new HashSet<String>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            strings.add(input.readUTF());
+        }
+        return strings;
+    }
+
+    static void writeAttributes(ObjectOutput output, Map<Object, Object> attributes) throws IOException {
+        if (attributes == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(attributes.size());
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            writeValue(output, entry.getKey());
+            writeValue(output, entry.getValue());
+        }
+    }
+
+    static Map<Object, Object> readAttributes(ObjectInput input) throws IOException, ClassNotFoundException {
+        int size = input.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<Object, Object> attributes = new HashMap<Object, Object>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            attributes.put(readValue(input), readValue(input));
+        }
+        return attributes;
+    }
+
+    static void writeSession(ObjectOutput output, SimpleSession session) throws IOException {
+        writeValue(output, session.getId());
+        writeDate(output, session.getStartTimestamp());
+        writeDate(output, session.getStopTimestamp());
+        writeDate(output, session.getLastAccessTime());
+        output.writeLong(session.getTimeout());
+        output.writeBoolean(session.isExpired());
+        writeValue(output, session.getHost());
+        writeAttributes(output, session.getAttributes());
+    }
+
+    static <S extends SimpleSession> S readSession(ObjectInput input, S session) throws IOException, ClassNotFoundException {
+        session.setId((Serializable) readValue(input));
+        session.setStartTimestamp(readDate(input));
+        session.setStopTimestamp(readDate(input));
+        session.setLastAccessTime(readDate(input));
+        session.setTimeout(input.readLong());
+        session.setExpired(input.readBoolean());
+        session.setHost((String) readValue(input));
+        session.setAttributes(readAttributes(input));
+        return session;
+    }
+
+    private static int capacity(int size) {
+        return Math.max((int) (size / .75f) + 1, 16);
+    }
+
+    /**
+     * Externalizer for {@link org.apache.shiro.session.mgt.SimpleSession}.
+     */
+    public static final class SimpleSessionExternalizer extends AbstractExternalizer<SimpleSession> {
+
+        @Override
+        public Integer getId() {
+            return SIMPLE_SESSION_ID;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Class<? extends SimpleSession>> getTypeClasses() {
+            return Util.<Class<? extends SimpleSession>>asSet(SimpleSession.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SimpleSession session) throws IOException {
+            writeSession(output, session);
+        }
+
+        @Override
+        public SimpleSession readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            return readSession(input, new SimpleSession());
+        }
+    }
+
+    /**
+     * Externalizer for {@link org.apache.shiro.subject.SimplePrincipalCollection}.
+     */
+    public static final class SimplePrincipalCollectionExternalizer extends AbstractExternalizer<SimplePrincipalCollection> {
+
+        @Override
+        public Integer getId() {
+            return SIMPLE_PRINCIPAL_COLLECTION_ID;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Class<? extends SimplePrincipalCollection>> getTypeClasses() {
+            return Util.<Class<? extends SimplePrincipalCollection>>asSet(SimplePrincipalCollection.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SimplePrincipalCollection principals) throws IOException {
+            Set<String> realmNames = principals.getRealmNames();
+            if (realmNames == null) {
+                output.writeInt(0);
+                return;
+            }
+            output.writeInt(realmNames.size());
+            for (String realmName : realmNames) {
+                Collection principalsFromRealm = principals.fromRealm(realmName);
+                output.writeUTF(realmName);
+                output.writeInt(principalsFromRealm.size());
+                for (Object principal : principalsFromRealm) {
+                    writeValue(output, principal);
+                }
+            }
+        }
+
+        @Override
+        public SimplePrincipalCollection readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            SimplePrincipalCollection principals = new SimplePrincipalCollection();
+            int realms = input.readInt();
+            for (int i = 0; i < realms; i++) {
+                String realmName = input.readUTF();
+                int size = input.readInt();
+                List<Object> principalsFromRealm = new ArrayList<Object>(size);
+                for (int j = 0; j < size; j++) {
+                    principalsFromRealm.add(readValue(input));
+                }
+                principals.addAll(principalsFromRealm, realmName);
+            }
+            return principals;
+        }
+    }
+
+    /**
+     * Externalizer for {@link org.apache.shiro.authz.SimpleAuthorizationInfo}.
+     */
+    public static final class SimpleAuthorizationInfoExternalizer extends AbstractExternalizer<SimpleAuthorizationInfo> {
+
+        @Override
+        public Integer getId() {
+            return SIMPLE_AUTHORIZATION_INFO_ID;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Class<? extends SimpleAuthorizationInfo>> getTypeClasses() {
+            return Util.<Class<? extends SimpleAuthorizationInfo>>asSet(SimpleAuthorizationInfo.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SimpleAuthorizationInfo info) throws IOException {
+            writeStrings(output, info.getRoles());
+            writeStrings(output, info.getStringPermissions());
+            Set<Permission> permissions = info.getObjectPermissions();
+            if (permissions == null) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(permissions.size());
+                for (Permission permission : permissions) {
+                    output.writeObject(permission);
+                }
+            }
+        }
+
+        @Override
+        public SimpleAuthorizationInfo readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+            info.setRoles(readStrings(input));
+            info.setStringPermissions(readStrings(input));
+            int size = input.readInt();
+            if (size >= 0) {
+                Set<Permission> permissions = new HashSet<Permission>(capacity(size));
+                for (int i = 0; i < size; i++) {
+                    permissions.add((Permission) input.readObject());
+                }
+                info.setObjectPermissions(permissions);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Externalizer for {@link DeltaSession}. Sessions are read without recorded changes.
+     */
+    public static final class DeltaSessionExternalizer extends AbstractExternalizer<DeltaSession> {
+
+        @Override
+        public Integer getId() {
+            return DELTA_SESSION_ID;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Class<? extends DeltaSession>> getTypeClasses() {
+            return Util.<Class<? extends DeltaSession>>asSet(DeltaSession.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, DeltaSession session) throws IOException {
+            writeSession(output, session);
+        }
+
+        @Override
+        public DeltaSession readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            DeltaSession session = readSession(input, new DeltaSession());
+            session.discardChanges();
+            return session;
+        }
+    }
+
+    /**
+     * Externalizer for {@link SessionDelta}. Only the fields carried by the delta are written.
+     */
+    public static final class SessionDeltaExternalizer extends AbstractExternalizer<SessionDelta> {
+
+        @Override
+        public Integer getId() {
+            return SESSION_DELTA_ID;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Class<? extends SessionDelta>> getTypeClasses() {
+            return Util.<Class<? extends SessionDelta>>asSet(SessionDelta.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SessionDelta delta) throws IOException {
+            int fields = delta.getFields();
+            writeValue(output, delta.getId());
+            output.writeBoolean(delta.isFull());
+            output.writeByte(fields);
+            if ((fields & DeltaSession.START_TIMESTAMP) != 0) {
+                writeDate(output, delta.getStartTimestamp());
+            }
+            if ((fields & DeltaSession.STOP_TIMESTAMP) != 0) {
+                writeDate(output, delta.getStopTimestamp());
+            }
+            if ((fields & DeltaSession.LAST_ACCESS_TIME) != 0) {
+                writeDate(output, delta.getLastAccessTime());
+            }
+            if ((fields & DeltaSession.TIMEOUT) != 0) {
+                output.writeLong(delta.getTimeout());
+            }
+            if ((fields & DeltaSession.EXPIRED) != 0) {
+                output.writeBoolean(delta.isExpired());
+            }
+            if ((fields & DeltaSession.HOST) != 0) {
+                writeValue(output, delta.getHost());
+            }
+            writeAttributes(output, delta.getAttributes());
+        }
+
+        @Override
+        public SessionDelta readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            Serializable id = (Serializable) readValue(input);
+            boolean full = input.readBoolean();
+            int fields = input.readByte();
+            Date startTimestamp = (fields & DeltaSession.START_TIMESTAMP) != 0 ? readDate(input) : null;
+            Date stopTimestamp = (fields & DeltaSession.STOP_TIMESTAMP) != 0 ? readDate(input) : null;
+            Date lastAccessTime = (fields & DeltaSession.LAST_ACCESS_TIME) != 0 ? readDate(input) : null;
+            long timeout = (fields & DeltaSession.TIMEOUT) != 0 ? input.readLong() : 0;
+            boolean expired = (fields & DeltaSession.EXPIRED) != 0 && input.readBoolean();
+            String host = (fields & DeltaSession.HOST) != 0 ? (String) readValue(input) : null;
+            Map<Object, Object> attributes = readAttributes(input);
+            return new SessionDelta(id, full, fields, startTimestamp, stopTimestamp, lastAccessTime, timeout,
+                    expired, host, attributes);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CacheMetrics} implementation that keeps counters and {@link Histogram histograms} in
+ * memory.
+ *
+ * Recording is lock-free and allocation-free. Values can be read at any time, e.g. to be
+ * published by a reporter or exposed over JMX.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class SimpleCacheMetrics implements CacheMetrics {
+
+    private final AtomicLong localHits = new AtomicLong();
+
+    private final AtomicLong remoteHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final Histogram getLatency = new Histogram();
+
+    private final Histogram putLatency = new Histogram();
+
+    private final Histogram removeLatency = new Histogram();
+
+    private final Histogram valueSizes = new Histogram();
+
+    private final Histogram scanLatency = new Histogram();
+
+    private final Histogram scanSizes = new Histogram();
+
+    @Override
+    public void recordHit(boolean remote, long latencyNanos) {
+        if (remote) {
+            remoteHits.incrementAndGet();
+        } else {
+            localHits.incrementAndGet();
+        }
+        getLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void recordMiss(long latencyNanos) {
+        misses.incrementAndGet();
+        getLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void recordPut(long latencyNanos) {
+        putLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void recordRemove(long latencyNanos) {
+        removeLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void recordValueSize(int bytes) {
+        valueSizes.record(bytes);
+    }
+
+    @Override
+    public void recordScan(int entries, long latencyNanos) {
+        scanSizes.record(entries);
+        scanLatency.record(latencyNanos);
+    }
+
+    /**
+     * Returns the number of {@code get} operations that found a value.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return localHits.get() + remoteHits.get();
+    }
+
+    /**
+     * Returns the number of hits served by this node.
+     *
+     * @return the number of local hits.
+     */
+    public long getLocalHits() {
+        return localHits.get();
+    }
+
+    /**
+     * Returns the number of hits that had to be fetched from another node or a remote server.
+     *
+     * @return the number of remote hits.
+     */
+    public long getRemoteHits() {
+        return remoteHits.get();
+    }
+
+    /**
+     * Returns the number of {@code get} operations that did not find a value.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of hits to all {@code get} operations, or {@code 0} if there were none.
+     *
+     * @return the hit ratio.
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long gets = hits + misses.get();
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    /**
+     * Returns the ratio of remote hits to all hits, or {@code 0} if there were none.
+     *
+     * @return the remote hit ratio.
+     */
+    public double getRemoteHitRatio() {
+        long hits = getHits();
+        return hits == 0 ? 0 : (double) remoteHits.get() / hits;
+    }
+
+    /**
+     * Returns the latencies, in nanoseconds, of {@code get} operations.
+     *
+     * @return the {@code get} latency histogram.
+     */
+    public Histogram getGetLatency() {
+        return getLatency;
+    }
+
+    /**
+     * Returns the latencies, in nanoseconds, of {@code put} operations.
+     *
+     * @return the {@code put} latency histogram.
+     */
+    public Histogram getPutLatency() {
+        return putLatency;
+    }
+
+    /**
+     * Returns the latencies, in nanoseconds, of {@code remove} operations.
+     *
+     * @return the {@code remove} latency histogram.
+     */
+    public Histogram getRemoveLatency() {
+        return removeLatency;
+    }
+
+    /**
+     * Returns the sampled serialized sizes, in bytes, of values put into the cache.
+     *
+     * @return the value size histogram.
+     */
+    public Histogram getValueSizes() {
+        return valueSizes;
+    }
+
+    /**
+     * Returns the durations, in nanoseconds, of complete iterations over keys or values.
+     *
+     * @return the scan latency histogram.
+     */
+    public Histogram getScanLatency() {
+        return scanLatency;
+    }
+
+    /**
+     * Returns the number of entries visited by complete iterations over keys or values.
+     *
+     * @return the scan size histogram.
+     */
+    public Histogram getScanSizes() {
+        return scanSizes;
+    }
+
+    /**
+     * Discards all recorded measurements.
+     */
+    public void reset() {
+        localHits.set(0);
+        remoteHits.set(0);
+        misses.set(0);
+        getLatency.reset();
+        putLatency.reset();
+        removeLatency.reset();
+        valueSizes.reset();
+        scanLatency.reset();
+        scanSizes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleCacheMetrics [hits=" + getHits() + ", remoteHits=" + remoteHits.get() +
+                ", misses=" + misses.get() + ", getP99=" + getLatency.getValueAtPercentile(99) +
+                "ns, putP99=" + putLatency.getValueAtPercentile(99) + "ns]";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link CacheMetricsRegistry} that creates a {@link SimpleCacheMetrics} per cache and keeps them
+ * available for reading.
+ *
+ * <pre>
+ * cacheMetrics = com.github.zbiljic.shiro.cache.infinispan.SimpleCacheMetricsRegistry
+ * cacheManager.metricsRegistry = $cacheMetrics
+ * </pre>
+ *
+ * @author Nemanja Zbiljic
+ */
+public class SimpleCacheMetricsRegistry implements CacheMetricsRegistry {
+
+    private final ConcurrentMap<String, SimpleCacheMetrics> metrics = new ConcurrentHashMap<String, SimpleCacheMetrics>();
+
+    @Override
+    public CacheMetrics metricsFor(String cacheName) {
+        SimpleCacheMetrics existing = metrics.get(cacheName);
+        if (existing == null) {
+            SimpleCacheMetrics created = new SimpleCacheMetrics();
+            existing = metrics.putIfAbsent(cacheName, created);
+            if (existing == null) {
+                existing = created;
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Returns the metrics of the named cache.
+     *
+     * @param cacheName the name of the cache.
+     * @return the metrics of the cache, or {@code null} if the cache has not been created yet.
+     */
+    public SimpleCacheMetrics getMetrics(String cacheName) {
+        return metrics.get(cacheName);
+    }
+
+    /**
+     * Returns a read-only view of the metrics of all caches, per cache name.
+     *
+     * @return the metrics of all caches.
+     */
+    public Map<String, SimpleCacheMetrics> getMetrics() {
+        return Collections.<String, SimpleCacheMetrics>unmodifiableMap(metrics);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.commons.api.BasicCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates the loads of missing or expiring values of a cache, so that each key is loaded
+ * once at a time.
+ *
+ * On each node concurrent loads of the same key share a single in-flight task. If a lock cache is
+ * given, the task additionally holds a lease on the key in that cache while loading, so that
+ * other nodes wait for the value to appear instead of loading it too. Leases expire after the
+ * lock timeout, after which waiting nodes load the value themselves.
+ *
+ * Loaded values may be refreshed before they expire, using the probabilistic early expiration of
+ * Vattani et al. ("Optimal Probabilistic Cache Stampede Prevention"): a read refreshes the value
+ * with a probability rising towards its expiry time, scaled by the average duration of a load and
+ * the early refresh beta. While a value is refreshed, the current one keeps being served.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class SingleFlightLoader {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(SingleFlightLoader.class);
+
+    /**
+     * Interval in which nodes waiting for the lease of another node check for the loaded value,
+     * in milliseconds.
+     */
+    static final long LOCK_POLL_INTERVAL = 10;
+
+    /**
+     * Default scale of the early refresh window, as recommended by the paper.
+     */
+    static final double DEFAULT_EARLY_REFRESH_BETA = 1.0;
+
+    /**
+     * Weight of a new sample in the average duration of a load, as a power of two.
+     */
+    private static final int LOAD_TIME_SMOOTHING = 3;
+
+    /**
+     * Reads and writes the values of the coordinated cache.
+     */
+    interface Target {
+
+        /**
+         * Reads the current value of the key, from the node-local copies or from Infinispan.
+         *
+         * @param key the key.
+         * @return the current value, or {@code null} if there is none.
+         */
+        Object read(Object key);
+
+        /**
+         * Puts the loaded value of the key.
+         *
+         * @param key   the key.
+         * @param value the loaded value.
+         */
+        void store(Object key, Object value);
+    }
+
+    /**
+     * Load tasks currently running on this node, per key.
+     */
+    private final ConcurrentMap<Object, FutureTask<Object>> inFlight = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+    /**
+     * Optional cache holding the cluster-wide leases, per key.
+     */
+    private final BasicCache locks;
+
+    /**
+     * Duration of a lease, and maximum time to wait for the lease of another node, in
+     * milliseconds.
+     */
+    private final long lockTimeout;
+
+    /**
+     * Scale of the early refresh window, {@code 0} to disable early refreshes.
+     */
+    private final double earlyRefreshBeta;
+
+    /**
+     * Value identifying the leases of this node.
+     */
+    private final String owner = UUID.randomUUID().toString();
+
+    /**
+     * Exponentially weighted moving average of the duration of a load, in nanoseconds.
+     */
+    private volatile long averageLoadTime;
+
+    SingleFlightLoader(BasicCache locks, long lockTimeout, double earlyRefreshBeta) {
+        this.locks = locks;
+        this.lockTimeout = lockTimeout;
+        this.earlyRefreshBeta = earlyRefreshBeta;
+    }
+
+    /**
+     * Returns {@code true} if values may be refreshed before they expire.
+     *
+     * @return {@code true} if early refreshes are enabled.
+     */
+    boolean isEarlyRefreshEnabled() {
+        return earlyRefreshBeta > 0;
+    }
+
+    /**
+     * Decides whether a value expiring at the given time should be refreshed by this read.
+     *
+     * @param expiryTime the expiry time of the value in milliseconds since the epoch, or {@code
+     *                   -1} if it is unknown or never expires.
+     * @return {@code true} if the value should be refreshed.
+     */
+    boolean shouldRefresh(long expiryTime) {
+        long loadTime = averageLoadTime;
+        if (expiryTime < 0 || loadTime == 0 || earlyRefreshBeta <= 0) {
+            return false;
+        }
+        double gap = -loadTime / 1000000.0 * earlyRefreshBeta * Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expiryTime;
+    }
+
+    /**
+     * Returns the average duration of a load on this node.
+     *
+     * @return the average duration of a load, in nanoseconds.
+     */
+    long getAverageLoadTime() {
+        return averageLoadTime;
+    }
+
+    /**
+     * Loads the value of the key, unless a load of the key is already in progress.
+     *
+     * A missing value is read once more before it is loaded, as it may have been loaded
+     * concurrently. Callers refreshing a value get the current value back if the key is already
+     * being loaded, others wait for the result of that load.
+     *
+     * @param key     the key.
+     * @param current the current value if it is refreshed, or {@code null} if it is missing.
+     * @param loader  the loader of the value.
+     * @param target  the cache of the value.
+     * @return the loaded value, or the current value if it is refreshed by another caller.
+     * @throws Exception if the value could not be loaded or stored.
+     */
+    Object load(final Object key, final Object current, final Callable<?> loader, final Target target)
+            throws Exception {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return loadOnce(key, current, loader, target);
+            }
+        });
+        FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            return current != null ? current : await(running);
+        }
+        try {
+            task.run();
+            return await(task);
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    private Object loadOnce(Object key, Object current, Callable<?> loader, Target target) throws Exception {
+        if (current == null) {
+            Object value = target.read(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        boolean locked = false;
+        if (locks != null) {
+            long deadline = System.currentTimeMillis() + lockTimeout;
+            while (true) {
+                //noinspection unchecked
+                locked = locks.putIfAbsent(key, owner, lockTimeout, TimeUnit.MILLISECONDS) == null;
+                if (locked) {
+                    break;
+                }
+                if (current != null) {
+                    return current;
+                }
+                Object value = target.read(key);
+                if (value != null) {
+                    return value;
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Lease on key [" + key + "] of cache [" + locks.getName() + "] not released in " +
+                                lockTimeout + " ms.  Loading the value without it.");
+                    }
+                    break;
+                }
+                Thread.sleep(LOCK_POLL_INTERVAL);
+            }
+            if (locked && current == null) {
+                Object value = target.read(key);
+                if (value != null) {
+                    locks.remove(key, owner);
+                    return value;
+                }
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            Object value = loader.call();
+            long loadTime = Math.max(System.nanoTime() - start, 1);
+            long average = averageLoadTime;
+            averageLoadTime = average == 0 ? loadTime : average + ((loadTime - average) >> LOAD_TIME_SMOOTHING);
+            if (value != null) {
+                target.store(key, value);
+            }
+            return value;
+        } finally {
+            if (locked) {
+                locks.remove(key, owner);
+            }
+        }
+    }
+
+    private static Object await(FutureTask<Object> task) throws Exception {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
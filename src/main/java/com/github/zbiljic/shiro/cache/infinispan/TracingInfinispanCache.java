@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.CacheException;
+import org.infinispan.commons.api.BasicCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+
+/**
+ * {@link InfinispanCache} logging every get, put, remove and clear at {@code TRACE} level.
+ *
+ * {@link InfinispanCacheManager} creates caches of this type instead of plain {@link
+ * InfinispanCache} instances when {@code TRACE} logging is enabled for this class at the time a
+ * cache is first acquired, so caches created without it never check the log level or build log
+ * messages on their operations.
+ *
+ * @author Nemanja Zbiljic
+ */
+class TracingInfinispanCache<K, V> extends InfinispanCache<K, V> {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TracingInfinispanCache.class);
+
+    /**
+     * Name of the wrapped Infinispan instance, resolved once.
+     */
+    private final String name;
+
+    TracingInfinispanCache(BasicCache cache, boolean ignoreReturnValues) {
+        super(cache, ignoreReturnValues);
+        this.name = cache.getName();
+    }
+
+    /**
+     * Returns {@code true} if caches should be created with tracing.
+     *
+     * @return {@code true} if {@code TRACE} logging is enabled for this class.
+     */
+    static boolean isEnabled() {
+        return log.isTraceEnabled();
+    }
+
+    @Override
+    public V get(K key) throws CacheException {
+        log.trace("Getting object from cache [{}] for key [{}]", name, key);
+        V value = super.get(key);
+        if (value == null) {
+            log.trace("Object for [{}] is null.", key);
+        }
+        return value;
+    }
+
+    @Override
+    public V get(K key, Callable<? extends V> loader) throws CacheException {
+        log.trace("Getting or loading object from cache [{}] for key [{}]", name, key);
+        return super.get(key, loader);
+    }
+
+    @Override
+    public V put(K key, V value) throws CacheException {
+        log.trace("Putting object in cache [{}] for key [{}]", name, key);
+        return super.put(key, value);
+    }
+
+    @Override
+    public V remove(K key) throws CacheException {
+        log.trace("Removing object from cache [{}] for key [{}]", name, key);
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        log.trace("Clearing all objects from cache [{}]", name);
+        super.clear();
+    }
+}
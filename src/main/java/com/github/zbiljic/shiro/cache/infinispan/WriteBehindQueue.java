@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.infinispan.commons.api.BasicCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Coalescing write-behind buffer for an Infinispan cache.
+ *
+ * Puts are kept in a per-key buffer, so repeated puts of the same key (e.g. Shiro session
+ * {@code lastAccessTime} updates) collapse into a single write. The buffer is written to
+ * Infinispan in one {@code putAll} batch each time it is {@link #flush() flushed}. Removals and
+ * clears are written through immediately, and are ordered with respect to flushes and to puts
+ * being buffered, so a buffered value can never resurrect a removed entry. Delta-aware values,
+ * such as {@link DeltaSession}s, are flushed as the changes made to them since the previous
+ * flush.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class WriteBehindQueue {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    /**
+     * The Infinispan cache buffered writes are flushed to, ignoring return values.
+     */
+    private final BasicCache cache;
+
+    /**
+     * Maximum number of keys buffered before puts are written through.
+     */
+    private final int maxPending;
+
+    /**
+     * Buffered values, per key. Values are wrapped so that a flushed value is only dropped from
+     * the buffer if it was not replaced in the meantime, even if the new value is equal to it.
+     */
+    private final ConcurrentMap<Object, Write> pending = new ConcurrentHashMap<Object, Write>();
+
+    /**
+     * Writes the changes of delta-aware values to the Infinispan cache; {@code null} if it is not
+     * an embedded cache, in which case they are flushed whole.
+     */
+    private final DeltaWrites deltaWrites;
+
+    /**
+     * Fences off puts being buffered while entries are removed. Puts hold the read lock, so they
+     * do not wait for each other or for flushes; removals and clears hold the write lock, so a put
+     * buffered concurrently is either dropped by the removal or made after it.
+     */
+    private final ReadWriteLock fence = new ReentrantReadWriteLock();
+
+    WriteBehindQueue(BasicCache cache, int maxPending) {
+        boolean embedded = InfinispanCache.EMBEDDED_AVAILABLE && EmbeddedCaches.isEmbedded(cache);
+        this.cache = embedded ? EmbeddedCaches.ignoreReturnValues(cache) : cache;
+        this.deltaWrites = embedded ? EmbeddedCaches.deltaWrites(cache) : null;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Returns the buffered value for the key.
+     *
+     * @param key the key.
+     * @return the buffered value, or {@code null} if there is none.
+     */
+    Object get(Object key) {
+        Write write = pending.get(key);
+        return write != null ? write.value : null;
+    }
+
+    /**
+     * Buffers the value for the key, replacing any value buffered before.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return {@code false} if the buffer is full and the value must be written through.
+     */
+    boolean offer(Object key, Object value) {
+        fence.readLock().lock();
+        try {
+            if (pending.size() >= maxPending && !pending.containsKey(key)) {
+                return false;
+            }
+            pending.put(key, new Write(value));
+            return true;
+        } finally {
+            fence.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the buffered value for the key and removes the entry from Infinispan.
+     *
+     * @param key the key.
+     */
+    synchronized void remove(Object key) {
+        fence.writeLock().lock();
+        try {
+            pending.remove(key);
+            cache.remove(key);
+        } finally {
+            fence.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the buffered values for the keys and removes the entries from Infinispan with the
+     * given removal, which no put of the keys is buffered concurrently with.
+     *
+     * @param keys    the keys.
+     * @param removal removes the entries from Infinispan.
+     * @throws Exception if the removal failed.
+     */
+    synchronized void removeAll(Collection<?> keys, Callable<?> removal) throws Exception {
+        fence.writeLock().lock();
+        try {
+            for (Object key : keys) {
+                pending.remove(key);
+            }
+            removal.call();
+        } finally {
+            fence.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all buffered values and clears the Infinispan cache.
+     */
+    synchronized void clear() {
+        fence.writeLock().lock();
+        try {
+            pending.clear();
+            cache.clear();
+        } finally {
+            fence.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all buffered values to Infinispan in one batch.
+     *
+     * Values that are replaced while the batch is being written stay buffered until the next
+     * flush. If the batch cannot be written, the values stay buffered and the write is retried on
+     * the next flush.
+     */
+    synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<Object, Write> writes = new HashMap<Object, Write>(pending);
+        Map<Object, Object> batch = new HashMap<Object, Object>(writes.size());
+        Map<Object, Write> deltas = null;
+        for (Map.Entry<Object, Write> entry : writes.entrySet()) {
+            Object value = entry.getValue().value;
+            if (deltaWrites != null && EmbeddedCaches.isDeltaAware(value)) {
+                if (deltas == null) {
+                    deltas = new HashMap<Object, Write>();
+                }
+                deltas.put(entry.getKey(), entry.getValue());
+            } else {
+                batch.put(entry.getKey(), value);
+            }
+        }
+        if (!batch.isEmpty()) {
+            try {
+                cache.putAll(batch);
+            } catch (RuntimeException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to flush " + batch.size() + " buffered writes to cache [" + cache.getName() +
+                            "].  Retrying on next flush.", e);
+                }
+                return;
+            }
+            for (Object key : batch.keySet()) {
+                pending.remove(key, writes.get(key));
+            }
+        }
+        if (deltas != null) {
+            flushDeltas(deltas);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Flushed " + writes.size() + " buffered writes to cache [" + cache.getName() + "]");
+        }
+    }
+
+    /**
+     * Writes the changes of the buffered delta-aware values, one put per key, as they cannot be
+     * batched. The changes accumulated since the last flush are written together.
+     */
+    private void flushDeltas(Map<Object, Write> deltas) {
+        for (Map.Entry<Object, Write> entry : deltas.entrySet()) {
+            try {
+                deltaWrites.put(entry.getKey(), entry.getValue().value);
+            } catch (RuntimeException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to flush buffered delta write to cache [" + cache.getName() +
+                            "].  Retrying on next flush.", e);
+                }
+                return;
+            }
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the number of buffered values.
+     *
+     * @return the number of buffered values.
+     */
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * A buffered value. Uses identity equality.
+     */
+    private static final class Write {
+
+        private final Object value;
+
+        Write(Object value) {
+            this.value = value;
+        }
+    }
+}
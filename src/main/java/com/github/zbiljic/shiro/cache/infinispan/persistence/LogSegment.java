@@ -0,0 +1,472 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a {@link LogStore}.
+ *
+ * A segment is a sequence of records appended one after another. Each record holds its total
+ * length, its type, the expiry time of the entry, the lengths of the key, value and metadata,
+ * the bytes themselves and a CRC32 checksum of everything after the length. A delete is
+ * recorded as a record without value and metadata, whose expiry time holds the id of the newest
+ * segment which may hold a write of the key, or {@code -1} if unknown.
+ *
+ * Only the newest segment of a store is appended to. Older segments are sealed: they are mapped
+ * into memory for reading, and a hint file is written next to them listing the type, position,
+ * expiry time and key of every record, so that the index of the store can be rebuilt on start
+ * without reading any value.
+ *
+ * Appending and sealing must be serialized by the store; reads are safe from any thread.
+ *
+ * @author Nemanja Zbiljic
+ */
+final class LogSegment {
+
+    /**
+     * Record type of a written entry.
+     */
+    static final byte PUT = 1;
+
+    /**
+     * Record type of a removed entry.
+     */
+    static final byte DELETE = 2;
+
+    /**
+     * Length, type, expiry time and the three lengths in front of the bytes of a record.
+     */
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 4;
+
+    /**
+     * Checksum at the end of a record.
+     */
+    static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * Magic number and format version at the start of segment and hint files.
+     */
+    private static final long MAGIC = 0x534852494C4F4701L;
+
+    /**
+     * Size of the file header, which is also the offset of the first record.
+     */
+    static final int FILE_HEADER_SIZE = 8;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String HINT_SUFFIX = ".hint";
+
+    /**
+     * Receives the records of a segment, either from its hint file or from the segment itself.
+     */
+    interface RecordVisitor {
+
+        void visit(LogSegment segment, byte type, int offset, int length, long expiryTime, byte[] key)
+                throws Exception;
+    }
+
+    private final long id;
+
+    private final File file;
+
+    private final File hintFile;
+
+    private final FileChannel channel;
+
+    /**
+     * Size of the segment, written only while the segment is being appended to.
+     */
+    private volatile long size;
+
+    /**
+     * Bytes of records which have been overwritten, removed or purged since.
+     */
+    private final AtomicLong garbage = new AtomicLong();
+
+    /**
+     * Read-only mapping of the segment, set once it is sealed.
+     */
+    private volatile MappedByteBuffer mapping;
+
+    /**
+     * Hints of the records appended so far, written to the hint file on seal.
+     */
+    private ByteArrayOutputStream hints = new ByteArrayOutputStream();
+
+    private LogSegment(long id, File directory) throws IOException {
+        this.id = id;
+        this.file = new File(directory, String.format("%016d%s", id, SEGMENT_SUFFIX));
+        this.hintFile = new File(directory, String.format("%016d%s", id, HINT_SUFFIX));
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * Creates a new, empty segment.
+     */
+    static LogSegment create(File directory, long id) throws IOException {
+        LogSegment segment = new LogSegment(id, directory);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(MAGIC);
+        ((Buffer) header).flip();
+        segment.channel.truncate(0);
+        writeFully(segment.channel, header, 0);
+        segment.size = FILE_HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. Its records must be replayed with {@link #replay} before it is
+     * sealed.
+     */
+    static LogSegment open(File directory, long id) throws IOException {
+        LogSegment segment = new LogSegment(id, directory);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (segment.channel.size() < FILE_HEADER_SIZE || readFully(segment.channel, header, 0) < FILE_HEADER_SIZE
+                || header.getLong(0) != MAGIC) {
+            segment.channel.close();
+            throw new IOException("File [" + segment.file + "] is not a log store segment.");
+        }
+        segment.size = segment.channel.size();
+        return segment;
+    }
+
+    /**
+     * Returns the id of the segment stored in the given file, or {@code -1} if the file is not a
+     * segment.
+     */
+    static long idOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Encodes a record. The value and metadata may be {@code null}.
+     */
+    static ByteBuffer encode(byte type, long expiryTime, org.infinispan.commons.io.ByteBuffer key,
+                             org.infinispan.commons.io.ByteBuffer value,
+                             org.infinispan.commons.io.ByteBuffer metadata) {
+        int keyLength = key.getLength();
+        int valueLength = value == null ? 0 : value.getLength();
+        int metadataLength = metadata == null ? 0 : metadata.getLength();
+        int length = RECORD_HEADER_SIZE + keyLength + valueLength + metadataLength + CHECKSUM_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.put(type);
+        record.putLong(expiryTime);
+        record.putInt(keyLength);
+        record.putInt(valueLength);
+        record.putInt(metadataLength);
+        record.put(key.getBuf(), key.getOffset(), keyLength);
+        if (value != null) {
+            record.put(value.getBuf(), value.getOffset(), valueLength);
+        }
+        if (metadata != null) {
+            record.put(metadata.getBuf(), metadata.getOffset(), metadataLength);
+        }
+        record.putInt(checksum(record.array(), 4, length - 4 - CHECKSUM_SIZE));
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size <= FILE_HEADER_SIZE;
+    }
+
+    boolean isSealed() {
+        return mapping != null;
+    }
+
+    /**
+     * Appends an encoded record and returns its offset.
+     */
+    int append(ByteBuffer record, byte type, long expiryTime, byte[] key) throws IOException {
+        long offset = size;
+        int length = record.remaining();
+        writeFully(channel, record, offset);
+        size = offset + length;
+        hint(type, (int) offset, length, expiryTime, key);
+        return (int) offset;
+    }
+
+    /**
+     * Reads the record at the given offset into {@code [value, metadata]}. Either may be
+     * {@code null}.
+     */
+    byte[][] read(int offset, int length) throws IOException {
+        ByteBuffer record = readRaw(offset, length);
+        ((Buffer) record).position(4 + 1 + 8);
+        int keyLength = record.getInt();
+        int valueLength = record.getInt();
+        int metadataLength = record.getInt();
+        ((Buffer) record).position(record.position() + keyLength);
+        byte[] value = null;
+        if (valueLength > 0) {
+            value = new byte[valueLength];
+            record.get(value);
+        }
+        byte[] metadata = null;
+        if (metadataLength > 0) {
+            metadata = new byte[metadataLength];
+            record.get(metadata);
+        }
+        return new byte[][]{value, metadata};
+    }
+
+    /**
+     * Returns the bytes of the record at the given offset, positioned at its start.
+     */
+    ByteBuffer readRaw(int offset, int length) throws IOException {
+        MappedByteBuffer mapped = mapping;
+        if (mapped != null) {
+            ByteBuffer record = mapped.duplicate();
+            ((Buffer) record).limit(offset + length).position(offset);
+            return record.slice();
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if (readFully(channel, record, offset) < length) {
+            throw new EOFException("Record at " + offset + " is beyond the end of [" + file + "].");
+        }
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    /**
+     * Passes every record of the segment to the visitor, reading the hint file if there is a
+     * valid one and the segment otherwise. Records after the last valid one, left by a write that
+     * did not complete, are cut off.
+     */
+    void replay(RecordVisitor visitor) throws Exception {
+        if (!replayHints(visitor)) {
+            replayRecords(visitor);
+        }
+    }
+
+    private boolean replayHints(RecordVisitor visitor) throws Exception {
+        if (!hintFile.isFile()) {
+            return false;
+        }
+        byte[] bytes = new byte[(int) hintFile.length()];
+        RandomAccessFile in = new RandomAccessFile(hintFile, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        if (bytes.length < FILE_HEADER_SIZE + CHECKSUM_SIZE) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int end = bytes.length - CHECKSUM_SIZE;
+        if (buffer.getLong() != MAGIC || buffer.getInt(end) != checksum(bytes, 0, end)) {
+            return false;
+        }
+        while (buffer.position() < end) {
+            byte type = buffer.get();
+            int offset = buffer.getInt();
+            int length = buffer.getInt();
+            long expiryTime = buffer.getLong();
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            visitor.visit(this, type, offset, length, expiryTime, key);
+        }
+        hints = null;
+        return true;
+    }
+
+    private void replayRecords(RecordVisitor visitor) throws Exception {
+        long fileSize = channel.size();
+        long offset = FILE_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (offset + RECORD_HEADER_SIZE + CHECKSUM_SIZE <= fileSize) {
+            ((Buffer) header).clear();
+            readFully(channel, header, offset);
+            int length = header.getInt(0);
+            if (length < RECORD_HEADER_SIZE + CHECKSUM_SIZE || offset + length > fileSize) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(channel, record, offset);
+            byte[] bytes = record.array();
+            if (record.getInt(length - CHECKSUM_SIZE) != checksum(bytes, 4, length - 4 - CHECKSUM_SIZE)) {
+                break;
+            }
+            byte type = record.get(4);
+            long expiryTime = record.getLong(5);
+            byte[] key = new byte[record.getInt(13)];
+            System.arraycopy(bytes, RECORD_HEADER_SIZE, key, 0, key.length);
+            hint(type, (int) offset, length, expiryTime, key);
+            visitor.visit(this, type, (int) offset, length, expiryTime, key);
+            offset += length;
+        }
+        if (offset < fileSize) {
+            channel.truncate(offset);
+        }
+        size = offset;
+    }
+
+    /**
+     * Stops appending to the segment: writes its hint file unless it already has one, and maps
+     * the segment into memory for reading.
+     */
+    void seal() throws IOException {
+        if (hints != null) {
+            channel.force(false);
+            writeHints();
+            hints = null;
+        }
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private void hint(byte type, int offset, int length, long expiryTime, byte[] key) throws IOException {
+        if (hints == null) {
+            return;
+        }
+        if (hints.size() == 0) {
+            new DataOutputStream(hints).writeLong(MAGIC);
+        }
+        DataOutputStream out = new DataOutputStream(hints);
+        out.writeByte(type);
+        out.writeInt(offset);
+        out.writeInt(length);
+        out.writeLong(expiryTime);
+        out.writeInt(key.length);
+        out.write(key);
+    }
+
+    private void writeHints() throws IOException {
+        if (hints.size() == 0) {
+            new DataOutputStream(hints).writeLong(MAGIC);
+        }
+        byte[] bytes = hints.toByteArray();
+        File temporary = new File(hintFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            out.setLength(0);
+            out.write(bytes);
+            out.writeInt(checksum(bytes, 0, bytes.length));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(hintFile)) {
+            throw new IOException("Could not rename [" + temporary + "] to [" + hintFile + "].");
+        }
+    }
+
+    /**
+     * Records that a record of this segment with the given length is no longer live.
+     */
+    void addGarbage(int length) {
+        garbage.addAndGet(length);
+    }
+
+    /**
+     * Returns the fraction of the segment taken by records which are no longer live.
+     */
+    double getGarbageRatio() {
+        long total = size - FILE_HEADER_SIZE;
+        return total <= 0 ? 0 : (double) garbage.get() / total;
+    }
+
+    /**
+     * Forces the appended records to the storage device.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes the segment and deletes its files.
+     */
+    void delete() throws IOException {
+        close();
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Could not delete [" + file + "].");
+        }
+        if (!hintFile.delete() && hintFile.exists()) {
+            throw new IOException("Could not delete [" + hintFile + "].");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import org.infinispan.commons.io.ByteBuffer;
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.executors.ExecutorAllCompletionService;
+import org.infinispan.marshall.core.MarshalledEntry;
+import org.infinispan.metadata.InternalMetadata;
+import org.infinispan.persistence.TaskContextImpl;
+import org.infinispan.persistence.spi.AdvancedLoadWriteStore;
+import org.infinispan.persistence.spi.InitializationContext;
+import org.infinispan.persistence.spi.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Infinispan cache store which keeps entries in an append-only log split into segments.
+ *
+ * Every write and remove is appended to the newest segment; nothing is ever rewritten in place.
+ * An index in memory maps each key to the position of its latest record, so a load is a single
+ * read, served from a memory mapping once the segment has been sealed. When a segment reaches
+ * {@link LogStoreConfiguration#segmentSize()} it is sealed, together with a hint file listing
+ * the keys and positions of its records. On start the index is rebuilt from the hint files,
+ * without reading values, so a store holding many sessions becomes available quickly.
+ *
+ * Overwritten, removed and expired records are garbage. So is a remove, once every segment which
+ * may hold a write of the key has been deleted. Once garbage takes at least
+ * {@link LogStoreConfiguration#compactionThreshold()} of a sealed segment, a background thread
+ * copies its live records to the newest segment and deletes it.
+ *
+ * The store is configured with {@link LogStoreConfigurationBuilder}, or in XML with the
+ * {@code logStore} element parsed by {@link LogStoreConfigurationParser}.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class LogStore implements AdvancedLoadWriteStore<Object, Object> {
+
+    /**
+     * Private internal log instance.
+     */
+    private static final Logger log = LoggerFactory.getLogger(LogStore.class);
+
+    /**
+     * Number of keys handed to one task of {@link #process}.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Orders index entries by the position of their records, the most recently written first.
+     */
+    private static final Comparator<Map.Entry<Object, Location>> NEWEST_FIRST =
+            new Comparator<Map.Entry<Object, Location>>() {
+                @Override
+                public int compare(Map.Entry<Object, Location> a, Map.Entry<Object, Location> b) {
+                    Location x = a.getValue();
+                    Location y = b.getValue();
+                    if (x.segment.getId() != y.segment.getId()) {
+                        return x.segment.getId() > y.segment.getId() ? -1 : 1;
+                    }
+                    return x.offset > y.offset ? -1 : (x.offset == y.offset ? 0 : 1);
+                }
+            };
+
+    /**
+     * Orders removes by the newest segment which may hold a write they remove.
+     */
+    private static final Comparator<Tombstone> FIRST_UNNEEDED = new Comparator<Tombstone>() {
+        @Override
+        public int compare(Tombstone a, Tombstone b) {
+            return a.newestWrite < b.newestWrite ? -1 : (a.newestWrite == b.newestWrite ? 0 : 1);
+        }
+    };
+
+    private InitializationContext ctx;
+
+    private LogStoreConfiguration configuration;
+
+    private StreamingMarshaller marshaller;
+
+    private File directory;
+
+    /**
+     * Position of the latest record of every key which has not been removed.
+     */
+    private final ConcurrentMap<Object, Location> index = new ConcurrentHashMap<Object, Location>();
+
+    /**
+     * All segments of the store, by id, oldest first.
+     */
+    private final ConcurrentNavigableMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+
+    /**
+     * Held for reading while a segment is read, and for writing while segments are deleted.
+     */
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes appends to the active segment together with the matching index update.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The segment records are appended to.
+     */
+    private LogSegment active;
+
+    /**
+     * Removes which are still needed, the one that is needed for the shortest time first. Guarded
+     * by {@link #writeLock}.
+     */
+    private final PriorityQueue<Tombstone> tombstones = new PriorityQueue<Tombstone>(16, FIRST_UNNEEDED);
+
+    /**
+     * Ids of segments waiting for compaction.
+     */
+    private final ConcurrentMap<Long, Boolean> compactions = new ConcurrentHashMap<Long, Boolean>();
+
+    private ExecutorService compactor;
+
+    private volatile boolean running;
+
+    @Override
+    public void init(InitializationContext ctx) {
+        this.ctx = ctx;
+        this.configuration = ctx.getConfiguration();
+        this.marshaller = ctx.getMarshaller();
+    }
+
+    @Override
+    public void start() {
+        directory = new File(configuration.location(), ctx.getCache().getName());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new PersistenceException("Directory [" + directory + "] could not be created.");
+        }
+        long startTime = System.nanoTime();
+        long nextId = 0;
+        try {
+            File[] files = directory.listFiles();
+            List<Long> ids = new ArrayList<Long>();
+            if (files != null) {
+                for (File file : files) {
+                    long id = LogSegment.idOf(file);
+                    if (id >= 0) {
+                        ids.add(id);
+                    }
+                }
+            }
+            Collections.sort(ids);
+            final long now = ctx.getTimeService().wallClockTime();
+            LogSegment.RecordVisitor rebuild = new LogSegment.RecordVisitor() {
+                @Override
+                public void visit(LogSegment segment, byte type, int offset, int length, long expiryTime, byte[] key)
+                        throws Exception {
+                    Object k = marshaller.objectFromByteBuffer(key);
+                    Location previous;
+                    if (type == LogSegment.PUT && (expiryTime < 0 || expiryTime > now)) {
+                        previous = index.put(k, new Location(segment, offset, length, expiryTime));
+                    } else {
+                        previous = index.remove(k);
+                        if (type == LogSegment.PUT) {
+                            segment.addGarbage(length);
+                        } else {
+                            // removes written without the segment of the removed write may
+                            // remove a write held by any older segment
+                            tombstones.add(new Tombstone(segment, length,
+                                    expiryTime >= 0 ? expiryTime : segment.getId() - 1));
+                        }
+                    }
+                    if (previous != null) {
+                        previous.segment.addGarbage(previous.length);
+                    }
+                }
+            };
+            for (Long id : ids) {
+                LogSegment segment = LogSegment.open(directory, id);
+                segments.put(id, segment);
+                segment.replay(rebuild);
+                if (segment.isEmpty()) {
+                    segments.remove(id);
+                    segment.delete();
+                } else {
+                    segment.seal();
+                }
+                nextId = id + 1;
+            }
+            active = LogSegment.create(directory, nextId);
+            segments.put(nextId, active);
+            collectTombstones();
+        } catch (Exception e) {
+            throw new PersistenceException("Could not open log store in [" + directory + "].", e);
+        }
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shiro-infinispan-log-store-compaction-" + ctx.getCache().getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        running = true;
+        if (log.isDebugEnabled()) {
+            log.debug("Rebuilt index of {} entries from {} segments in [{}] in {} ms.",
+                    index.size(), segments.size() - 1, directory,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+        for (LogSegment segment : segments.values()) {
+            scheduleCompaction(segment);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+        synchronized (writeLock) {
+            segmentsLock.writeLock().lock();
+            try {
+                if (active != null && !active.isSealed()) {
+                    if (active.isEmpty()) {
+                        segments.remove(active.getId());
+                        active.delete();
+                    } else {
+                        active.seal();
+                    }
+                }
+                for (LogSegment segment : segments.values()) {
+                    segment.close();
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Could not close log store in [" + directory + "].", e);
+            } finally {
+                segments.clear();
+                index.clear();
+                tombstones.clear();
+                compactions.clear();
+                active = null;
+                segmentsLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public MarshalledEntry<Object, Object> load(Object key) {
+        return load(key, true);
+    }
+
+    private MarshalledEntry<Object, Object> load(Object key, boolean fetchValue) {
+        byte[][] record;
+        segmentsLock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null || location.isExpired(ctx.getTimeService().wallClockTime())) {
+                return null;
+            }
+            record = location.segment.read(location.offset, location.length);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not load key [" + key + "] from [" + directory + "].", e);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+        return ctx.getMarshalledEntryFactory().newMarshalledEntry(key, fetchValue ? buffer(record[0]) : null,
+                buffer(record[1]));
+    }
+
+    @Override
+    public boolean contains(Object key) {
+        Location location = index.get(key);
+        return location != null && !location.isExpired(ctx.getTimeService().wallClockTime());
+    }
+
+    @Override
+    public void write(MarshalledEntry<Object, Object> entry) {
+        ByteBuffer key = entry.getKeyBytes();
+        InternalMetadata metadata = entry.getMetadata();
+        long expiryTime = metadata == null ? -1 : metadata.expiryTime();
+        java.nio.ByteBuffer record = LogSegment.encode(LogSegment.PUT, expiryTime, key,
+                entry.getValueBytes(), entry.getMetadataBytes());
+        try {
+            synchronized (writeLock) {
+                Location location = append(record, LogSegment.PUT, expiryTime, bytes(key));
+                retire(index.put(entry.getKey(), location));
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not write key [" + entry.getKey() + "] to [" + directory + "].", e);
+        }
+    }
+
+    @Override
+    public boolean delete(Object key) {
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        try {
+            ByteBuffer keyBytes = marshaller.objectToBuffer(key);
+            synchronized (writeLock) {
+                Location previous = index.remove(key);
+                if (previous == null) {
+                    return false;
+                }
+                // every write of the key is held by the segment of the latest one or older ones
+                long newestWrite = previous.segment.getId();
+                java.nio.ByteBuffer record = LogSegment.encode(LogSegment.DELETE, newestWrite, keyBytes, null, null);
+                int length = record.remaining();
+                Location tombstone = append(record, LogSegment.DELETE, newestWrite, bytes(keyBytes));
+                tombstones.add(new Tombstone(tombstone.segment, length, newestWrite));
+                retire(previous);
+                return true;
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not delete key [" + key + "] from [" + directory + "].", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Passes the entries to the task in batches on the given executor. Batches are submitted
+     * most recently written entries first, so that a preload which is interrupted or bounded
+     * holds the entries most likely to be used. Entries passed without their value do not hold
+     * it in memory.
+     */
+    @Override
+    public void process(final KeyFilter<Object> filter, final CacheLoaderTask<Object, Object> task, Executor executor,
+                        final boolean fetchValue, final boolean fetchMetadata) {
+        final TaskContext taskContext = new TaskContextImpl();
+        ExecutorAllCompletionService completionService = new ExecutorAllCompletionService(executor);
+        List<Map.Entry<Object, Location>> locations = new ArrayList<Map.Entry<Object, Location>>(index.entrySet());
+        Collections.sort(locations, NEWEST_FIRST);
+        List<Object> keys = new ArrayList<Object>(locations.size());
+        for (Map.Entry<Object, Location> location : locations) {
+            keys.add(location.getKey());
+        }
+        for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+            final List<Object> batch = keys.subList(from, Math.min(from + BATCH_SIZE, keys.size()));
+            completionService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (Object key : batch) {
+                        if (taskContext.isStopped()) {
+                            break;
+                        }
+                        if (filter != null && !filter.shouldLoadKey(key)) {
+                            continue;
+                        }
+                        MarshalledEntry<Object, Object> entry;
+                        if (fetchValue || fetchMetadata) {
+                            entry = load(key, fetchValue);
+                        } else if (contains(key)) {
+                            entry = ctx.getMarshalledEntryFactory().newMarshalledEntry(key, (Object) null, null);
+                        } else {
+                            entry = null;
+                        }
+                        if (entry == null) {
+                            continue;
+                        }
+                        task.processEntry(entry, taskContext);
+                    }
+                    return null;
+                }
+            });
+        }
+        completionService.waitUntilAllCompleted();
+        if (completionService.isExceptionThrown()) {
+            throw new PersistenceException("Could not process entries of [" + directory + "].",
+                    completionService.getFirstException());
+        }
+    }
+
+    @Override
+    public int size() {
+        long now = ctx.getTimeService().wallClockTime();
+        int size = 0;
+        for (Location location : index.values()) {
+            if (!location.isExpired(now)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            segmentsLock.writeLock().lock();
+            try {
+                long nextId = active.getId() + 1;
+                for (LogSegment segment : segments.values()) {
+                    segment.delete();
+                }
+                segments.clear();
+                index.clear();
+                tombstones.clear();
+                compactions.clear();
+                active = LogSegment.create(directory, nextId);
+                segments.put(nextId, active);
+            } catch (IOException e) {
+                throw new PersistenceException("Could not clear log store in [" + directory + "].", e);
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void purge(Executor threadPool, PurgeListener listener) {
+        long now = ctx.getTimeService().wallClockTime();
+        for (Map.Entry<Object, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (!location.isExpired(now)) {
+                continue;
+            }
+            boolean purged;
+            synchronized (writeLock) {
+                purged = index.remove(entry.getKey(), location);
+                if (purged) {
+                    retire(location);
+                }
+            }
+            if (purged && listener != null) {
+                listener.entryPurged(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, sealing it first if the record does not fit.
+     * Must be called holding {@link #writeLock}.
+     */
+    private Location append(java.nio.ByteBuffer record, byte type, long expiryTime, byte[] key) throws IOException {
+        int length = record.remaining();
+        if (!active.isEmpty() && active.getSize() + length > configuration.segmentSize()) {
+            LogSegment sealed = active;
+            sealed.seal();
+            active = LogSegment.create(directory, sealed.getId() + 1);
+            segments.put(active.getId(), active);
+            scheduleCompaction(sealed);
+        }
+        int offset = active.append(record, type, expiryTime, key);
+        return new Location(active, offset, length, expiryTime);
+    }
+
+    /**
+     * Accounts for a record which is no longer live. Must be called holding {@link #writeLock}.
+     */
+    private void retire(Location location) {
+        if (location != null) {
+            location.segment.addGarbage(location.length);
+            scheduleCompaction(location.segment);
+        }
+    }
+
+    /**
+     * Accounts for the removes which are no longer needed, because every segment which may hold a
+     * write of their key has been deleted. Must be called holding {@link #writeLock}.
+     */
+    private void collectTombstones() {
+        long oldest = segments.firstKey();
+        while (!tombstones.isEmpty() && tombstones.peek().newestWrite < oldest) {
+            Tombstone tombstone = tombstones.poll();
+            if (segments.get(tombstone.segment.getId()) == tombstone.segment) {
+                tombstone.segment.addGarbage(tombstone.length);
+                scheduleCompaction(tombstone.segment);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if a segment other than the given one may hold a write removed by a
+     * remove, so that the remove is still needed.
+     */
+    private boolean isNeeded(LogSegment segment, long newestWrite) {
+        Long oldest = segments.firstKey();
+        if (oldest == segment.getId()) {
+            oldest = segments.higherKey(oldest);
+        }
+        return oldest != null && oldest <= newestWrite;
+    }
+
+    private void scheduleCompaction(final LogSegment segment) {
+        if (!running || !segment.isSealed() || segment.getGarbageRatio() < configuration.compactionThreshold()
+                || compactions.putIfAbsent(segment.getId(), Boolean.TRUE) != null) {
+            return;
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(segment);
+                } catch (Exception e) {
+                    if (running) {
+                        log.warn("Unable to compact log store segment [" + segment + "].", e);
+                    }
+                } finally {
+                    compactions.remove(segment.getId());
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the active segment and deletes it.
+     *
+     * A remove is copied too while another segment may still hold a write of the removed key,
+     * which would otherwise come back on the next start. The copies are forced to disk before
+     * the segment is deleted.
+     */
+    void compact(final LogSegment segment) throws Exception {
+        if (!running || !segments.containsKey(segment.getId())) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        segment.replay(new LogSegment.RecordVisitor() {
+            @Override
+            public void visit(LogSegment s, byte type, int offset, int length, long expiryTime, byte[] key)
+                    throws Exception {
+                if (!running) {
+                    throw new IllegalStateException("Log store is stopping.");
+                }
+                Object k = marshaller.objectFromByteBuffer(key);
+                synchronized (writeLock) {
+                    Location location = index.get(k);
+                    if (type == LogSegment.PUT) {
+                        if (location == null || location.segment != segment || location.offset != offset) {
+                            return;
+                        }
+                        Location moved = append(copy(segment.readRaw(offset, length)), type, expiryTime, key);
+                        index.put(k, moved);
+                    } else {
+                        long newestWrite = expiryTime >= 0 ? expiryTime : segment.getId() - 1;
+                        if (location == null && isNeeded(segment, newestWrite)) {
+                            Location moved = append(copy(segment.readRaw(offset, length)), type, expiryTime, key);
+                            tombstones.add(new Tombstone(moved.segment, length, newestWrite));
+                        }
+                    }
+                }
+            }
+        });
+        synchronized (writeLock) {
+            active.force();
+            segmentsLock.writeLock().lock();
+            try {
+                if (segments.remove(segment.getId(), segment)) {
+                    segment.delete();
+                }
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+            for (Iterator<Tombstone> tombstone = tombstones.iterator(); tombstone.hasNext(); ) {
+                if (tombstone.next().segment == segment) {
+                    tombstone.remove();
+                }
+            }
+            collectTombstones();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted log store segment [{}] in {} ms.", segment,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+    }
+
+    /**
+     * Returns the ids of the segments of the store, oldest first.
+     */
+    List<Long> getSegmentIds() {
+        return new ArrayList<Long>(segments.keySet());
+    }
+
+    private ByteBuffer buffer(byte[] bytes) {
+        return bytes == null ? null : ctx.getByteBufferFactory().newByteBuffer(bytes, 0, bytes.length);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.getBuf(), buffer.getOffset(), buffer.getOffset() + buffer.getLength());
+    }
+
+    private static java.nio.ByteBuffer copy(java.nio.ByteBuffer buffer) {
+        java.nio.ByteBuffer copy = java.nio.ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        ((java.nio.Buffer) copy).flip();
+        return copy;
+    }
+
+    /**
+     * A remove which is needed while a segment which may hold a write of its key exists.
+     */
+    private static final class Tombstone {
+
+        final LogSegment segment;
+
+        final int length;
+
+        /**
+         * Id of the newest segment which may hold a write of the key.
+         */
+        final long newestWrite;
+
+        Tombstone(LogSegment segment, int length, long newestWrite) {
+            this.segment = segment;
+            this.length = length;
+            this.newestWrite = newestWrite;
+        }
+    }
+
+    /**
+     * Position and expiry time of the latest record of a key.
+     */
+    private static final class Location {
+
+        final LogSegment segment;
+
+        final int offset;
+
+        final int length;
+
+        final long expiryTime;
+
+        Location(LogSegment segment, int offset, int length, long expiryTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.expiryTime = expiryTime;
+        }
+
+        boolean isExpired(long now) {
+            return expiryTime >= 0 && expiryTime <= now;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import org.infinispan.commons.configuration.BuiltBy;
+import org.infinispan.commons.configuration.ConfigurationFor;
+import org.infinispan.configuration.cache.AbstractStoreConfiguration;
+import org.infinispan.configuration.cache.AsyncStoreConfiguration;
+import org.infinispan.configuration.cache.SingletonStoreConfiguration;
+
+import java.util.Properties;
+
+/**
+ * Configuration of a {@link LogStore}.
+ *
+ * @author Nemanja Zbiljic
+ */
+@BuiltBy(LogStoreConfigurationBuilder.class)
+@ConfigurationFor(LogStore.class)
+public class LogStoreConfiguration extends AbstractStoreConfiguration {
+
+    private final String location;
+
+    private final int segmentSize;
+
+    private final double compactionThreshold;
+
+    public LogStoreConfiguration(boolean purgeOnStartup, boolean fetchPersistentState, boolean ignoreModifications,
+                                 AsyncStoreConfiguration async, SingletonStoreConfiguration singletonStore,
+                                 boolean preload, boolean shared, Properties properties,
+                                 String location, int segmentSize, double compactionThreshold) {
+        super(purgeOnStartup, fetchPersistentState, ignoreModifications, async, singletonStore, preload, shared,
+                properties);
+        this.location = location;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Directory the segments are written to. Each cache uses a subdirectory named after it.
+     */
+    public String location() {
+        return location;
+    }
+
+    /**
+     * Size in bytes after which a segment is sealed and a new one is started.
+     */
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Fraction of a sealed segment taken by overwritten, removed or expired records at which the
+     * segment is compacted.
+     */
+    public double compactionThreshold() {
+        return compactionThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return "LogStoreConfiguration{" +
+                "location='" + location + '\'' +
+                ", segmentSize=" + segmentSize +
+                ", compactionThreshold=" + compactionThreshold +
+                "} " + super.toString();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import org.infinispan.commons.CacheConfigurationException;
+import org.infinispan.configuration.cache.AbstractStoreConfigurationBuilder;
+import org.infinispan.configuration.cache.PersistenceConfigurationBuilder;
+
+/**
+ * Builds a {@link LogStoreConfiguration}. Add the store to a cache with
+ * {@code builder.persistence().addStore(LogStoreConfigurationBuilder.class)}.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class LogStoreConfigurationBuilder
+        extends AbstractStoreConfigurationBuilder<LogStoreConfiguration, LogStoreConfigurationBuilder> {
+
+    /**
+     * Default directory of the segments, relative to the working directory.
+     */
+    public static final String DEFAULT_LOCATION = "Infinispan-LogStore";
+
+    /**
+     * Default size of a segment: 16 MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * By default a segment is compacted once half of it is garbage.
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private String location = DEFAULT_LOCATION;
+
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    public LogStoreConfigurationBuilder(PersistenceConfigurationBuilder builder) {
+        super(builder);
+    }
+
+    @Override
+    public LogStoreConfigurationBuilder self() {
+        return this;
+    }
+
+    /**
+     * Sets the directory the segments are written to.
+     */
+    public LogStoreConfigurationBuilder location(String location) {
+        this.location = location;
+        return this;
+    }
+
+    /**
+     * Sets the size in bytes after which a segment is sealed and a new one is started.
+     */
+    public LogStoreConfigurationBuilder segmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of garbage in a sealed segment at which it is compacted, between 0
+     * (exclusive) and 1.
+     */
+    public LogStoreConfigurationBuilder compactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    @Override
+    public void validate() {
+        super.validate();
+        if (location == null || location.isEmpty()) {
+            throw new CacheConfigurationException("Log store location must be set.");
+        }
+        if (segmentSize <= LogSegment.FILE_HEADER_SIZE) {
+            throw new CacheConfigurationException("Log store segment size must be larger than "
+                    + LogSegment.FILE_HEADER_SIZE + " bytes, but was " + segmentSize + ".");
+        }
+        if (!(compactionThreshold > 0 && compactionThreshold <= 1)) {
+            throw new CacheConfigurationException("Log store compaction threshold must be in (0, 1], but was "
+                    + compactionThreshold + ".");
+        }
+    }
+
+    @Override
+    public LogStoreConfiguration create() {
+        return new LogStoreConfiguration(purgeOnStartup, fetchPersistentState, ignoreModifications, async.create(),
+                singletonStore.create(), preload, shared, properties, location, segmentSize, compactionThreshold);
+    }
+
+    @Override
+    public LogStoreConfigurationBuilder read(LogStoreConfiguration template) {
+        location = template.location();
+        segmentSize = template.segmentSize();
+        compactionThreshold = template.compactionThreshold();
+
+        fetchPersistentState = template.fetchPersistentState();
+        ignoreModifications = template.ignoreModifications();
+        properties = template.properties();
+        purgeOnStartup = template.purgeOnStartup();
+        preload = template.preload();
+        shared = template.shared();
+        async.read(template.async());
+        singletonStore.read(template.singletonStore());
+        return this;
+    }
+}
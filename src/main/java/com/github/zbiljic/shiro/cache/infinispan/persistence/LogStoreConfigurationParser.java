@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import org.infinispan.commons.util.StringPropertyReplacer;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.ConfigurationParser;
+import org.infinispan.configuration.parsing.Namespace;
+import org.infinispan.configuration.parsing.Namespaces;
+import org.infinispan.configuration.parsing.ParseUtils;
+import org.infinispan.configuration.parsing.Parser60;
+import org.infinispan.configuration.parsing.XMLExtendedStreamReader;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Parses the {@code logStore} element, which adds a {@link LogStore} to the persistence of a
+ * cache:
+ *
+ * <pre>
+ * &lt;persistence passivation="false"&gt;
+ *     &lt;logStore xmlns="urn:shiro-infinispan:store:log:1.0"
+ *             location="${java.io.tmpdir}/shiro-infinispan-cache/session/logStore/data/"
+ *             segmentSize="16777216"
+ *             compactionThreshold="0.5"/&gt;
+ * &lt;/persistence&gt;
+ * </pre>
+ *
+ * Besides its own attributes, the element accepts the attributes and children common to all
+ * Infinispan stores, such as {@code preload}, {@code fetchPersistentState} and
+ * {@code <async>}. The parser is registered with Infinispan through
+ * {@code META-INF/services/org.infinispan.configuration.parsing.ConfigurationParser}.
+ *
+ * @author Nemanja Zbiljic
+ */
+@Namespaces({
+        @Namespace(uri = LogStoreConfigurationParser.NAMESPACE, root = LogStoreConfigurationParser.ELEMENT),
+        @Namespace(root = LogStoreConfigurationParser.ELEMENT)
+})
+public class LogStoreConfigurationParser implements ConfigurationParser {
+
+    /**
+     * XML namespace of the {@code logStore} element.
+     */
+    public static final String NAMESPACE = "urn:shiro-infinispan:store:log:1.0";
+
+    static final String ELEMENT = "logStore";
+
+    @Override
+    public void readElement(XMLExtendedStreamReader reader, ConfigurationBuilderHolder holder)
+            throws XMLStreamException {
+        LogStoreConfigurationBuilder builder = holder.getCurrentConfigurationBuilder().persistence()
+                .addStore(LogStoreConfigurationBuilder.class);
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            ParseUtils.requireNoNamespaceAttribute(reader, i);
+            String value = StringPropertyReplacer.replaceProperties(reader.getAttributeValue(i));
+            String attributeName = reader.getAttributeLocalName(i);
+            if ("location".equals(attributeName)) {
+                builder.location(value);
+            } else if ("segmentSize".equals(attributeName)) {
+                builder.segmentSize(Integer.parseInt(value));
+            } else if ("compactionThreshold".equals(attributeName)) {
+                builder.compactionThreshold(Double.parseDouble(value));
+            } else {
+                Parser60.parseCommonStoreAttributes(reader, builder, attributeName, value, i);
+            }
+        }
+        while (reader.hasNext() && reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+            Parser60.parseCommonStoreChildren(reader, builder);
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheException;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.eis.EnterpriseCacheSessionDAO;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.infinispan.AdvancedCache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.ch.SyncConsistentHashFactory;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link InfinispanCache} backed by a distributed cache of two nodes, running in this JVM
+ * on the {@code jgroups-shared-loopback.xml} stack.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class ClusteredInfinispanCacheTest {
+
+    private static final String CACHE_NAME = "test";
+
+    private EmbeddedCacheManager first;
+
+    private EmbeddedCacheManager second;
+
+    @Before
+    public void setUp() throws Exception {
+        first = createCacheManager("first");
+        second = createCacheManager("second");
+        first.getCache(CACHE_NAME);
+        second.getCache(CACHE_NAME);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (first.getMembers().size() != 2 || second.getMembers().size() != 2
+                || isRehashInProgress(first, CACHE_NAME) || isRehashInProgress(second, CACHE_NAME)) {
+            assertTrue("Cluster did not form in time.", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        second.stop();
+        first.stop();
+    }
+
+    private static boolean isRehashInProgress(EmbeddedCacheManager cacheManager, String cacheName) {
+        DistributionManager distribution = cacheManager.getCache(cacheName).getAdvancedCache().getDistributionManager();
+        return !distribution.isJoinComplete() || distribution.isRehashInProgress();
+    }
+
+    private EmbeddedCacheManager createCacheManager(String nodeName) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        global.transport()
+                .clusterName(getClass().getSimpleName())
+                .nodeName(nodeName)
+                .addProperty("configurationFile", "jgroups-shared-loopback.xml");
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        configuration.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(1);
+        return new DefaultCacheManager(global.build(), configuration.build());
+    }
+
+    @Test
+    public void testBulkOperationsSpanAllOwners() {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(first.<String, String>getCache(CACHE_NAME));
+        InfinispanCache<String, String> other = new InfinispanCache<String, String>(second.<String, String>getCache(CACHE_NAME));
+
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        cache.putAll(entries);
+        assertTrue(first.getCache(CACHE_NAME).getAdvancedCache().getDataContainer().size() < entries.size());
+        assertEquals("value42", other.get("key42"));
+
+        Set<String> keys = new HashSet<String>(entries.keySet());
+        keys.add("missing");
+        assertEquals(entries, other.getAll(keys));
+
+        Set<String> removed = new HashSet<String>();
+        for (int i = 0; i < 50; i++) {
+            removed.add("key" + i);
+        }
+        other.removeAll(removed);
+        Map<String, String> remaining = cache.getAll(keys);
+        assertEquals(50, remaining.size());
+        for (String key : removed) {
+            assertNull(cache.get(key));
+            assertFalse(remaining.containsKey(key));
+        }
+    }
+
+    @Test
+    public void testBulkOperationsStopWithCacheManager() {
+        InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+        cacheManager.setCacheManager(first);
+        BulkInfinispanCache<String, String> cache = (BulkInfinispanCache<String, String>) cacheManager.<String, String>getCache(CACHE_NAME);
+        cache.put("hello", "world");
+        assertEquals(Collections.singletonMap("hello", "world"), cache.getAll(Collections.singleton("hello")));
+
+        cacheManager.destroy();
+        try {
+            cache.getAll(Collections.singleton("hello"));
+            fail("Bulk operations should be stopped with the cache manager.");
+        } catch (CacheException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSessionValidationOnOwners() {
+        InfinispanCacheManager cacheManager = new InfinispanCacheManager();
+        cacheManager.setCacheManager(first);
+        EnterpriseCacheSessionDAO sessionDAO = new EnterpriseCacheSessionDAO();
+        sessionDAO.setCacheManager(cacheManager);
+        DefaultSessionManager sessionManager = new DefaultSessionManager();
+        sessionManager.setSessionDAO(sessionDAO);
+        sessionManager.setSessionValidationSchedulerEnabled(false);
+
+        InfinispanCache<Serializable, SimpleSession> other = new InfinispanCache<Serializable, SimpleSession>(
+                second.<Serializable, SimpleSession>getCache(EnterpriseCacheSessionDAO.ACTIVE_SESSION_CACHE_NAME));
+        for (int i = 0; i < 20; i++) {
+            SimpleSession session = new SimpleSession();
+            session.setId("session" + i);
+            if (i % 2 == 0) {
+                session.setLastAccessTime(new Date(System.currentTimeMillis() - session.getTimeout() - 1000));
+            }
+            other.put(session.getId(), session);
+        }
+
+        new InfinispanSessionValidationScheduler(sessionManager).validateSessions();
+
+        for (int i = 0; i < 20; i++) {
+            if (i % 2 == 0) {
+                assertNull(other.get("session" + i));
+            } else {
+                assertNotNull(other.get("session" + i));
+            }
+        }
+        cacheManager.destroy();
+    }
+
+    @Test
+    public void testAuthorizationInvalidationOnOwners() {
+        InfinispanCacheManager firstManager = new InfinispanCacheManager();
+        firstManager.setCacheManager(first);
+        firstManager.setIndexedAuthorizationCacheNames(Collections.singleton("authorization"));
+        InfinispanCacheManager secondManager = new InfinispanCacheManager();
+        secondManager.setCacheManager(second);
+        secondManager.setIndexedAuthorizationCacheNames(Collections.singleton("authorization"));
+
+        AuthorizationCache<PrincipalCollection, AuthorizationInfo> cache =
+                (AuthorizationCache<PrincipalCollection, AuthorizationInfo>) firstManager
+                        .<PrincipalCollection, AuthorizationInfo>getCache("authorization");
+        Cache<PrincipalCollection, AuthorizationInfo> other = secondManager.getCache("authorization");
+        for (int i = 0; i < 20; i++) {
+            SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+            info.addRole("user");
+            if (i % 2 == 0) {
+                info.addRole("admin");
+            }
+            info.addStringPermission(i % 3 == 0 ? "printer:print:lp" + i : "document:read");
+            other.put(new SimplePrincipalCollection("user" + i, "realm"), info);
+        }
+
+        assertEquals(10, cache.invalidateByRole("admin"));
+        assertEquals(3, cache.invalidateByPermissionPrefix("printer:"));
+        assertEquals(0, cache.invalidateByRole("admin"));
+        for (int i = 0; i < 20; i++) {
+            AuthorizationInfo info = other.get(new SimplePrincipalCollection("user" + i, "realm"));
+            if (i % 2 == 0 || i % 3 == 0) {
+                assertNull(info);
+            } else {
+                assertNotNull(info);
+            }
+        }
+        secondManager.destroy();
+        firstManager.destroy();
+    }
+
+    @Test
+    public void testPrincipalGroupedEntriesShareOwners() {
+        ConfigurationBuilder grouped = new ConfigurationBuilder();
+        grouped.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(1)
+                .consistentHashFactory(new SyncConsistentHashFactory())
+                .groups().enabled().addGrouper(new PrincipalGrouper());
+        for (EmbeddedCacheManager node : new EmbeddedCacheManager[]{first, second}) {
+            node.defineConfiguration("authentication", grouped.build());
+            node.defineConfiguration("authorization", grouped.build());
+            node.getCache("authentication");
+            node.getCache("authorization");
+        }
+
+        DistributionManager authentication = first.getCache("authentication").getAdvancedCache().getDistributionManager();
+        DistributionManager authorization = first.getCache("authorization").getAdvancedCache().getDistributionManager();
+        Set<Object> owners = new HashSet<Object>();
+        for (int i = 0; i < 50; i++) {
+            String username = "user" + i;
+            PrincipalCollection principals = new SimplePrincipalCollection(username, "realm");
+            assertEquals(authentication.getPrimaryLocation(username), authorization.getPrimaryLocation(principals));
+            owners.add(authorization.getPrimaryLocation(principals));
+        }
+        assertEquals(2, owners.size());
+    }
+
+    @Test
+    public void testLoadLocksCoordinateNodes() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(200);
+                return "world";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?>[] results = new Future<?>[2];
+            EmbeddedCacheManager[] nodes = new EmbeddedCacheManager[]{first, second};
+            for (int i = 0; i < nodes.length; i++) {
+                final InfinispanCache<String, String> cache = new InfinispanCache<String, String>(nodes[i].<String, String>getCache(CACHE_NAME));
+                cache.setSingleFlight(new SingleFlightLoader(nodes[i].getCache(CACHE_NAME + ".loadLocks"), 10000, 0));
+                results[i] = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return cache.get("hello", loader);
+                    }
+                });
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                assertEquals("world", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertNull(first.getCache(CACHE_NAME + ".loadLocks").get("hello"));
+    }
+
+    @Test
+    public void testDeltaSessionChangesAreMergedOnOwners() {
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(first.<String, DeltaSession>getCache(CACHE_NAME), true);
+        InfinispanCache<String, DeltaSession> other = new InfinispanCache<String, DeltaSession>(second.<String, DeltaSession>getCache(CACHE_NAME), true);
+
+        DistributionManager distribution = first.getCache(CACHE_NAME).getAdvancedCache().getDistributionManager();
+        String key = "session";
+        for (int i = 0; distribution.getPrimaryLocation(key).equals(first.getAddress()); i++) {
+            key = "session" + i;
+        }
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId(key);
+        session.setAttribute("first", 1);
+        cache.put(key, session);
+
+        DeltaSession owned = other.get(key);
+        owned.setAttribute("second", 2);
+        other.put(key, owned);
+
+        session.setAttribute("third", 3);
+        session.touch();
+        cache.put(key, session);
+        assertFalse(session.isChanged());
+
+        DeltaSession stored = (DeltaSession) second.getCache(CACHE_NAME).getAdvancedCache().getDataContainer().get(key).getValue();
+        assertEquals(key, stored.getId());
+        assertEquals(session.getLastAccessTime(), stored.getLastAccessTime());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+        assertEquals(3, stored.getAttribute("third"));
+    }
+
+    @Test
+    public void testMemoryBudgetWeighsOnlyOwnedEntries() throws Exception {
+        AdvancedCache<String, byte[]> delegate = first.<String, byte[]>getCache(CACHE_NAME).getAdvancedCache();
+        MemoryBudget budget = new MemoryBudget(delegate, Long.MAX_VALUE, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        WriteBehindQueue writeBehind = new WriteBehindQueue(delegate, 1000);
+        InfinispanCache<String, byte[]> cache = new InfinispanCache<String, byte[]>(delegate);
+        cache.setMemoryBudget(budget);
+        cache.setWriteBehind(writeBehind);
+
+        DistributionManager distribution = delegate.getDistributionManager();
+        long owned = 0;
+        int notOwned = 0;
+        for (int i = 0; i < 20; i++) {
+            byte[] value = new byte[100 + i];
+            cache.put("key" + i, value);
+            if (distribution.getLocality("key" + i).isLocal()) {
+                owned += EmbeddedCaches.serializedSize(delegate, value);
+            } else {
+                notOwned++;
+            }
+        }
+        assertTrue(notOwned > 0);
+        assertEquals(0, budget.getTotal());
+
+        writeBehind.flush();
+        assertEquals(owned, budget.getTotal());
+
+        cache.setWriteBehind(null);
+        for (int round = 0; round < MemoryBudget.WEIGH_SAMPLE_INTERVAL; round++) {
+            for (int i = 0; i < 20; i++) {
+                cache.put("key" + i, new byte[200 + i]);
+            }
+        }
+        long rewritten = 0;
+        for (int i = 0; i < 20; i++) {
+            if (distribution.getLocality("key" + i).isLocal()) {
+                rewritten += EmbeddedCaches.serializedSize(delegate, new byte[200 + i]);
+            }
+        }
+        assertEquals(rewritten, budget.getTotal());
+        budget.stop();
+    }
+
+    @Test
+    public void testRequestScopedDeltaSessionChangesAreMergedOnOwners() {
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(first.<String, DeltaSession>getCache(CACHE_NAME), true);
+        InfinispanCache<String, DeltaSession> other = new InfinispanCache<String, DeltaSession>(second.<String, DeltaSession>getCache(CACHE_NAME), true);
+        cache.setRequestScoped(true);
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId("scoped");
+        session.setAttribute("first", 1);
+        cache.put("scoped", session);
+
+        DeltaSession owned = other.get("scoped");
+        owned.setAttribute("second", 2);
+        other.put("scoped", owned);
+
+        CacheRequestScope scope = new CacheRequestScope();
+        scope.bind();
+        try {
+            session.setAttribute("third", 3);
+            cache.put("scoped", session);
+        } finally {
+            scope.restore();
+        }
+        assertFalse(session.isChanged());
+
+        DeltaSession stored = other.get("scoped");
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+        assertEquals(3, stored.getAttribute("third"));
+    }
+
+    @Test
+    public void testDeltaSessionIsWrittenWholeAfterOwnerEvictsIt() {
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(first.<String, DeltaSession>getCache(CACHE_NAME), true);
+
+        DistributionManager distribution = first.getCache(CACHE_NAME).getAdvancedCache().getDistributionManager();
+        String key = "session";
+        for (int i = 0; distribution.getPrimaryLocation(key).equals(first.getAddress()); i++) {
+            key = "session" + i;
+        }
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId(key);
+        session.setAttribute("first", 1);
+        cache.put(key, session);
+        second.getCache(CACHE_NAME).evict(key);
+
+        session.setAttribute("second", 2);
+        cache.put(key, session);
+        assertFalse(session.isChanged());
+
+        DeltaSession stored = (DeltaSession) second.getCache(CACHE_NAME).getAdvancedCache().getDataContainer().get(key).getValue();
+        assertEquals(key, stored.getId());
+        assertEquals("localhost", stored.getHost());
+        assertEquals(session.getStartTimestamp(), stored.getStartTimestamp());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+    }
+
+    @Test
+    public void testDeltaSessionOwnedByOtherNodeIsMergedThere() throws Exception {
+        ConfigurationBuilder single = new ConfigurationBuilder();
+        single.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(1);
+        for (EmbeddedCacheManager node : new EmbeddedCacheManager[]{first, second}) {
+            node.defineConfiguration("single", single.build());
+            node.getCache("single");
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (isRehashInProgress(first, "single") || isRehashInProgress(second, "single")) {
+            assertTrue("Cache did not start in time.", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(first.<String, DeltaSession>getCache("single"), true);
+
+        DistributionManager distribution = first.getCache("single").getAdvancedCache().getDistributionManager();
+        String key = "session";
+        for (int i = 0; distribution.getLocality(key).isLocal(); i++) {
+            key = "session" + i;
+        }
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId(key);
+        session.setAttribute("first", 1);
+        cache.put(key, session);
+        session.setAttribute("second", 2);
+        cache.put(key, session);
+        assertFalse(session.isChanged());
+        assertNull(first.getCache("single").getAdvancedCache().getDataContainer().get(key));
+
+        DeltaSession stored = (DeltaSession) second.getCache("single").getAdvancedCache().getDataContainer().get(key).getValue();
+        assertEquals("localhost", stored.getHost());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+
+        // the owner refuses changes once it holds no session, so the whole session is written
+        second.getCache("single").evict(key);
+        session.setAttribute("third", 3);
+        cache.put(key, session);
+
+        stored = (DeltaSession) second.getCache("single").getAdvancedCache().getDataContainer().get(key).getValue();
+        assertEquals(key, stored.getId());
+        assertEquals("localhost", stored.getHost());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(3, stored.getAttribute("third"));
+    }
+
+    @Test
+    public void testReadsOfEntriesOwnedByOtherNodesAreMeasuredAsRemote() throws Exception {
+        ConfigurationBuilder l1 = new ConfigurationBuilder();
+        l1.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(1).l1().enable();
+        for (EmbeddedCacheManager node : new EmbeddedCacheManager[]{first, second}) {
+            node.defineConfiguration("l1", l1.build());
+            node.getCache("l1");
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (isRehashInProgress(first, "l1") || isRehashInProgress(second, "l1")) {
+            assertTrue("Cache did not start in time.", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+
+        DistributionManager distribution = first.getCache("l1").getAdvancedCache().getDistributionManager();
+        String key = "hello";
+        for (int i = 0; distribution.getLocality(key).isLocal(); i++) {
+            key = "hello" + i;
+        }
+        second.getCache("l1").put(key, "world");
+
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(first.<String, String>getCache("l1"));
+        SimpleCacheMetrics metrics = new SimpleCacheMetrics();
+        cache.setMetrics(metrics);
+        assertEquals("world", cache.get(key));
+        assertEquals("world", cache.get(key));
+
+        assertEquals(2, metrics.getRemoteHits());
+        assertEquals(0, metrics.getLocalHits());
+    }
+}
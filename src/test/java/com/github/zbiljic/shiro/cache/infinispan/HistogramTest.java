@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Nemanja Zbiljic
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValuesWithBoundedError() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.index(value);
+            long upperBound = Histogram.upperBound(index);
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 16);
+            if (index > 0) {
+                assertTrue(Histogram.upperBound(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.0);
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 / 16);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 / 16);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.CacheException;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commands.read.GetKeyValueCommand;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.InterceptorConfiguration;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.BaseCustomInterceptor;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Nemanja Zbiljic
+ */
+public class InfinispanCacheTest {
+
+    private EmbeddedCacheManager cacheManager;
+
+    @Before
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Test
+    public void testPutAndRemoveReturnPreviousValues() {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+
+        assertNull(cache.put("hello", "world"));
+        assertEquals("world", cache.put("hello", "there"));
+        assertEquals("there", cache.get("hello"));
+
+        assertEquals("there", cache.remove("hello"));
+        assertNull(cache.get("hello"));
+        assertNull(cache.remove("hello"));
+    }
+
+    @Test
+    public void testPutAndRemoveIgnoringReturnValues() {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"), true);
+
+        assertNull(cache.put("hello", "world"));
+        assertNull(cache.put("hello", "there"));
+        assertEquals("there", cache.get("hello"));
+
+        assertNull(cache.remove("hello"));
+        assertNull(cache.get("hello"));
+    }
+
+    @Test
+    public void testKeysAndValuesAreLiveReadOnlyViews() {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+
+        Set<String> keys = cache.keys();
+        Collection<String> values = cache.values();
+        assertTrue(keys.isEmpty());
+        assertTrue(values.isEmpty());
+
+        cache.put("hello", "world");
+        cache.put("foo", "bar");
+
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("hello"));
+        assertTrue(keys.contains("foo"));
+        assertFalse(keys.contains("missing"));
+        assertEquals(2, values.size());
+        assertTrue(values.contains("world"));
+        assertTrue(values.contains("bar"));
+
+        try {
+            keys.iterator().remove();
+            fail("Keys view should be read-only.");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            values.add("baz");
+            fail("Values view should be read-only.");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNearCacheIsInvalidatedOnModification() {
+        AdvancedCache<String, String> delegate = cacheManager.<String, String>getCache("test").getAdvancedCache();
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(delegate);
+        NearCache nearCache = new NearCache(delegate, 100, 0);
+        cache.setNearCache(nearCache);
+
+        cache.put("hello", "world");
+        assertEquals("world", nearCache.get("hello"));
+        assertEquals("world", cache.get("hello"));
+
+        // changes made directly in Infinispan must not be hidden by the near-cache
+        delegate.put("hello", "there");
+        assertNull(nearCache.get("hello"));
+        assertEquals("there", cache.get("hello"));
+        assertEquals("there", nearCache.get("hello"));
+
+        delegate.remove("hello");
+        assertNull(nearCache.get("hello"));
+        assertNull(cache.get("hello"));
+
+        nearCache.stop();
+    }
+
+    @Test
+    public void testNearCacheKeepsNoValueModifiedWhileBeingRead() {
+        ModifyingReads modifyingReads = new ModifyingReads();
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        configuration.customInterceptors().addInterceptor()
+                .position(InterceptorConfiguration.Position.FIRST).interceptor(modifyingReads);
+        cacheManager.defineConfiguration("modified", configuration.build());
+        final AdvancedCache<String, String> delegate = cacheManager.<String, String>getCache("modified").getAdvancedCache();
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(delegate);
+        NearCache nearCache = new NearCache(delegate, 100, 0);
+        cache.setNearCache(nearCache);
+
+        delegate.put("hello", "world");
+        delegate.put("foo", "bar");
+
+        // the entry is modified after Infinispan returned it, before it is near-cached
+        modifyingReads.afterRead = new Runnable() {
+            @Override
+            public void run() {
+                delegate.put("hello", "there");
+            }
+        };
+        assertEquals("world", cache.get("hello"));
+        assertNull(nearCache.get("hello"));
+        assertEquals("there", cache.get("hello"));
+        assertEquals("there", nearCache.get("hello"));
+
+        modifyingReads.afterRead = new Runnable() {
+            @Override
+            public void run() {
+                delegate.put("foo", "baz");
+            }
+        };
+        assertEquals("bar", cache.getAll(Collections.singleton("foo")).get("foo"));
+        assertNull(nearCache.get("foo"));
+        assertEquals("baz", cache.get("foo"));
+
+        nearCache.stop();
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+
+        assertNull(cache.putAsync("hello", "world").get());
+        assertEquals("world", cache.getAsync("hello").get());
+        assertEquals("world", cache.putIfAbsentAsync("hello", "there").get());
+        assertEquals("world", cache.removeAsync("hello").get());
+        assertNull(cache.getAsync("hello").get());
+        assertNull(cache.putIfAbsentAsync("hello", "there").get());
+        assertEquals("there", cache.get("hello"));
+        assertNull(cache.putIfAbsentAsync(null, "there").get());
+    }
+
+    @Test
+    public void testAsyncPutNotifiesListenersOnceDone() throws Exception {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        cache.putAsync("hello", "world").attachListener(new FutureListener<String>() {
+            @Override
+            public void futureDone(Future<String> future) {
+                done.set(future.isDone());
+                notified.countDown();
+            }
+        });
+        assertTrue(notified.await(10, TimeUnit.SECONDS));
+        assertTrue(done.get());
+    }
+
+    @Test
+    public void testWriteBehindCoalescesPuts() {
+        org.infinispan.Cache<String, String> delegate = cacheManager.getCache("test");
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(delegate);
+        WriteBehindQueue writeBehind = new WriteBehindQueue(delegate, 2);
+        cache.setWriteBehind(writeBehind);
+
+        cache.put("hello", "world");
+        cache.put("hello", "there");
+        cache.put("foo", "bar");
+        assertEquals(2, writeBehind.size());
+        assertNull(delegate.get("hello"));
+        assertEquals("there", cache.get("hello"));
+
+        // buffer is full, so new keys are written through
+        cache.put("baz", "qux");
+        assertEquals("qux", delegate.get("baz"));
+
+        writeBehind.flush();
+        assertEquals(0, writeBehind.size());
+        assertEquals("there", delegate.get("hello"));
+        assertEquals("bar", delegate.get("foo"));
+
+        cache.put("hello", "again");
+        cache.remove("hello");
+        writeBehind.flush();
+        assertNull(delegate.get("hello"));
+        assertNull(cache.get("hello"));
+    }
+
+    @Test
+    public void testRequestScopeMemoizesReadsAndDefersWrites() {
+        org.infinispan.Cache<String, String> delegate = cacheManager.getCache("test");
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(delegate);
+        cache.setRequestScoped(true);
+        delegate.put("hello", "world");
+        delegate.put("foo", "bar");
+
+        CacheRequestScope scope = new CacheRequestScope();
+        scope.bind();
+        try {
+            assertTrue(CacheRequestScope.isBound());
+            assertEquals("world", cache.get("hello"));
+            assertNull(cache.get("missing"));
+            delegate.put("hello", "changed");
+            delegate.put("missing", "found");
+            assertEquals("world", cache.get("hello"));
+            assertNull(cache.get("missing"));
+
+            assertEquals("world", cache.put("hello", "there"));
+            cache.remove("foo");
+            assertEquals("there", cache.get("hello"));
+            assertNull(cache.get("foo"));
+            assertEquals("changed", delegate.get("hello"));
+            assertEquals("bar", delegate.get("foo"));
+        } finally {
+            scope.restore();
+        }
+
+        assertFalse(CacheRequestScope.isBound());
+        assertEquals("there", delegate.get("hello"));
+        assertNull(delegate.get("foo"));
+        assertEquals("found", cache.get("missing"));
+    }
+
+    @Test
+    public void testRequestScopeMemoizesBulkReads() {
+        org.infinispan.Cache<String, String> delegate = cacheManager.getCache("test");
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(delegate);
+        cache.setRequestScoped(true);
+        delegate.put("hello", "world");
+
+        CacheRequestScope scope = new CacheRequestScope();
+        scope.bind();
+        try {
+            Map<String, String> values = cache.getAll(new HashSet<String>(Arrays.asList("hello", "missing")));
+            assertEquals(Collections.singletonMap("hello", "world"), values);
+            delegate.put("hello", "changed");
+            delegate.put("missing", "found");
+            assertEquals("world", cache.get("hello"));
+            assertNull(cache.get("missing"));
+        } finally {
+            scope.restore();
+        }
+        assertEquals("found", cache.get("missing"));
+    }
+
+    @Test
+    public void testOperationsAreMeasured() {
+        InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+        SimpleCacheMetrics metrics = new SimpleCacheMetrics();
+        cache.setMetrics(metrics);
+
+        cache.put("hello", "world");
+        cache.get("hello");
+        cache.get("missing");
+        cache.remove("hello");
+        for (String ignored : cache.values()) {
+            fail("Cache should be empty.");
+        }
+
+        assertEquals(1, metrics.getHits());
+        assertEquals(1, metrics.getLocalHits());
+        assertEquals(0, metrics.getRemoteHits());
+        assertEquals(1, metrics.getMisses());
+        assertEquals(0.5, metrics.getHitRatio(), 0.0);
+        assertEquals(2, metrics.getGetLatency().getCount());
+        assertEquals(1, metrics.getPutLatency().getCount());
+        assertEquals(1, metrics.getRemoveLatency().getCount());
+        assertEquals(1, metrics.getValueSizes().getCount());
+        assertTrue(metrics.getValueSizes().getMax() > 0);
+        assertEquals(1, metrics.getScanLatency().getCount());
+        assertEquals(0, metrics.getScanSizes().getMax());
+    }
+
+    @Test
+    public void testMemoryBudgetEvictsLeastRecentlyUsedEntries() {
+        AdvancedCache<String, byte[]> delegate = cacheManager.<String, byte[]>getCache("test").getAdvancedCache();
+        InfinispanCache<String, byte[]> cache = new InfinispanCache<String, byte[]>(delegate);
+        MemoryBudget budget = new MemoryBudget(delegate, 20 * 1024, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        cache.setMemoryBudget(budget);
+
+        cache.put("first", new byte[1024]);
+        for (int i = 0; i < 100; i++) {
+            cache.get("first");
+            cache.put("key" + i, new byte[1024]);
+        }
+
+        assertTrue(budget.getTotal() <= 20 * 1024);
+        assertTrue(delegate.getDataContainer().size() < 20);
+        assertNotNull(cache.get("first"));
+        assertNotNull(cache.get("key99"));
+        assertNull(cache.get("key0"));
+
+        cache.remove("first");
+        cache.clear();
+        assertEquals(0, budget.getTotal());
+        budget.stop();
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final InfinispanCache<String, String> cache = new InfinispanCache<String, String>(cacheManager.getCache("test"));
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return "world";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] results = new Future<?>[8];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return cache.get("hello", loader);
+                    }
+                });
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<?> result : results) {
+                assertEquals("world", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("world", cache.get("hello"));
+        assertEquals("world", cache.get("hello", loader));
+        assertEquals(1, loads.get());
+
+        try {
+            cache.get("failing", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("backend down");
+                }
+            });
+            fail("Failure of the loader should be reported.");
+        } catch (CacheException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertNull(cache.get("failing"));
+    }
+
+    @Test
+    public void testExpiringValuesAreRefreshedEarly() throws Exception {
+        ConfigurationBuilder expiring = new ConfigurationBuilder();
+        expiring.expiration().lifespan(60000);
+        cacheManager.defineConfiguration("expiring", expiring.build());
+        InfinispanCache<String, Integer> cache = new InfinispanCache<String, Integer>(cacheManager.getCache("expiring"));
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(1);
+                return loads.incrementAndGet();
+            }
+        };
+
+        cache.setSingleFlight(new SingleFlightLoader(null, 0, 0));
+        assertEquals(Integer.valueOf(1), cache.get("hello", loader));
+        assertEquals(Integer.valueOf(1), cache.get("hello", loader));
+
+        // a window of a billion loads starts long before the entry expires
+        SingleFlightLoader singleFlight = new SingleFlightLoader(null, 0, 1000000000);
+        cache.setSingleFlight(singleFlight);
+        cache.remove("hello");
+        assertEquals(Integer.valueOf(2), cache.get("hello", loader));
+        assertTrue(singleFlight.getAverageLoadTime() > 0);
+        assertEquals(Integer.valueOf(3), cache.get("hello", loader));
+        assertEquals(Integer.valueOf(3), cache.get("hello"));
+    }
+
+    @Test
+    public void testDeltaSessionsAreMergedIntoStoredValues() throws Exception {
+        File location = File.createTempFile("deltas", "");
+        assertTrue(location.delete());
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        configuration.persistence().addSingleFileStore().location(location.getAbsolutePath()).purgeOnStartup(true);
+        cacheManager.defineConfiguration("deltas", configuration.build());
+        Cache<String, DeltaSession> delegate = cacheManager.getCache("deltas");
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(delegate, true);
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId("session");
+        session.setAttribute("first", 1);
+        cache.put("session", session);
+        assertFalse(session.isChanged());
+
+        DeltaSession other = cache.get("session");
+        assertNotSame(session, other);
+        other.setAttribute("second", 2);
+        other.setAttribute("first", null);
+        cache.put("session", other);
+        delegate.getAdvancedCache().evict("session");
+
+        session.setAttribute("third", 3);
+        session.touch();
+        assertTrue(session.isChanged());
+        cache.put("session", session);
+        assertFalse(session.isChanged());
+
+        DeltaSession stored = cache.get("session");
+        assertEquals("localhost", stored.getHost());
+        assertEquals(session.getLastAccessTime(), stored.getLastAccessTime());
+        assertNull(stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+        assertEquals(3, stored.getAttribute("third"));
+        assertFalse(stored.isChanged());
+    }
+
+    @Test
+    public void testDeltaSessionIsWrittenWholeWhenOwnerHoldsNone() throws Exception {
+        Cache<String, DeltaSession> delegate = cacheManager.getCache("test");
+        InfinispanCache<String, DeltaSession> cache = new InfinispanCache<String, DeltaSession>(delegate, true);
+
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId("session");
+        session.setAttribute("first", 1);
+        cache.put("session", session);
+
+        session.touch();
+        try {
+            session.delta().merge(null);
+            fail("Changes should not be merged into a missing session.");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        // evicted without a cache store
+        delegate.getAdvancedCache().evict("session");
+        session.setAttribute("second", 2);
+        cache.put("session", session);
+        assertFalse(session.isChanged());
+
+        DeltaSession stored = cache.get("session");
+        assertEquals("session", stored.getId());
+        assertEquals("localhost", stored.getHost());
+        assertEquals(session.getStartTimestamp(), stored.getStartTimestamp());
+        assertEquals(session.getLastAccessTime(), stored.getLastAccessTime());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(2, stored.getAttribute("second"));
+
+        delegate.getAdvancedCache().evict("session");
+        session.setAttribute("third", 3);
+        final CountDownLatch written = new CountDownLatch(1);
+        cache.putAsync("session", session).attachListener(new FutureListener<DeltaSession>() {
+            @Override
+            public void futureDone(Future<DeltaSession> future) {
+                try {
+                    future.get();
+                    written.countDown();
+                } catch (Exception e) {
+                    // not written
+                }
+            }
+        });
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        assertFalse(session.isChanged());
+
+        stored = cache.get("session");
+        assertEquals("session", stored.getId());
+        assertEquals(1, stored.getAttribute("first"));
+        assertEquals(3, stored.getAttribute("third"));
+    }
+
+    /**
+     * Runs {@link #afterRead} once, in another thread, after the next read returned its value.
+     */
+    public static class ModifyingReads extends BaseCustomInterceptor {
+
+        volatile Runnable afterRead;
+
+        @Override
+        public Object visitGetKeyValueCommand(InvocationContext ctx, GetKeyValueCommand command) throws Throwable {
+            Object value = super.visitGetKeyValueCommand(ctx, command);
+            Runnable modification = afterRead;
+            if (modification != null) {
+                afterRead = null;
+                Thread thread = new Thread(modification);
+                thread.start();
+                thread.join();
+            }
+            return value;
+        }
+    }
+}
@@ -24,15 +24,49 @@
 package com.github.zbiljic.shiro.cache.infinispan;
 
 import org.apache.shiro.cache.Cache;
+import org.apache.shiro.config.ConfigurationException;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.session.mgt.eis.EnterpriseCacheSessionDAO;
 import org.apache.shiro.util.LifecycleUtils;
 
+import com.github.zbiljic.shiro.cache.infinispan.persistence.LogStoreConfigurationBuilder;
+
+import org.infinispan.AdvancedCache;
 import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.container.DataContainer;
+import org.infinispan.distribution.ch.SyncConsistentHashFactory;
+import org.infinispan.eviction.EvictionStrategy;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -41,6 +75,9 @@ import static org.junit.Assert.*;
  */
 public class InfinispanManagerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private InfinispanCacheManager cacheManager;
 
     @Before
@@ -110,4 +147,327 @@ public class InfinispanManagerTest {
         // Don't forget to stop the custom cache manager
         customCacheManager.stop();
     }
+
+    @Test
+    public void testTracingCacheIsCreatedWhenTraceIsEnabled() {
+        // simplelogger.properties enables TRACE for all loggers
+        assertTrue(TracingInfinispanCache.isEnabled());
+        Cache<String, String> cache = cacheManager.getCache("test");
+        assertTrue(cache instanceof TracingInfinispanCache);
+
+        assertNull(cache.put("hello", "world"));
+        assertEquals("world", cache.get("hello"));
+        assertEquals("world", cache.remove("hello"));
+        assertNull(cache.get("hello"));
+    }
+
+    @Test
+    public void testBinaryCacheStoresSerializedValues() {
+        cacheManager.setBinaryCacheNames(Collections.singleton("binary"));
+        cacheManager.init();
+
+        assertTrue(cacheManager.getCacheManager().getCacheConfiguration("binary").storeAsBinary().enabled());
+        assertFalse(cacheManager.getCacheManager().getDefaultCacheConfiguration().storeAsBinary().enabled());
+
+        Cache<String, ArrayList<String>> cache = cacheManager.getCache("binary");
+        ArrayList<String> value = new ArrayList<String>(Collections.singletonList("world"));
+        cache.put("hello", value);
+        assertEquals(value, cache.get("hello"));
+        assertNotSame(value, cache.get("hello"));
+    }
+
+    @Test
+    public void testBinarySessionCacheIsReadAndValidated() {
+        cacheManager.setBinaryCacheNames(Collections.singleton(EnterpriseCacheSessionDAO.ACTIVE_SESSION_CACHE_NAME));
+        cacheManager.init();
+        EnterpriseCacheSessionDAO sessionDAO = new EnterpriseCacheSessionDAO();
+        sessionDAO.setCacheManager(cacheManager);
+        DefaultSessionManager sessionManager = new DefaultSessionManager();
+        sessionManager.setSessionDAO(sessionDAO);
+        sessionManager.setSessionValidationSchedulerEnabled(false);
+
+        Cache<Serializable, SimpleSession> cache = cacheManager.getCache(EnterpriseCacheSessionDAO.ACTIVE_SESSION_CACHE_NAME);
+        for (int i = 0; i < 4; i++) {
+            SimpleSession session = new SimpleSession();
+            session.setId("session" + i);
+            if (i % 2 == 0) {
+                session.setLastAccessTime(new Date(System.currentTimeMillis() - session.getTimeout() - 1000));
+            }
+            cache.put(session.getId(), session);
+        }
+
+        Collection<Session> sessions = sessionDAO.getActiveSessions();
+        assertEquals(4, sessions.size());
+        for (Session session : sessions) {
+            assertTrue(session instanceof SimpleSession);
+        }
+
+        new InfinispanSessionValidationScheduler(sessionManager).validateSessions();
+
+        for (int i = 0; i < 4; i++) {
+            if (i % 2 == 0) {
+                assertNull(cache.get("session" + i));
+            } else {
+                assertNotNull(cache.get("session" + i));
+            }
+        }
+        assertEquals(2, cache.values().size());
+    }
+
+    @Test
+    public void testStartCachesAreStartedOnInit() throws Exception {
+        cacheManager.setStartCacheNames(new HashSet<String>(Arrays.asList("first", "second")));
+        assertFalse(cacheManager.isReady());
+        cacheManager.init();
+
+        EmbeddedCacheManager infinispanCacheManager = cacheManager.getCacheManager();
+        assertTrue(infinispanCacheManager.isRunning("first"));
+        assertTrue(infinispanCacheManager.isRunning("second"));
+        assertFalse(infinispanCacheManager.getCacheConfiguration("first").clustering().stateTransfer()
+                .awaitInitialTransfer());
+        assertEquals(new HashSet<String>(Arrays.asList("first", "second")),
+                cacheManager.getCacheStartDurations().keySet());
+        assertTrue(cacheManager.awaitReady(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPrincipalGroupedCachesUseGrouper() {
+        cacheManager.setPrincipalGroupedCacheNames(Collections.singleton("authorization"));
+        cacheManager.init();
+
+        Configuration configuration = cacheManager.getCacheManager().getCacheConfiguration("authorization");
+        assertTrue(configuration.clustering().hash().groups().enabled());
+        assertEquals(1, configuration.clustering().hash().groups().groupers().size());
+        assertTrue(configuration.clustering().hash().groups().groupers().get(0) instanceof PrincipalGrouper);
+        assertTrue(configuration.clustering().hash().consistentHashFactory() instanceof SyncConsistentHashFactory);
+        assertFalse(cacheManager.getCacheManager().getDefaultCacheConfiguration().clustering().hash().groups().enabled());
+    }
+
+    @Test
+    public void testCacheProfilesAreRecognisedByName() {
+        cacheManager.setCacheProfilesEnabled(true);
+        cacheManager.setWriteBehindInterval(60000);
+        cacheManager.setCacheProfiles(Collections.singletonMap("sessions", "Session"));
+        cacheManager.getCache("myRealm.authorizationCache");
+        cacheManager.getCache("myRealm.authenticationCache");
+        cacheManager.getCache("shiro-activeSessionCache");
+        Cache<String, String> sessions = cacheManager.getCache("sessions");
+        cacheManager.getCache("test");
+
+        EmbeddedCacheManager infinispanCacheManager = cacheManager.getCacheManager();
+        assertEquals(CacheMode.REPL_SYNC, infinispanCacheManager.getCacheConfiguration("myRealm.authorizationCache")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.LOCAL, infinispanCacheManager.getCacheConfiguration("myRealm.authenticationCache")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.DIST_ASYNC, infinispanCacheManager.getCacheConfiguration("shiro-activeSessionCache")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.DIST_ASYNC, infinispanCacheManager.getCacheConfiguration("sessions")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.DIST_SYNC, infinispanCacheManager.getCacheConfiguration("test")
+                .clustering().cacheMode());
+        // the session profile keeps the store of the configured session cache
+        assertFalse(infinispanCacheManager.getCacheConfiguration("shiro-activeSessionCache").persistence()
+                .stores().isEmpty());
+
+        sessions.put("hello", "world");
+        assertEquals("world", sessions.get("hello"));
+        assertNull(infinispanCacheManager.getCache("sessions").get("hello"));
+    }
+
+    @Test
+    public void testCacheProfilesCanBeOverridden() {
+        cacheManager.setCacheProfiles(Collections.singletonMap("myRealm.authenticationCache", "authentication"));
+        cacheManager.getCache("myRealm.authorizationCache");
+        cacheManager.getCache("myRealm.authenticationCache");
+        cacheManager.getCache("shiro-activeSessionCache");
+
+        EmbeddedCacheManager infinispanCacheManager = cacheManager.getCacheManager();
+        assertEquals(CacheMode.DIST_SYNC, infinispanCacheManager.getCacheConfiguration("myRealm.authorizationCache")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.LOCAL, infinispanCacheManager.getCacheConfiguration("myRealm.authenticationCache")
+                .clustering().cacheMode());
+        assertEquals(CacheMode.DIST_SYNC, infinispanCacheManager.getCacheConfiguration("shiro-activeSessionCache")
+                .clustering().cacheMode());
+
+        try {
+            cacheManager.setCacheProfiles(Collections.singletonMap("test", "unknown"));
+            fail("Unknown cache profiles should be rejected.");
+        } catch (ConfigurationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLoadLocksAreTakenInCompanionCache() {
+        cacheManager.setLoadLockCacheNames(Collections.singleton("myRealm.authorizationCache"));
+        LoadingInfinispanCache<String, String> cache = (LoadingInfinispanCache<String, String>) cacheManager
+                .<String, String>getCache("myRealm.authorizationCache");
+
+        assertEquals("world", cache.get("hello", new Callable<String>() {
+            @Override
+            public String call() {
+                return "world";
+            }
+        }));
+        assertEquals("world", cache.get("hello"));
+
+        Configuration locks = cacheManager.getCacheManager().getCacheConfiguration("myRealm.authorizationCache.loadLocks");
+        assertNotNull(locks);
+        assertEquals(CacheMode.DIST_SYNC, locks.clustering().cacheMode());
+        assertTrue(locks.persistence().stores().isEmpty());
+        assertNull(cacheManager.getCacheManager().getCache("myRealm.authorizationCache.loadLocks").get("hello"));
+    }
+
+    @Test
+    public void testWarmUpLoadsMostRecentlyWrittenEntries() throws Exception {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        // a single segment, so that exactly maxEntries entries fit in memory
+        builder.locking().concurrencyLevel(1);
+        builder.eviction().strategy(EvictionStrategy.LRU).maxEntries(50);
+        builder.persistence().addStore(LogStoreConfigurationBuilder.class)
+                .location(folder.getRoot().getAbsolutePath());
+        Configuration configuration = builder.build();
+
+        EmbeddedCacheManager previous = new DefaultCacheManager(global.build(), configuration);
+        for (int i = 0; i < 200; i++) {
+            previous.getCache("sessions").put("session-" + i, "value-" + i);
+        }
+        previous.stop();
+
+        EmbeddedCacheManager restarted = new DefaultCacheManager(global.build(), configuration);
+        try {
+            cacheManager.setCacheManager(restarted);
+            cacheManager.setWarmCacheNames(Collections.singleton("sessions"));
+            assertFalse(cacheManager.isReady());
+            cacheManager.init();
+            assertTrue(cacheManager.awaitReady(10, TimeUnit.SECONDS));
+            assertTrue(cacheManager.isReady());
+
+            DataContainer container = restarted.getCache("sessions").getAdvancedCache().getDataContainer();
+            assertEquals(50, container.size());
+            for (int i = 150; i < 200; i++) {
+                assertEquals("value-" + i, container.peek("session-" + i).getValue());
+            }
+        } finally {
+            cacheManager.destroy();
+            restarted.stop();
+        }
+    }
+
+    @Test
+    public void testWarmUpSkipsEntriesRemovedWhileLoading() throws Exception {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        builder.persistence().addStore(LogStoreConfigurationBuilder.class)
+                .location(folder.getRoot().getAbsolutePath());
+        Configuration configuration = builder.build();
+
+        EmbeddedCacheManager previous = new DefaultCacheManager(global.build(), configuration);
+        for (int i = 0; i < 10; i++) {
+            previous.getCache("sessions").put("session-" + i, "value-" + i);
+        }
+        previous.stop();
+
+        EmbeddedCacheManager restarted = new DefaultCacheManager(global.build(), configuration);
+        final AdvancedCache<Object, Object> sessions = restarted.getCache("sessions").getAdvancedCache();
+        ForkJoinPool pool = new ForkJoinPool() {
+            @Override
+            public <T> T invoke(ForkJoinTask<T> task) {
+                // a logout between reading the store and inserting its entries
+                sessions.remove("session-3");
+                return super.invoke(task);
+            }
+        };
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            new CacheWarmUp(sessions, pool, done).run();
+            assertEquals(0, done.getCount());
+
+            DataContainer container = sessions.getDataContainer();
+            assertEquals(9, container.size());
+            assertNull(container.peek("session-3"));
+            assertNull(sessions.get("session-3"));
+            assertEquals("value-4", container.peek("session-4").getValue());
+        } finally {
+            pool.shutdown();
+            restarted.stop();
+        }
+    }
+
+    @Test
+    public void testWriteBehindIsFlushedOnDestroy() {
+        EmbeddedCacheManager customCacheManager = new DefaultCacheManager();
+        cacheManager.setCacheManager(customCacheManager);
+        cacheManager.setWriteBehindCacheNames(Collections.singleton("test"));
+        cacheManager.setWriteBehindInterval(60000);
+
+        Cache<String, String> cache = cacheManager.getCache("test");
+        cache.put("hello", "world");
+        assertEquals("world", cache.get("hello"));
+        assertNull(customCacheManager.getCache("test").get("hello"));
+
+        cacheManager.destroy();
+        assertEquals("world", customCacheManager.getCache("test").get("hello"));
+
+        customCacheManager.stop();
+    }
+
+    @Test
+    public void testReplacingCacheManagerStopsPreviousCaches() {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        EmbeddedCacheManager previous = new DefaultCacheManager(global.build());
+        EmbeddedCacheManager replacement = new DefaultCacheManager(global.build());
+        try {
+            cacheManager.setCacheManager(previous);
+            cacheManager.setWriteBehindCacheNames(Collections.singleton("test"));
+            cacheManager.setWriteBehindInterval(60000);
+
+            Cache<String, String> cache = cacheManager.getCache("test");
+            cache.put("hello", "world");
+
+            cacheManager.setCacheManager(replacement);
+            assertEquals("world", previous.getCache("test").get("hello"));
+            Cache<String, String> replaced = cacheManager.getCache("test");
+            assertNotSame(cache, replaced);
+            assertNull(replaced.get("hello"));
+            replaced.put("hello", "there");
+
+            cacheManager.destroy();
+            assertEquals("there", replacement.getCache("test").get("hello"));
+            assertEquals("world", previous.getCache("test").get("hello"));
+        } finally {
+            previous.stop();
+            replacement.stop();
+        }
+    }
+
+    @Test
+    public void testCacheInstancesAreReused() throws Exception {
+        cacheManager.setCacheManager(new DefaultCacheManager());
+        final String[] names = {"first", "second", "third"};
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<Cache<Object, Object>>> futures = new ArrayList<Future<Cache<Object, Object>>>();
+            for (int i = 0; i < 30; i++) {
+                final String name = names[i % names.length];
+                futures.add(executor.submit(new Callable<Cache<Object, Object>>() {
+                    @Override
+                    public Cache<Object, Object> call() {
+                        return cacheManager.getCache(name);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertSame(cacheManager.getCache(names[i % names.length]), futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+            cacheManager.getCacheManager().stop();
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.session.mgt.eis.EnterpriseCacheSessionDAO;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.infinispan.commands.write.PutKeyValueCommand;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.InterceptorConfiguration;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.BaseCustomInterceptor;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Nemanja Zbiljic
+ */
+public class InfinispanSessionDAOTest {
+
+    private EmbeddedCacheManager infinispanCacheManager;
+
+    private InfinispanCacheManager cacheManager;
+
+    @Before
+    public void setUp() {
+        infinispanCacheManager = new DefaultCacheManager();
+        cacheManager = new InfinispanCacheManager();
+        cacheManager.setCacheManager(infinispanCacheManager);
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.destroy();
+        infinispanCacheManager.stop();
+    }
+
+    private InfinispanSessionDAO createSessionDAO(String principalIndexCacheName) {
+        InfinispanSessionDAO sessionDAO = new InfinispanSessionDAO();
+        sessionDAO.setCacheManager(cacheManager);
+        sessionDAO.setAsyncUpdates(false);
+        sessionDAO.setPrincipalIndexCacheName(principalIndexCacheName);
+        return sessionDAO;
+    }
+
+    private static Session login(InfinispanSessionDAO sessionDAO, String user) {
+        SimpleSession session = new SimpleSession();
+        sessionDAO.create(session);
+        if (user != null) {
+            session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection(user, "realm"));
+            sessionDAO.update(session);
+        }
+        return session;
+    }
+
+    private static Set<Serializable> ids(Iterable<Session> sessions) {
+        Set<Serializable> ids = new HashSet<Serializable>();
+        for (Session session : sessions) {
+            ids.add(session.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testActiveSessionsOfPrincipal() {
+        InfinispanSessionDAO sessionDAO = createSessionDAO("principals");
+        Session first = login(sessionDAO, "alice");
+        Session second = login(sessionDAO, "alice");
+        Session third = login(sessionDAO, "alice");
+        Session other = login(sessionDAO, "bob");
+        login(sessionDAO, null);
+
+        assertEquals(ids(Arrays.asList(first, second, third)), ids(sessionDAO.getActiveSessions("alice")));
+        assertEquals(ids(Collections.singleton(other)), ids(sessionDAO.getActiveSessions("bob")));
+        assertTrue(sessionDAO.getActiveSessions("carol").isEmpty());
+
+        // the same sessions are found by scanning when there is no index
+        assertEquals(ids(sessionDAO.getActiveSessions("alice")),
+                ids(createSessionDAO(null).getActiveSessions("alice")));
+
+        sessionDAO.delete(first);
+        second.removeAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+        sessionDAO.update(second);
+
+        assertEquals(ids(Collections.singleton(third)), ids(sessionDAO.getActiveSessions("alice")));
+        Set<?> indexed = (Set<?>) infinispanCacheManager.getCache("principals").get("alice");
+        assertEquals(Collections.singleton(third.getId()), indexed);
+    }
+
+    @Test
+    public void testDeleteWaitsForUpdateInFlight() throws Exception {
+        BlockingPuts blockingPuts = new BlockingPuts();
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        configuration.customInterceptors().addInterceptor()
+                .position(InterceptorConfiguration.Position.FIRST).interceptor(blockingPuts);
+        infinispanCacheManager.defineConfiguration(EnterpriseCacheSessionDAO.ACTIVE_SESSION_CACHE_NAME, configuration.build());
+        final InfinispanSessionDAO sessionDAO = createSessionDAO(null);
+        sessionDAO.setAsyncUpdates(true);
+        final Session session = login(sessionDAO, "alice");
+
+        // a request touches the session, and its update is still being written at logout
+        blockingPuts.block();
+        session.touch();
+        sessionDAO.update(session);
+        assertTrue(blockingPuts.blocked.await(10, TimeUnit.SECONDS));
+        Thread logout = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                session.removeAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+                sessionDAO.update(session);
+                sessionDAO.delete(session);
+            }
+        });
+        logout.start();
+        logout.join(200);
+        assertTrue(logout.isAlive());
+
+        blockingPuts.release.countDown();
+        logout.join(10000);
+        assertFalse(logout.isAlive());
+        assertNull(infinispanCacheManager.getCache(EnterpriseCacheSessionDAO.ACTIVE_SESSION_CACHE_NAME).get(session.getId()));
+    }
+
+    /**
+     * Blocks the first put after {@link #block()} until {@link #release} is counted down.
+     */
+    public static class BlockingPuts extends BaseCustomInterceptor {
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile boolean blocking;
+
+        void block() {
+            blocking = true;
+        }
+
+        @Override
+        public Object visitPutKeyValueCommand(InvocationContext ctx, PutKeyValueCommand command) throws Throwable {
+            if (blocking) {
+                blocking = false;
+                blocked.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return super.visitPutKeyValueCommand(ctx, command);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.equivalence.ByteArrayEquivalence;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.server.hotrod.HotRodServer;
+import org.infinispan.server.hotrod.configuration.HotRodServerConfigurationBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link InfinispanCacheManager} in remote mode, against a Hot Rod server running in this
+ * JVM.
+ *
+ * @author Nemanja Zbiljic
+ */
+public class RemoteInfinispanCacheTest {
+
+    private EmbeddedCacheManager serverCacheManager;
+
+    private HotRodServer server;
+
+    private InfinispanCacheManager cacheManager;
+
+    @Before
+    public void setUp() throws IOException {
+        // Hot Rod servers hold marshalled keys and values, compared by content
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+        configuration.dataContainer()
+                .keyEquivalence(ByteArrayEquivalence.INSTANCE)
+                .valueEquivalence(ByteArrayEquivalence.INSTANCE);
+        serverCacheManager = new DefaultCacheManager(configuration.build());
+        for (String name : new String[]{"test", InfinispanSessionDAO.ACTIVE_SESSION_CACHE_NAME, "principals"}) {
+            serverCacheManager.getCache(name);
+        }
+        server = new HotRodServer();
+        server.start(new HotRodServerConfigurationBuilder().host("127.0.0.1").port(freePort()).build(),
+                serverCacheManager);
+        cacheManager = createCacheManager();
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.destroy();
+        server.stop();
+        serverCacheManager.stop();
+    }
+
+    private InfinispanCacheManager createCacheManager() {
+        InfinispanCacheManager remoteCacheManager = new InfinispanCacheManager();
+        remoteCacheManager.setRemoteServers("127.0.0.1:" + server.getPort());
+        remoteCacheManager.setRemoteMaxActiveConnections(4);
+        return remoteCacheManager;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testOperationsThroughHotRod() throws Exception {
+        cacheManager.init();
+        InfinispanCache<String, String> cache = (InfinispanCache<String, String>) cacheManager.<String, String>getCache("test");
+        assertTrue(cache.getDelegate() instanceof RemoteCache);
+        assertNull(cacheManager.getCacheManager());
+
+        assertNull(cache.put("hello", "world"));
+        assertEquals("world", cache.put("hello", "there"));
+        assertEquals("there", cache.get("hello"));
+        assertEquals("there", cache.getAsync("hello").get());
+        assertEquals("there", cache.putIfAbsentAsync("hello", "again").get());
+        assertNull(cache.putAsync("foo", "bar").get());
+
+        assertEquals(new HashSet<String>(Arrays.asList("hello", "foo")), cache.keys());
+        assertEquals(new HashSet<String>(Arrays.asList("there", "bar")), new HashSet<String>(cache.values()));
+        Map<String, String> found = cache.getAll(new HashSet<String>(Arrays.asList("hello", "missing")));
+        assertEquals(Collections.singletonMap("hello", "there"), found);
+
+        // another application node sees the same data
+        InfinispanCacheManager other = createCacheManager();
+        try {
+            Cache<String, String> otherCache = other.getCache("test");
+            assertEquals("bar", otherCache.get("foo"));
+            assertEquals("there", otherCache.remove("hello"));
+        } finally {
+            other.destroy();
+        }
+        assertNull(cache.get("hello"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testNearCacheIsBoundedByStaleness() throws Exception {
+        cacheManager.setNearCacheNames(Collections.singleton("test"));
+        cacheManager.setNearCacheMaxStaleness(200);
+        Cache<String, String> cache = cacheManager.getCache("test");
+        InfinispanCacheManager other = createCacheManager();
+        try {
+            Cache<String, String> otherCache = other.getCache("test");
+            cache.put("hello", "world");
+            otherCache.put("hello", "there");
+            assertEquals("world", cache.get("hello"));
+            Thread.sleep(300);
+            assertEquals("there", cache.get("hello"));
+        } finally {
+            other.destroy();
+        }
+    }
+
+    @Test
+    public void testSessionsThroughHotRod() {
+        InfinispanSessionDAO sessionDAO = new InfinispanSessionDAO();
+        sessionDAO.setCacheManager(cacheManager);
+        sessionDAO.setAsyncUpdates(false);
+        sessionDAO.setPrincipalIndexCacheName("principals");
+
+        SimpleSession first = new SimpleSession();
+        SimpleSession second = new SimpleSession();
+        for (SimpleSession session : new SimpleSession[]{first, second}) {
+            sessionDAO.create(session);
+            session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                    new SimplePrincipalCollection("alice", "realm"));
+            sessionDAO.update(session);
+        }
+        assertEquals(2, sessionDAO.getActiveSessions().size());
+        assertEquals(2, sessionDAO.getActiveSessions("alice").size());
+
+        sessionDAO.delete(first);
+        assertEquals(1, sessionDAO.getActiveSessions().size());
+        Session remaining = sessionDAO.getActiveSessions("alice").iterator().next();
+        assertEquals(second.getId(), remaining.getId());
+        assertEquals(Collections.singleton(second.getId()), cacheManager.getCache("principals").get("alice"));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan;
+
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Nemanja Zbiljic
+ */
+public class ShiroExternalizersTest {
+
+    private EmbeddedCacheManager cacheManager;
+
+    private StreamingMarshaller marshaller;
+
+    @Before
+    public void setUp() {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        for (AdvancedExternalizer<?> externalizer : ShiroExternalizers.all()) {
+            global.serialization().addAdvancedExternalizer(externalizer);
+        }
+        cacheManager = new DefaultCacheManager(global.build());
+        marshaller = cacheManager.getCache("test").getAdvancedCache().getComponentRegistry().getCacheMarshaller();
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Test
+    public void testSimpleSession() throws Exception {
+        SimpleSession session = new SimpleSession("localhost");
+        session.setId("5f6c2a43-1f3d-4c1e-9a43-2b3c4d5e6f70");
+        session.setAttribute("counter", 42);
+        session.setAttribute("name", "value");
+        session.setAttribute("permission", new WildcardPermission("printer:print"));
+        session.stop();
+
+        byte[] bytes = marshaller.objectToByteBuffer(session);
+        assertTrue(bytes.length < javaSerializedSize(session));
+
+        SimpleSession copy = (SimpleSession) marshaller.objectFromByteBuffer(bytes);
+        assertEquals(session.getId(), copy.getId());
+        assertEquals(session.getStartTimestamp(), copy.getStartTimestamp());
+        assertEquals(session.getStopTimestamp(), copy.getStopTimestamp());
+        assertEquals(session.getLastAccessTime(), copy.getLastAccessTime());
+        assertEquals(session.getTimeout(), copy.getTimeout());
+        assertEquals(session.isExpired(), copy.isExpired());
+        assertEquals(session.getHost(), copy.getHost());
+        assertEquals(session.getAttributes(), copy.getAttributes());
+    }
+
+    @Test
+    public void testDeltaSession() throws Exception {
+        DeltaSession session = new DeltaSession("localhost");
+        session.setId("5f6c2a43-1f3d-4c1e-9a43-2b3c4d5e6f70");
+        session.setAttribute("counter", 42);
+        session.setAttribute("name", "value");
+        session.setAttribute("permission", new WildcardPermission("printer:print"));
+
+        DeltaSession copy = (DeltaSession) marshaller.objectFromByteBuffer(marshaller.objectToByteBuffer(session));
+        assertEquals(session.getId(), copy.getId());
+        assertEquals(session.getLastAccessTime(), copy.getLastAccessTime());
+        assertEquals(session.getHost(), copy.getHost());
+        assertEquals(session.getAttributes(), copy.getAttributes());
+        assertFalse(copy.isChanged());
+
+        SessionDelta full = (SessionDelta) session.delta();
+        byte[] fullBytes = marshaller.objectToByteBuffer(full);
+        session.commit();
+        session.touch();
+        session.setAttribute("counter", 43);
+        session.removeAttribute("name");
+        SessionDelta delta = (SessionDelta) session.delta();
+        byte[] deltaBytes = marshaller.objectToByteBuffer(delta);
+        assertTrue(deltaBytes.length < fullBytes.length);
+
+        SessionDelta read = (SessionDelta) marshaller.objectFromByteBuffer(deltaBytes);
+        assertFalse(read.isFull());
+        assertEquals(session.getId(), read.getId());
+        assertEquals(session.getLastAccessTime(), read.getLastAccessTime());
+        assertNull(read.getStopTimestamp());
+        assertEquals(delta.getAttributes(), read.getAttributes());
+
+        DeltaSession merged = (DeltaSession) read.merge(copy);
+        assertEquals(session.getLastAccessTime(), merged.getLastAccessTime());
+        assertEquals(session.getAttributes(), merged.getAttributes());
+        assertEquals(42, copy.getAttribute("counter"));
+    }
+
+    @Test
+    public void testSimplePrincipalCollection() throws Exception {
+        SimplePrincipalCollection principals = new SimplePrincipalCollection();
+        principals.addAll(Arrays.asList("jsmith", 1234L), "jdbcRealm");
+        principals.add("jsmith@example.com", "ldapRealm");
+
+        byte[] bytes = marshaller.objectToByteBuffer(principals);
+        assertTrue(bytes.length < javaSerializedSize(principals));
+
+        SimplePrincipalCollection copy = (SimplePrincipalCollection) marshaller.objectFromByteBuffer(bytes);
+        assertEquals(principals, copy);
+        assertEquals(principals.getPrimaryPrincipal(), copy.getPrimaryPrincipal());
+    }
+
+    @Test
+    public void testSimpleAuthorizationInfo() throws Exception {
+        SimpleAuthorizationInfo info = new SimpleAuthorizationInfo(new HashSet<String>(Arrays.asList("admin", "user")));
+        info.addStringPermission("printer:print");
+        info.addObjectPermission(new WildcardPermission("document:read"));
+
+        byte[] bytes = marshaller.objectToByteBuffer(info);
+        assertTrue(bytes.length < javaSerializedSize(info));
+
+        SimpleAuthorizationInfo copy = (SimpleAuthorizationInfo) marshaller.objectFromByteBuffer(bytes);
+        assertEquals(info.getRoles(), copy.getRoles());
+        assertEquals(info.getStringPermissions(), copy.getStringPermissions());
+        assertEquals(info.getObjectPermissions(), copy.getObjectPermissions());
+    }
+
+    private static int javaSerializedSize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(object);
+        output.close();
+        return bytes.size();
+    }
+}
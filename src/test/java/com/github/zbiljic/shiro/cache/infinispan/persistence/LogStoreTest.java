@@ -0,0 +1,281 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Nemanja Zbiljić
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.zbiljic.shiro.cache.infinispan.persistence;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StoreConfiguration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.ParserRegistry;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.marshall.core.MarshalledEntry;
+import org.infinispan.persistence.manager.PersistenceManager;
+import org.infinispan.persistence.spi.AdvancedCacheLoader;
+import org.infinispan.util.concurrent.WithinThreadExecutor;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Nemanja Zbiljic
+ */
+public class LogStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedCacheManager cacheManager;
+
+    @After
+    public void tearDown() {
+        if (cacheManager != null) {
+            cacheManager.stop();
+        }
+    }
+
+    private Cache<String, String> startCache(int segmentSize) {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        builder.persistence().addStore(LogStoreConfigurationBuilder.class)
+                .location(folder.getRoot().getAbsolutePath())
+                .segmentSize(segmentSize)
+                .compactionThreshold(0.5);
+        cacheManager = new DefaultCacheManager(global.build(), builder.build());
+        return cacheManager.getCache("sessions");
+    }
+
+    private void restart() {
+        cacheManager.stop();
+        cacheManager = null;
+    }
+
+    private static LogStore logStore(Cache<?, ?> cache) {
+        PersistenceManager persistenceManager = cache.getAdvancedCache().getComponentRegistry()
+                .getComponent(PersistenceManager.class);
+        Set<LogStore> stores = persistenceManager.getStores(LogStore.class);
+        assertEquals(1, stores.size());
+        return stores.iterator().next();
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() {
+        Cache<String, String> cache = startCache(4096);
+        for (int i = 0; i < 500; i++) {
+            cache.put("session-" + i, "value-" + i);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            cache.remove("session-" + i);
+        }
+        assertTrue(logStore(cache).getSegmentIds().size() > 1);
+        restart();
+
+        cache = startCache(4096);
+        assertEquals(250, logStore(cache).size());
+        for (int i = 0; i < 500; i++) {
+            if (i % 2 == 0) {
+                assertNull(cache.get("session-" + i));
+            } else {
+                assertEquals("value-" + i, cache.get("session-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testRestartWithoutHintOfLastSegment() {
+        Cache<String, String> cache = startCache(4096);
+        for (int i = 0; i < 100; i++) {
+            cache.put("session-" + i, "value-" + i);
+        }
+        restart();
+
+        // a node which did not stop cleanly leaves its last segment without a hint file
+        File[] hints = new File(folder.getRoot(), "sessions").listFiles();
+        assertNotNull(hints);
+        File last = null;
+        for (File hint : hints) {
+            if (hint.getName().endsWith(".hint") && (last == null || hint.getName().compareTo(last.getName()) > 0)) {
+                last = hint;
+            }
+        }
+        assertNotNull(last);
+        assertTrue(last.delete());
+
+        cache = startCache(4096);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value-" + i, cache.get("session-" + i));
+        }
+    }
+
+    @Test
+    public void testCompactionDropsOverwrittenRecords() throws Exception {
+        Cache<String, String> cache = startCache(4096);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.put("session-" + i, "value-" + i + "-" + round);
+            }
+        }
+        LogStore store = logStore(cache);
+        long deadline = System.currentTimeMillis() + 10000;
+        List<Long> segmentIds = store.getSegmentIds();
+        while (segmentIds.get(0) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            segmentIds = store.getSegmentIds();
+        }
+        assertTrue("Oldest segments were not compacted: " + segmentIds, segmentIds.get(0) > 0);
+        restart();
+
+        cache = startCache(4096);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value-" + i + "-19", cache.get("session-" + i));
+        }
+    }
+
+    @Test
+    public void testRemovedEntriesStayRemovedAfterCompaction() throws Exception {
+        Cache<String, String> cache = startCache(4096);
+        for (int i = 0; i < 200; i++) {
+            cache.put("session-" + i, "value-" + i);
+        }
+        LogStore store = logStore(cache);
+        long written = store.getSegmentIds().get(store.getSegmentIds().size() - 1);
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                cache.remove("session-" + i);
+            }
+        }
+        overwrite(cache, 20, 40);
+
+        // the segments holding only writes are deleted, most of them removed
+        awaitCompaction(store, written - 1);
+        restart();
+
+        cache = startCache(4096);
+        assertEquals(40, logStore(cache).size());
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                assertNull(cache.get("session-" + i));
+            } else {
+                assertEquals("value-" + i, cache.get("session-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentsHoldingOnlyRemovesAreCompacted() throws Exception {
+        Cache<String, String> cache = startCache(4096);
+        for (int i = 0; i < 200; i++) {
+            cache.put("session-" + i, "value-" + i);
+        }
+        LogStore store = logStore(cache);
+        long written = store.getSegmentIds().get(store.getSegmentIds().size() - 1);
+        for (int i = 0; i < 200; i++) {
+            cache.remove("session-" + i);
+        }
+        long removed = store.getSegmentIds().get(store.getSegmentIds().size() - 1);
+        assertTrue("Removes did not fill a segment of their own.", removed > written + 1);
+        overwrite(cache, 20, 40);
+
+        // no segment holding only removes outlives the writes they remove
+        awaitCompaction(store, removed - 1);
+        restart();
+
+        cache = startCache(4096);
+        assertEquals(20, logStore(cache).size());
+        for (int i = 0; i < 200; i++) {
+            assertNull(cache.get("session-" + i));
+        }
+    }
+
+    @Test
+    public void testProcessWithoutValuesPassesMetadata() {
+        Cache<String, String> cache = startCache(4096);
+        cache.put("session-1", "value-1", 1, TimeUnit.HOURS);
+        final List<MarshalledEntry<Object, Object>> entries = new CopyOnWriteArrayList<MarshalledEntry<Object, Object>>();
+
+        logStore(cache).process(null, new AdvancedCacheLoader.CacheLoaderTask<Object, Object>() {
+            @Override
+            public void processEntry(MarshalledEntry<Object, Object> entry, AdvancedCacheLoader.TaskContext context) {
+                entries.add(entry);
+            }
+        }, new WithinThreadExecutor(), false, true);
+        assertEquals(1, entries.size());
+        assertEquals("session-1", entries.get(0).getKey());
+        assertNotNull(entries.get(0).getMetadata());
+        assertTrue(entries.get(0).getMetadata().expiryTime() > 0);
+    }
+
+    private static void overwrite(Cache<String, String> cache, int keys, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < keys; i++) {
+                cache.put("other-" + i, "value-" + i + "-" + round);
+            }
+        }
+    }
+
+    private static void awaitCompaction(LogStore store, long segmentId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        List<Long> segmentIds = store.getSegmentIds();
+        while (segmentIds.get(0) <= segmentId && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            segmentIds = store.getSegmentIds();
+        }
+        assertTrue("Segments up to [" + segmentId + "] were not compacted: " + segmentIds, segmentIds.get(0) > segmentId);
+    }
+
+    @Test
+    public void testLogStoreElementIsParsed() {
+        String xml = "<infinispan xmlns=\"urn:infinispan:config:6.0\">" +
+                "<namedCache name=\"sessions\"><persistence passivation=\"false\">" +
+                "<logStore xmlns=\"" + LogStoreConfigurationParser.NAMESPACE + "\"" +
+                " location=\"${java.io.tmpdir}/log-store\" segmentSize=\"1048576\" compactionThreshold=\"0.25\"" +
+                " preload=\"true\" fetchPersistentState=\"true\"/>" +
+                "</persistence></namedCache></infinispan>";
+        ConfigurationBuilderHolder holder = new ParserRegistry().parse(new ByteArrayInputStream(xml.getBytes()));
+
+        List<StoreConfiguration> stores = holder.getNamedConfigurationBuilders().get("sessions").build()
+                .persistence().stores();
+        assertEquals(1, stores.size());
+        LogStoreConfiguration configuration = (LogStoreConfiguration) stores.get(0);
+        assertEquals(new File(System.getProperty("java.io.tmpdir"), "log-store").getPath(),
+                new File(configuration.location()).getPath());
+        assertEquals(1048576, configuration.segmentSize());
+        assertEquals(0.25, configuration.compactionThreshold(), 0);
+        assertTrue(configuration.preload());
+        assertTrue(configuration.fetchPersistentState());
+    }
+}